@@ -0,0 +1,128 @@
+package benchmark;
+
+import connectivity.bandwidth.Throttle;
+import connectivity.connection.ConnectionReceiver;
+import connectivity.connection.ConnectionSender;
+import connectivity.metrics.PeerStats;
+import org.apache.commons.io.FileUtils;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class checks that the transfer path doesn't allocate for every chunk of a file. It sends a small and a large
+ * file many times over a loopback connection and measures, with the allocated bytes counters of the threads, the
+ * memory allocated by all the threads of the process for every transfer. The buffers come from the pool, so once the
+ * pool is warm the large file must not allocate more than the small one, whatever the chunk size. The process exits
+ * with 1 if it does. The check must run without the "p2p.buffers.debug" property, which allocates a lease for every
+ * lent buffer.
+ * <p>
+ * Usage: java -cp benchmarks.jar benchmark.AllocationCheck [--transfers=200] [--warmup=100] [--large=1048576]
+ * [--tolerance=4096]
+ */
+public class AllocationCheck {
+    private static final Path FILE = Paths.get("payload.bin");
+    private static final int SMALL = 1024;
+    private static final int[] CHUNK_SIZES = {1024, 65536};
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            String[] pair = arg.replaceFirst("^--", "").split("=", 2);
+            values.put(pair[0], pair.length > 1 ? pair[1] : "true");
+        }
+        int transfers = Integer.parseInt(values.getOrDefault("transfers", "200"));
+        int warmup = Integer.parseInt(values.getOrDefault("warmup", "100"));
+        int large = Integer.parseInt(values.getOrDefault("large", "1048576"));
+        long tolerance = Long.parseLong(values.getOrDefault("tolerance", "4096"));
+
+        boolean passed = true;
+        for (int chunkSize : CHUNK_SIZES) {
+            long small = measure(SMALL, chunkSize, warmup, transfers);
+            long big = measure(large, chunkSize, warmup, transfers);
+            boolean ok = big - small <= tolerance;
+            passed &= ok;
+
+            System.out.printf("chunk %6d B | %8d B file: %7d B/transfer | %8d B file: %7d B/transfer | %s%n",
+                    chunkSize, SMALL, small, large, big, ok ? "ok" : "FAILED, allocates per chunk");
+        }
+
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * This method sends a file again and again over a loopback connection
+     * @return The bytes allocated by the process for every measured transfer
+     */
+    private static long measure(int fileSize, int chunkSize, int warmup, int transfers) throws Exception {
+        Path source = Files.createTempDirectory("allocation-source");
+        Path target = Files.createTempDirectory("allocation-target");
+        byte[] payload = new byte[fileSize];
+        new Random(fileSize).nextBytes(payload);
+        Files.write(source.resolve(FILE), payload);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+             Socket server = serverSocket.accept()) {
+            ConnectionSender sender = new ConnectionSender(client, new PeerStats(), chunkSize);
+            ConnectionReceiver receiver = new ConnectionReceiver(server, new PeerStats(), chunkSize, Throttle.UNLIMITED, null);
+
+            for (int i = 0; i < warmup; i++)
+                transfer(executor, sender, receiver, source, target);
+
+            Map<Long, Long> before = allocatedBytes();
+            for (int i = 0; i < transfers; i++)
+                transfer(executor, sender, receiver, source, target);
+            Map<Long, Long> after = allocatedBytes();
+
+            long allocated = 0;
+            for (Map.Entry<Long, Long> thread : after.entrySet())
+                allocated += thread.getValue() - before.getOrDefault(thread.getKey(), 0L);
+            return allocated / transfers;
+        } finally {
+            executor.shutdownNow();
+            FileUtils.deleteDirectory(source.toFile());
+            FileUtils.deleteDirectory(target.toFile());
+        }
+    }
+
+    private static void transfer(ExecutorService executor, ConnectionSender sender, ConnectionReceiver receiver,
+                                 Path source, Path target) throws Exception {
+        Future<?> sent = executor.submit(() -> {
+            sender.sendFile(source, FILE);
+            return null;
+        });
+        while (receiver.receiveFile(target) == null)
+            Thread.onSpinWait();
+        sent.get();
+        Files.delete(target.resolve(FILE));
+    }
+
+    /**
+     * @return The bytes allocated so far by every live thread, by thread ID
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> allocated = new HashMap<>();
+        for (int i = 0; i < ids.length; i++)
+            if (bytes[i] >= 0)
+                allocated.put(ids[i], bytes[i]);
+        return allocated;
+    }
+}
@@ -0,0 +1,145 @@
+package benchmark;
+
+import connectivity.broadcast.AnnounceSchedule;
+import connectivity.broadcast.MulticastDiscovery;
+
+import java.util.*;
+
+/**
+ * This class simulates in process, with a virtual clock, the discovery traffic of a network of peers. It compares the
+ * fixed period broadcast with the multicast discovery, whose announcements are driven by the same
+ * {@link AnnounceSchedule} used by {@link MulticastDiscovery}. For every size of the network it prints the
+ * datagrams sent per second, the datagrams every host has to receive per second, the largest burst seen in a window
+ * of 100 ms and the time in which a peer that joins last learns all the others.
+ */
+public class DiscoverySimulation {
+    private static final long BROADCAST_PERIOD = 5_000;
+    private static final long MIN_PERIOD = 5_000;
+    private static final long MAX_PERIOD = 120_000;
+    private static final long RESPONSE_WINDOW = 1_000;
+    private static final long JOIN_WINDOW = 60_000;
+    private static final long DURATION = 30 * 60_000;
+    /**
+     * The traffic is measured only over the last part of the simulation, when the announce periods settled
+     */
+    private static final long MEASURE_FROM = 20 * 60_000;
+    private static final long BURST_WINDOW = 100;
+
+    private enum Type {ANNOUNCE, QUERY, RESPONSE}
+
+    private record Event(long time, int peer, Type type, int target) {
+    }
+
+    /**
+     * This class counts the datagrams of the measured part of the simulation
+     */
+    private static class Traffic {
+        private final Map<Long, Integer> bursts = new HashMap<>();
+        private long sent;
+        private long received;
+
+        void count(long time, long receivers) {
+            if (time < MEASURE_FROM)
+                return;
+            sent++;
+            received += receivers;
+            bursts.merge(time / BURST_WINDOW, 1, Integer::sum);
+        }
+
+        String report(int peers) {
+            double seconds = (DURATION - MEASURE_FROM) / 1000.0;
+            int burst = bursts.values().stream().max(Integer::compare).orElse(0);
+            return String.format("sent %9.2f pkt/s | received per host %8.2f pkt/s | burst %5d pkt/100ms",
+                    sent / seconds, received / seconds / peers, burst);
+        }
+    }
+
+    /**
+     * This method simulates the fixed period broadcast. Every peer was started by a script at the same time, so all
+     * the broadcasts are sent in lockstep.
+     *
+     * @param peers The size of the network
+     * @return The measured traffic
+     */
+    private static Traffic simulateBroadcast(int peers) {
+        Traffic traffic = new Traffic();
+        for (long time = 0; time < DURATION; time += BROADCAST_PERIOD)
+            for (int peer = 0; peer < peers; peer++)
+                traffic.count(time, peers - 1);
+        return traffic;
+    }
+
+    /**
+     * This method simulates the multicast discovery. The peers join at random moments of the first minute, every one
+     * of them sends a query when it joins and announces itself on its own schedule afterwards.
+     *
+     * @param peers   The size of the network
+     * @param random  The source of randomness
+     * @param learned Filled with the time in milliseconds in which the last peer to join learned all the others
+     * @return The measured traffic
+     */
+    private static Traffic simulateMulticast(int peers, Random random, long[] learned) {
+        Traffic traffic = new Traffic();
+        PriorityQueue<Event> events = new PriorityQueue<>(Comparator.comparingLong(Event::time));
+        AnnounceSchedule[] schedules = new AnnounceSchedule[peers];
+        long[] joined = new long[peers];
+        boolean[] online = new boolean[peers];
+        int last = 0;
+
+        for (int peer = 0; peer < peers; peer++) {
+            schedules[peer] = new AnnounceSchedule(MIN_PERIOD, MAX_PERIOD, 2, 0.5, random);
+            joined[peer] = (long) (random.nextDouble() * JOIN_WINDOW);
+            if (joined[peer] > joined[last])
+                last = peer;
+            events.add(new Event(joined[peer], peer, Type.QUERY, -1));
+        }
+
+        int known = 0;
+        int onlinePeers = 0;
+        while (!events.isEmpty() && events.peek().time() < DURATION) {
+            Event event = events.poll();
+
+            switch (event.type()) {
+                case QUERY -> {
+                    traffic.count(event.time(), onlinePeers);
+                    online[event.peer()] = true;
+                    onlinePeers++;
+                    for (int peer = 0; peer < peers; peer++)
+                        if (online[peer] && peer != event.peer())
+                            events.add(new Event(
+                                    event.time() + schedules[peer].responseDelay(RESPONSE_WINDOW),
+                                    peer, Type.RESPONSE, event.peer()));
+                    events.add(new Event(event.time(), event.peer(), Type.ANNOUNCE, -1));
+                }
+                case RESPONSE -> {
+                    traffic.count(event.time(), 1);
+                    if (event.target() == last && ++known == peers - 1)
+                        learned[0] = event.time() - joined[last];
+                }
+                case ANNOUNCE -> {
+                    traffic.count(event.time(), onlinePeers - 1);
+                    long delay = schedules[event.peer()].nextDelay(false);
+                    events.add(new Event(event.time() + delay, event.peer(), Type.ANNOUNCE, -1));
+                }
+            }
+        }
+        return traffic;
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = args.length == 0
+                ? new int[]{10, 100, 1000}
+                : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+
+        for (int peers : sizes) {
+            long[] learned = new long[]{-1};
+            Traffic broadcast = simulateBroadcast(peers);
+            Traffic multicast = simulateMulticast(peers, new Random(peers), learned);
+
+            System.out.println("N = " + peers);
+            System.out.println("  broadcast: " + broadcast.report(peers));
+            System.out.println("  multicast: " + multicast.report(peers)
+                    + " | last peer learned everyone in " + learned[0] + " ms");
+        }
+    }
+}
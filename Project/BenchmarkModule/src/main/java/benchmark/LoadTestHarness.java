@@ -0,0 +1,429 @@
+package benchmark;
+
+import connectivity.broadcast.DiscoveryMode;
+import connectivity.metrics.Metrics;
+import george.resident.sync.ConnectivityResident;
+import george.resident.tree.actions.TreeActionsEnum;
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * This class starts several {@link ConnectivityResident}s in the same process, on distinct loopback ports and
+ * temporary directories, connects every one of them to all the others and runs sync, fetch and delete scenarios on
+ * them. The first peer changes a part of its files in every round, and the round ends when the directories of all the
+ * peers are the same again. For every round the time to converge and the transfer throughput are printed, and at the
+ * end the CPU time and the allocated memory of every peer, together with the heap of the process.
+ * <p>
+ * Every peer runs its work on the threads of its own thread group, so its CPU time is the CPU time of the threads of
+ * that group. The threads that already ended aren't counted.
+ * <p>
+ * The connections can be routed through a {@link ShapingProxy} for every pair of peers, emulating one of the preset
+ * networks, whose round trip time (ms), jitter (ms), bandwidth (Mbit/s), drop and reset rates can be changed.
+ * <p>
+ * Usage: java -cp benchmarks.jar benchmark.LoadTestHarness [--peers=4] [--files=200] [--file-size=16384]
+ * [--rounds=3] [--churn=0.1] [--base-port=47100] [--timeout=120] [--scenarios=sync,fetch,delete]
+ * [--network=loopback|lan|wifi|wan] [--rtt=30] [--jitter=5] [--bandwidth=100] [--drop=0.001] [--reset=0]
+ */
+public class LoadTestHarness {
+    /**
+     * The number of files in every directory of the generated trees
+     */
+    private static final int FILES_PER_DIRECTORY = 50;
+    private static final long POLL_INTERVAL = 50;
+
+    /**
+     * The configuration of a run
+     *
+     * @param peers     The number of peers
+     * @param files     The number of files the first peer starts with
+     * @param fileSize  The size of every file in bytes
+     * @param rounds    The number of rounds of every scenario
+     * @param churn     The fraction of the files changed in every round
+     * @param basePort  The port of the first peer, the other peers use the next ports
+     * @param timeout   The time in seconds after which a round that didn't converge is abandoned
+     * @param scenarios The scenarios to run, in order
+     * @param network   The network between every two peers
+     */
+    private record Options(int peers, int files, int fileSize, int rounds, double churn, int basePort, long timeout,
+                           List<String> scenarios, NetworkProfile network) {
+        static Options parse(String[] args) {
+            Map<String, String> values = new HashMap<>();
+            for (String arg : args) {
+                String[] pair = arg.replaceFirst("^--", "").split("=", 2);
+                values.put(pair[0], pair.length > 1 ? pair[1] : "true");
+            }
+
+            return new Options(
+                    Integer.parseInt(values.getOrDefault("peers", "4")),
+                    Integer.parseInt(values.getOrDefault("files", "200")),
+                    Integer.parseInt(values.getOrDefault("file-size", "16384")),
+                    Integer.parseInt(values.getOrDefault("rounds", "3")),
+                    Double.parseDouble(values.getOrDefault("churn", "0.1")),
+                    Integer.parseInt(values.getOrDefault("base-port", "47100")),
+                    Long.parseLong(values.getOrDefault("timeout", "120")),
+                    List.of(values.getOrDefault("scenarios", "sync,fetch,delete").split(",")),
+                    parseNetwork(values)
+            );
+        }
+
+        private static NetworkProfile parseNetwork(Map<String, String> values) {
+            NetworkProfile preset = NetworkProfile.forName(values.getOrDefault("network", "loopback"));
+            String bandwidth = values.get("bandwidth");
+
+            return new NetworkProfile(
+                    Long.parseLong(values.getOrDefault("rtt", String.valueOf(preset.rtt()))),
+                    Long.parseLong(values.getOrDefault("jitter", String.valueOf(preset.jitter()))),
+                    bandwidth != null ? (long) (Double.parseDouble(bandwidth) * 1_000_000) : preset.bandwidth(),
+                    Double.parseDouble(values.getOrDefault("drop", String.valueOf(preset.dropRate()))),
+                    Double.parseDouble(values.getOrDefault("reset", String.valueOf(preset.resetRate())))
+            );
+        }
+    }
+
+    /**
+     * A peer of the harness, with the thread group in which all its threads run
+     */
+    private static class Node implements Closeable {
+        private final int index;
+        private final Path directory;
+        private final int port;
+        private final ThreadGroup group;
+        /**
+         * The thread on which the harness calls the peer, so the work done for the calls is counted for the peer
+         */
+        private final ExecutorService driver;
+        private ConnectivityResident resident;
+        private String peerId;
+
+        Node(int index, Path directory, int port) {
+            this.index = index;
+            this.directory = directory;
+            this.port = port;
+            this.group = new ThreadGroup("peer-" + index);
+            this.driver = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(group, runnable, "peer-" + index + "-driver");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        void start() throws Exception {
+            call(() -> {
+                resident = new ConnectivityResident(port, directory, DiscoveryMode.MULTICAST);
+                peerId = resident.getPeerId();
+                return null;
+            });
+        }
+
+        <T> T call(Callable<T> task) throws Exception {
+            return driver.submit(task).get();
+        }
+
+        private List<Thread> threads() {
+            Thread[] threads = new Thread[group.activeCount() * 2 + 16];
+            int count = group.enumerate(threads, true);
+            return Arrays.asList(threads).subList(0, count);
+        }
+
+        long getCpuTime(ThreadMXBean bean) {
+            return threads().stream().mapToLong(thread -> Math.max(0, bean.getThreadCpuTime(thread.getId()))).sum();
+        }
+
+        long getAllocatedBytes(ThreadMXBean bean) {
+            if (!(bean instanceof com.sun.management.ThreadMXBean sunBean))
+                return -1;
+            return threads().stream()
+                    .mapToLong(thread -> Math.max(0, sunBean.getThreadAllocatedBytes(thread.getId())))
+                    .sum();
+        }
+
+        long getBytesReceived() {
+            return Metrics.getInstance().peer(peerId).getBytesReceived();
+        }
+
+        @Override
+        public void close() {
+            if (resident != null)
+                resident.disconnect();
+            driver.shutdownNow();
+        }
+    }
+
+    private final Options options;
+    private final List<Node> nodes = new ArrayList<>();
+    private final List<ShapingProxy> proxies = new ArrayList<>();
+    private final Random random = new Random(42);
+    private int nextFile;
+
+    public LoadTestHarness(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        Path root = Files.createTempDirectory("load-test");
+        LoadTestHarness harness = new LoadTestHarness(options);
+
+        try {
+            harness.run(root);
+        } finally {
+            harness.nodes.forEach(Node::close);
+            for (ShapingProxy proxy : harness.proxies)
+                proxy.close();
+            FileUtils.deleteDirectory(root.toFile());
+        }
+        System.exit(0);
+    }
+
+    private void run(Path root) throws Exception {
+        System.out.printf("peers=%d files=%d file-size=%d rounds=%d churn=%.2f network=%s%n",
+                options.peers(), options.files(), options.fileSize(), options.rounds(), options.churn(),
+                options.network());
+
+        for (int index = 0; index < options.peers(); index++) {
+            Node node = new Node(index, Files.createDirectories(root.resolve("peer-" + index)),
+                    options.basePort() + index);
+            node.start();
+            nodes.add(node);
+        }
+        connectAll();
+
+        Node first = nodes.get(0);
+        first.call(() -> {
+            for (int file = 0; file < options.files(); file++)
+                writeFile(first.directory, newFile());
+            return null;
+        });
+        measure("seed", () -> sendToAll(TreeActionsEnum.Sync, Paths.get("")));
+
+        for (String scenario : options.scenarios())
+            for (int round = 1; round <= options.rounds(); round++)
+                switch (scenario.trim()) {
+                    case "sync" -> {
+                        first.call(this::churn);
+                        measure("sync #" + round, () -> sendToAll(TreeActionsEnum.Sync, Paths.get("")));
+                    }
+                    case "fetch" -> {
+                        first.call(this::churn);
+                        measure("fetch #" + round, this::fetchFromFirst);
+                    }
+                    case "delete" -> {
+                        List<Path> deleted = first.call(this::delete);
+                        measure("delete #" + round, () -> {
+                            for (Path path : deleted)
+                                sendToAll(TreeActionsEnum.Delete, path);
+                        });
+                    }
+                    default -> throw new IllegalArgumentException("Unknown scenario: " + scenario);
+                }
+
+        report();
+    }
+
+    /**
+     * This method connects every peer to the peers started after it, so every pair of peers has one connection, and
+     * waits until every peer sees all the others. When the network is shaped, every connection goes through its own
+     * proxy.
+     */
+    private void connectAll() throws Exception {
+        for (Node from : nodes)
+            for (Node to : nodes.subList(from.index + 1, nodes.size())) {
+                InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), to.port);
+                if (options.network().isShaped()) {
+                    ShapingProxy proxy = new ShapingProxy(target, options.network());
+                    proxies.add(proxy);
+                    target = proxy.getAddress();
+                }
+
+                InetSocketAddress address = target;
+                from.call(() -> {
+                    for (int attempt = 0; ; attempt++) {
+                        try {
+                            from.resident.connectTo(address);
+                            return null;
+                        } catch (IOException e) {
+                            // the server socket of the peer is opened by its own thread
+                            if (attempt == 100)
+                                throw e;
+                            Thread.sleep(POLL_INTERVAL);
+                        }
+                    }
+                });
+            }
+
+        waitFor(() -> nodes.stream()
+                .allMatch(node -> node.resident.getConnectedDevices().size() == nodes.size() - 1));
+    }
+
+    private void sendToAll(TreeActionsEnum action, Path path) throws Exception {
+        Node first = nodes.get(0);
+        for (Node node : nodes.subList(1, nodes.size()))
+            first.call(() -> {
+                first.resident.sendAction(node.peerId, action, path);
+                return null;
+            });
+    }
+
+    private void fetchFromFirst() throws Exception {
+        Node first = nodes.get(0);
+        for (Node node : nodes.subList(1, nodes.size()))
+            node.call(() -> {
+                node.resident.sendAction(first.peerId, TreeActionsEnum.Fetch, Paths.get(""));
+                return null;
+            });
+    }
+
+    private interface Scenario {
+        void start() throws Exception;
+    }
+
+    /**
+     * This method starts a scenario and waits until all the directories are the same as the directory of the first
+     * peer, printing the time it took and the amount of data received by all the peers meanwhile
+     *
+     * @param name     The name of the round
+     * @param scenario The actions sent by the round
+     */
+    private void measure(String name, Scenario scenario) throws Exception {
+        long received = nodes.stream().mapToLong(Node::getBytesReceived).sum();
+        long start = System.nanoTime();
+
+        scenario.start();
+        boolean converged = waitFor(this::converged);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long bytes = nodes.stream().mapToLong(Node::getBytesReceived).sum() - received;
+        System.out.printf("%-10s %s in %8.3f s | %10d bytes | %8.2f MB/s%n",
+                name, converged ? "converged" : "TIMED OUT", seconds, bytes, bytes / seconds / (1 << 20));
+    }
+
+    private boolean converged() {
+        try {
+            Map<String, List<Long>> expected = snapshot(nodes.get(0).directory);
+            for (Node node : nodes.subList(1, nodes.size()))
+                if (!snapshot(node.directory).equals(expected))
+                    return false;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private interface Condition {
+        boolean holds() throws Exception;
+    }
+
+    private boolean waitFor(Condition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + options.timeout() * 1000;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline)
+                return false;
+            Thread.sleep(POLL_INTERVAL);
+        }
+        return true;
+    }
+
+    /**
+     * @param directory A synchronized directory
+     * @return The size and the modification time of every file of the directory, by relative path
+     */
+    private static Map<String, List<Long>> snapshot(Path directory) throws IOException {
+        Map<String, List<Long>> files = new HashMap<>();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Path relative = directory.relativize(path);
+                if (relative.startsWith(".peer") || !Files.isRegularFile(path))
+                    continue;
+                try {
+                    files.put(relative.toString(),
+                            List.of(Files.size(path), Files.getLastModifiedTime(path).toMillis()));
+                } catch (IOException ignored) {
+                    // the file was replaced while walking, the next poll sees it
+                }
+            }
+        }
+        return files;
+    }
+
+    private Path newFile() {
+        int file = nextFile++;
+        return Paths.get("dir" + file / FILES_PER_DIRECTORY, "file" + file + ".bin");
+    }
+
+    private void writeFile(Path directory, Path relative) throws IOException {
+        byte[] content = new byte[options.fileSize()];
+        random.nextBytes(content);
+        Path path = directory.resolve(relative);
+        Files.createDirectories(path.getParent());
+        Files.write(path, content);
+    }
+
+    /**
+     * @return The files of the first peer, in a stable order
+     */
+    private List<Path> files() throws IOException {
+        Path directory = nodes.get(0).directory;
+        return snapshot(directory).keySet().stream().sorted().map(Paths::get).toList();
+    }
+
+    private int churnCount() {
+        return Math.max(1, (int) (options.files() * options.churn()));
+    }
+
+    /**
+     * This method modifies a part of the files of the first peer and adds as many new files
+     */
+    private Void churn() throws IOException {
+        Path directory = nodes.get(0).directory;
+        List<Path> files = new ArrayList<>(files());
+        Collections.shuffle(files, random);
+
+        for (Path file : files.subList(0, Math.min(churnCount(), files.size())))
+            writeFile(directory, file);
+        for (int file = 0; file < churnCount(); file++)
+            writeFile(directory, newFile());
+        return null;
+    }
+
+    /**
+     * This method deletes a part of the files of the first peer
+     *
+     * @return The deleted files
+     */
+    private List<Path> delete() throws IOException {
+        Path directory = nodes.get(0).directory;
+        List<Path> files = new ArrayList<>(files());
+        Collections.shuffle(files, random);
+
+        List<Path> deleted = files.subList(0, Math.min(churnCount(), files.size()));
+        for (Path file : deleted)
+            Files.delete(directory.resolve(file));
+        return deleted;
+    }
+
+    private void report() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.println();
+        for (Node node : nodes)
+            System.out.printf("peer-%d cpu %8.1f ms | allocated %8.1f MB%n",
+                    node.index, node.getCpuTime(threads) / 1e6, node.getAllocatedBytes(threads) / 1e6);
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        System.out.printf("heap used %.1f MB of %.1f MB committed%n", heap.getUsed() / 1e6, heap.getCommitted() / 1e6);
+    }
+}
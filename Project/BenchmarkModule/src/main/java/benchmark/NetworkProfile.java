@@ -0,0 +1,63 @@
+package benchmark;
+
+import java.util.Locale;
+
+/**
+ * The conditions of a network emulated by a {@link ShapingProxy}
+ *
+ * @param rtt       The round trip time in milliseconds
+ * @param jitter    The largest random change of the one way delay in milliseconds, the order of the data is kept
+ * @param bandwidth The capacity of every direction in bits per second, or 0 for no limit
+ * @param dropRate  The probability with which a segment is lost and has to be sent again
+ * @param resetRate The probability with which a segment makes the connection reset
+ */
+public record NetworkProfile(long rtt, long jitter, long bandwidth, double dropRate, double resetRate) {
+    public static final NetworkProfile LOOPBACK = new NetworkProfile(0, 0, 0, 0, 0);
+    /**
+     * A gigabit wired network
+     */
+    public static final NetworkProfile LAN = new NetworkProfile(1, 0, 1_000_000_000L, 0, 0);
+    /**
+     * A busy home Wi-Fi network
+     */
+    public static final NetworkProfile WIFI = new NetworkProfile(30, 5, 100_000_000L, 0.001, 0);
+    /**
+     * A remote peer reached through a slow link
+     */
+    public static final NetworkProfile WAN = new NetworkProfile(80, 15, 20_000_000L, 0.005, 0);
+
+    public NetworkProfile {
+        if (rtt < 0 || jitter < 0 || bandwidth < 0)
+            throw new IllegalArgumentException("Invalid network profile: " + rtt + ", " + jitter + ", " + bandwidth);
+        if (dropRate < 0 || dropRate >= 1 || resetRate < 0 || resetRate >= 1)
+            throw new IllegalArgumentException("Invalid network profile: " + dropRate + ", " + resetRate);
+    }
+
+    /**
+     * @return Whether the profile changes the traffic at all
+     */
+    public boolean isShaped() {
+        return !equals(LOOPBACK);
+    }
+
+    /**
+     * @return The time in milliseconds after which a lost segment is sent again
+     */
+    public long retransmissionTimeout() {
+        return Math.max(200, 2 * rtt);
+    }
+
+    /**
+     * @param name The name of a preset, like "wifi"
+     * @return The preset
+     */
+    public static NetworkProfile forName(String name) {
+        return switch (name.toLowerCase(Locale.ROOT)) {
+            case "loopback" -> LOOPBACK;
+            case "lan" -> LAN;
+            case "wifi" -> WIFI;
+            case "wan" -> WAN;
+            default -> throw new IllegalArgumentException("Unknown network profile: " + name);
+        };
+    }
+}
@@ -0,0 +1,72 @@
+package benchmark;
+
+import connectivity.connection.Connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * This class is a connection that drops every file it is asked to send, used to measure the decisions of a deal
+ * without the cost of the transfers
+ */
+public class NullConnection implements Connection {
+    /**
+     * The number of files the connection was asked to send
+     */
+    private long sentFiles;
+
+    @Override
+    public Path receiveFile(Path to) {
+        return null;
+    }
+
+    @Override
+    public void sendFile(Path root, Path relativePath) {
+        sentFiles++;
+    }
+
+    @Override
+    public void sendFile(String relativePath, long modified, long size, InputStream content) throws IOException {
+        content.skipNBytes(size);
+        sentFiles++;
+    }
+
+    @Override
+    public String getName() {
+        return "null";
+    }
+
+    @Override
+    public String getAddress() {
+        return "null";
+    }
+
+    @Override
+    public String getPeerId() {
+        return "null";
+    }
+
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+
+    @Override
+    public boolean sendHeartbeat() {
+        return true;
+    }
+
+    @Override
+    public long getIdleTime() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public long getSentFiles() {
+        return sentFiles;
+    }
+}
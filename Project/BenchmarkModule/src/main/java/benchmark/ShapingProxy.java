@@ -0,0 +1,241 @@
+package benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is a TCP proxy on the loopback interface that makes the traffic going through it look like the traffic
+ * of a real network. A connection is routed through the proxy by connecting to {@link #getAddress()} instead of the
+ * address of the peer, for example with {@code Peer.connectDevice(proxy.getAddress())}.
+ * <p>
+ * Every direction of every connection is a delay line: the data read from one side is released to the other side
+ * after half the round trip time, changed by a random jitter, and no faster than the bandwidth. The order of the data
+ * is kept, so a segment that is late delays all the following ones, like the head of line blocking of TCP. A lost
+ * segment is emulated as a segment delayed by the retransmission timeout, and a reset as both sides of the connection
+ * being aborted.
+ */
+public class ShapingProxy implements Closeable {
+    private static final int SEGMENT_SIZE = 16 * 1024;
+    /**
+     * The number of segments in flight in every direction, which acts as the receive window of the emulated link
+     */
+    private static final int WINDOW = 256;
+
+    /**
+     * Data read from one side of a connection, waiting to be written to the other side
+     *
+     * @param data      The data, or null for the end of the stream
+     * @param releaseAt The moment in nanoseconds at which the data arrives at the other side
+     */
+    private record Segment(byte[] data, long releaseAt) {
+    }
+
+    private final InetSocketAddress target;
+    private final NetworkProfile profile;
+    private final Random random;
+    private final ServerSocket serverSocket;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "shaping-proxy");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The constructor starts accepting connections on a free port of the loopback interface, every one of them being
+     * forwarded to the target
+     *
+     * @param target  The address of the peer to which the connections are forwarded
+     * @param profile The conditions of the emulated network
+     * @throws IOException The proxy couldn't listen
+     */
+    public ShapingProxy(InetSocketAddress target, NetworkProfile profile) throws IOException {
+        this(target, profile, new Random());
+    }
+
+    public ShapingProxy(InetSocketAddress target, NetworkProfile profile, Random random) throws IOException {
+        this.target = target;
+        this.profile = profile;
+        this.random = random;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.execute(this::accept);
+    }
+
+    /**
+     * @return The address to connect to instead of the target
+     */
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server;
+                try {
+                    server = new Socket(target.getAddress(), target.getPort());
+                } catch (IOException e) {
+                    client.close();
+                    continue;
+                }
+
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                sockets.add(client);
+                sockets.add(server);
+                pipe(client, server);
+                pipe(server, client);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * This method starts moving the data of one direction of a connection
+     *
+     * @param from The socket from which the data is read
+     * @param to   The socket to which the data is written
+     */
+    private void pipe(Socket from, Socket to) {
+        BlockingQueue<Segment> line = new ArrayBlockingQueue<>(WINDOW);
+        executor.execute(() -> read(from, to, line));
+        executor.execute(() -> write(from, to, line));
+    }
+
+    private void read(Socket from, Socket to, BlockingQueue<Segment> line) {
+        long lastRelease = 0;
+
+        try (InputStream input = from.getInputStream()) {
+            byte[] buffer = new byte[SEGMENT_SIZE];
+            int read;
+
+            while ((read = input.read(buffer)) != -1) {
+                if (chance(profile.resetRate())) {
+                    abort(from, to);
+                    return;
+                }
+
+                long delay = profile.rtt() * 1_000_000 / 2 + jitter();
+                if (chance(profile.dropRate()))
+                    delay += profile.retransmissionTimeout() * 1_000_000;
+
+                lastRelease = Math.max(lastRelease, System.nanoTime() + delay);
+                line.put(new Segment(Arrays.copyOf(buffer, read), lastRelease));
+            }
+            line.put(new Segment(null, lastRelease));
+        } catch (IOException | InterruptedException e) {
+            abort(from, to);
+        }
+    }
+
+    private void write(Socket from, Socket to, BlockingQueue<Segment> line) {
+        long nextFree = System.nanoTime();
+
+        try {
+            OutputStream output = to.getOutputStream();
+
+            while (true) {
+                Segment segment = line.take();
+                sleepUntil(segment.releaseAt());
+
+                if (segment.data() == null) {
+                    to.shutdownOutput();
+                    return;
+                }
+
+                if (profile.bandwidth() > 0) {
+                    nextFree = Math.max(nextFree, System.nanoTime())
+                            + segment.data().length * 8L * 1_000_000_000L / profile.bandwidth();
+                    sleepUntil(nextFree);
+                }
+                output.write(segment.data());
+                output.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            abort(from, to);
+        }
+    }
+
+    /**
+     * @return A random change of the one way delay in nanoseconds, never making the delay negative
+     */
+    private long jitter() {
+        if (profile.jitter() == 0)
+            return 0;
+
+        long jitter;
+        synchronized (random) {
+            jitter = (long) ((random.nextDouble() * 2 - 1) * profile.jitter() * 1_000_000);
+        }
+        return Math.max(-profile.rtt() * 1_000_000 / 2, jitter);
+    }
+
+    private boolean chance(double probability) {
+        if (probability == 0)
+            return false;
+        synchronized (random) {
+            return random.nextDouble() < probability;
+        }
+    }
+
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+    }
+
+    /**
+     * This method resets both sides of a connection, as a middlebox dropping the connection would
+     */
+    private void abort(Socket from, Socket to) {
+        for (Socket socket : new Socket[]{from, to}) {
+            sockets.remove(socket);
+            try {
+                if (!socket.isClosed())
+                    socket.setSoLinger(true, 0);
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * This method resets every connection that goes through the proxy right now. New connections are still accepted,
+     * so the reconnection of the peers can be measured.
+     */
+    public void resetAll() {
+        for (Socket socket : sockets) {
+            sockets.remove(socket);
+            try {
+                socket.setSoLinger(true, 0);
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * This method stops accepting connections and resets the open ones
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        resetAll();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,76 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * This class generates a directory tree of empty files with a given shape, used by the benchmarks that scan, compare
+ * or delete trees. Every directory of the tree holds at least one file, so no directory is mistaken for an empty one.
+ */
+public class SyntheticTree {
+    /**
+     * The number of files in every directory of a wide tree
+     */
+    private static final int WIDE_FILES = 1000;
+    /**
+     * The number of files in every directory of a deep tree
+     */
+    private static final int DEEP_FILES = 4;
+    /**
+     * The number of nested directories of every chain of a deep tree
+     */
+    private static final int DEEP_DEPTH = 32;
+    /**
+     * The modification time of every generated file, so two generated trees are the same
+     */
+    private static final FileTime MODIFIED = FileTime.fromMillis(1_600_000_000_000L);
+
+    /**
+     * Enum with the possible shapes of a tree:
+     * A single level of directories under the root, each of them with many files.
+     * Chains of nested directories, each of them with a few files.
+     */
+    public enum Shape {
+        WIDE,
+        DEEP
+    }
+
+    private SyntheticTree() {
+    }
+
+    /**
+     * This method generates a tree
+     *
+     * @param root    The directory in which the tree is generated
+     * @param shape   The shape of the tree
+     * @param entries The number of files of the tree
+     * @throws IOException The tree couldn't be written
+     */
+    public static void generate(Path root, Shape shape, int entries) throws IOException {
+        int written = 0;
+
+        for (int branch = 0; written < entries; branch++) {
+            Path directory = root.resolve("b" + branch);
+
+            if (shape == Shape.WIDE) {
+                written += fill(Files.createDirectories(directory), Math.min(WIDE_FILES, entries - written));
+                continue;
+            }
+
+            for (int level = 0; level < DEEP_DEPTH && written < entries; level++) {
+                written += fill(Files.createDirectories(directory), Math.min(DEEP_FILES, entries - written));
+                directory = directory.resolve("d" + level);
+            }
+        }
+    }
+
+    private static int fill(Path directory, int files) throws IOException {
+        for (int file = 0; file < files; file++) {
+            Path path = Files.createFile(directory.resolve("f" + file + ".dat"));
+            Files.setLastModifiedTime(path, MODIFIED);
+        }
+        return files;
+    }
+}
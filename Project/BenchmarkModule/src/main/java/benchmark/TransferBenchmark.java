@@ -0,0 +1,163 @@
+package benchmark;
+
+import connectivity.bandwidth.Throttle;
+import connectivity.connection.ConnectionReceiver;
+import connectivity.connection.ConnectionSender;
+import connectivity.metrics.PeerStats;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * This class measures the time in which a file is sent by a {@link ConnectionSender} and received by a
+ * {@link ConnectionReceiver} over a loopback socket, for several sizes of the file and of the chunks in which it is
+ * sent. The file is written once per trial and received again in every invocation, so the page cache of the
+ * operating system holds it after the warmup.
+ * <p>
+ * The default sizes stay small enough for a laptop. The largest files are measured by overriding the parameter, for
+ * example: java -jar benchmarks.jar TransferBenchmark -p fileSize=1GB,4GB
+ * <p>
+ * The socket can be routed through a {@link ShapingProxy} emulating a real network, for example:
+ * java -jar benchmarks.jar TransferBenchmark -p network=lan,wifi,wan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+    private static final Path FILE = Paths.get("payload.bin");
+
+    /**
+     * The size of the sent file, in bytes or with a KB, MB or GB suffix
+     */
+    @Param({"1KB", "64KB", "1MB", "64MB"})
+    public String fileSize;
+
+    /**
+     * The size in bytes of the chunks in which the file is read, sent and received
+     */
+    @Param({"1024", "8192", "65536"})
+    public int chunkSize;
+
+    /**
+     * The name of the {@link NetworkProfile} of the network between the sender and the receiver
+     */
+    @Param({"loopback"})
+    public String network;
+
+    private Path source;
+    private Path target;
+    private Socket client;
+    private Socket server;
+    private ConnectionSender sender;
+    private ConnectionReceiver receiver;
+    private ExecutorService executor;
+    private ShapingProxy proxy;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = Files.createTempDirectory("benchmark-source");
+        target = Files.createTempDirectory("benchmark-target");
+        writePayload(source.resolve(FILE), parseSize(fileSize));
+
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+            NetworkProfile profile = NetworkProfile.forName(network);
+
+            if (profile.isShaped()) {
+                proxy = new ShapingProxy(address, profile);
+                address = proxy.getAddress();
+            }
+            client = new Socket(address.getAddress(), address.getPort());
+            server = serverSocket.accept();
+        }
+
+        sender = new ConnectionSender(client, new PeerStats(), chunkSize);
+        receiver = new ConnectionReceiver(server, new PeerStats(), chunkSize, Throttle.UNLIMITED, null);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        client.close();
+        server.close();
+        if (proxy != null)
+            proxy.close();
+        FileUtils.deleteDirectory(source.toFile());
+        FileUtils.deleteDirectory(target.toFile());
+    }
+
+    /**
+     * This benchmark sends the file on a separate thread, as the peer at the other end of the socket would, and
+     * receives it on the benchmark thread
+     *
+     * @return The path of the received file
+     */
+    @Benchmark
+    public Path transfer() throws Exception {
+        Future<?> sent = executor.submit(() -> {
+            sender.sendFile(source, FILE);
+            return null;
+        });
+
+        Path received;
+        while ((received = receiver.receiveFile(target)) == null)
+            Thread.onSpinWait();
+
+        sent.get();
+        return received;
+    }
+
+    /**
+     * This method writes a file of random bytes, so no layer below can compress it
+     *
+     * @param file The file to write
+     * @param size The size of the file in bytes
+     */
+    private static void writePayload(Path file, long size) throws IOException {
+        byte[] block = new byte[1 << 20];
+        new Random(size).nextBytes(block);
+
+        try (OutputStream os = Files.newOutputStream(file)) {
+            while (size > 0) {
+                int length = (int) Math.min(block.length, size);
+                os.write(block, 0, length);
+                size -= length;
+            }
+        }
+    }
+
+    /**
+     * @param size A size in bytes, or with a KB, MB or GB suffix
+     * @return The size in bytes
+     */
+    static long parseSize(String size) {
+        String value = size.trim().toUpperCase();
+        long unit = 1;
+
+        if (value.endsWith("KB"))
+            unit = 1L << 10;
+        else if (value.endsWith("MB"))
+            unit = 1L << 20;
+        else if (value.endsWith("GB"))
+            unit = 1L << 30;
+
+        if (unit != 1)
+            value = value.substring(0, value.length() - 2);
+        return Long.parseLong(value.trim()) * unit;
+    }
+}
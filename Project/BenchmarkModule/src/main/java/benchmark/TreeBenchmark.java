@@ -0,0 +1,138 @@
+package benchmark;
+
+import george.resident.SynchronizedDirectory;
+import george.resident.tree.FileSystemTree;
+import george.resident.tree.TreeDirectory;
+import george.resident.tree.actions.DeleteDeal;
+import george.resident.tree.actions.PushDeal;
+import george.resident.tree.actions.TreeActionsEnum;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class measures the work every sync does on the trees of a synchronized directory: building the tree from the
+ * disk, writing it as JSON, reading it back as {@link george.resident.sync.UpcomingFileThread} does, and deciding
+ * which files a {@link PushDeal} sends and a {@link DeleteDeal} deletes. The trees are generated in a temporary
+ * directory with the shape and the number of files given by the parameters.
+ * <p>
+ * The allocation rate is measured with the GC profiler, and the largest trees by overriding the parameter, for
+ * example: java -jar benchmarks.jar TreeBenchmark -prof gc -p entries=1000000,5000000
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TreeBenchmark {
+    @Param({"WIDE", "DEEP"})
+    public SyntheticTree.Shape shape;
+
+    @Param({"10000", "100000"})
+    public int entries;
+
+    private Path root;
+    private SynchronizedDirectory synchronizedDirectory;
+    private FileSystemTree tree;
+    private String json;
+    /**
+     * The tree of a peer on which every hundredth file is older than ours
+     */
+    private FileSystemTree outdatedTree;
+    /**
+     * The tree of a peer that deleted files that we don't have anymore, so the deal walks the whole tree without
+     * deleting anything
+     */
+    private TreeDirectory deletedTree;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("benchmark-tree");
+        SyntheticTree.generate(root, shape, entries);
+        synchronizedDirectory = new SynchronizedDirectory(root);
+
+        tree = new FileSystemTree(synchronizedDirectory.getTree(Paths.get("")), TreeActionsEnum.Sync);
+        StringWriter writer = new StringWriter();
+        tree.toJSON(writer);
+        json = writer.toString();
+
+        TreeDirectory outdated = synchronizedDirectory.getTree(Paths.get(""));
+        age(outdated, new int[]{0});
+        outdatedTree = new FileSystemTree(outdated, TreeActionsEnum.Sync);
+
+        deletedTree = synchronizedDirectory.getTree(Paths.get(""));
+        rename(deletedTree);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Benchmark
+    public TreeDirectory getTree() {
+        return synchronizedDirectory.getTree(Paths.get(""));
+    }
+
+    @Benchmark
+    public void toJSON() {
+        tree.toJSON(Writer.nullWriter());
+    }
+
+    @Benchmark
+    public FileSystemTree parse() {
+        return FileSystemTree.fromJSON(new StringReader(json));
+    }
+
+    /**
+     * @return The number of files the deal decided to send, about one in a hundred
+     */
+    @Benchmark
+    public long push() throws Exception {
+        NullConnection connection = new NullConnection();
+        new PushDeal(connection, outdatedTree, root).deal();
+        return connection.getSentFiles();
+    }
+
+    @Benchmark
+    public void delete() throws Exception {
+        new DeleteDeal(deletedTree, root).deal();
+    }
+
+    /**
+     * This method makes every hundredth file of a tree older, as if the peer didn't get its last change yet
+     *
+     * @param directory The tree to change
+     * @param counter   The number of files seen so far
+     */
+    private static void age(TreeDirectory directory, int[] counter) {
+        for (Map.Entry<String, Long> file : directory.getFiles().entrySet())
+            if (counter[0]++ % 100 == 0)
+                file.setValue(file.getValue() - 1000);
+
+        directory.getDirectories().values().forEach(child -> age(child, counter));
+    }
+
+    /**
+     * This method gives every file of a tree a name that doesn't exist on the disk, keeping the directories
+     *
+     * @param directory The tree to change
+     */
+    private static void rename(TreeDirectory directory) {
+        Map<String, Long> files = directory.getFiles();
+        Map<String, Long> renamed = Map.copyOf(files);
+        files.clear();
+        renamed.forEach((name, modified) -> files.put(name + ".deleted", modified));
+
+        directory.getDirectories().values().forEach(TreeBenchmark::rename);
+    }
+}
@@ -0,0 +1,90 @@
+package benchmark;
+
+import george.resident.tree.CompactTreeDirectory;
+import george.resident.tree.TreeDirectory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.Reference;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class measures the heap kept by a tree of a synchronized directory, as maps in every {@link TreeDirectory} and
+ * as a {@link CompactTreeDirectory}, and prints the bytes kept for every entry, file or directory. The trees are
+ * built in memory with the shapes of the {@link SyntheticTree}, and every file has its own name object, as in a tree
+ * read from JSON without sharing the names. The heap is measured after a few full collections, so the check should
+ * run with a heap large enough for both trees and nothing else running, for example:
+ * java -Xmx8g -cp benchmarks.jar benchmark.TreeFootprint --entries=5000000
+ * <p>
+ * Usage: java -cp benchmarks.jar benchmark.TreeFootprint [--entries=1000000] [--shape=WIDE|DEEP]
+ */
+public class TreeFootprint {
+    private static final int WIDE_FILES = 1000;
+    private static final int DEEP_FILES = 4;
+    private static final int DEEP_DEPTH = 32;
+    private static final long MODIFIED = 1_600_000_000_000L;
+
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            String[] pair = arg.replaceFirst("^--", "").split("=", 2);
+            values.put(pair[0], pair.length > 1 ? pair[1] : "true");
+        }
+        int entries = Integer.parseInt(values.getOrDefault("entries", "1000000"));
+        SyntheticTree.Shape shape = SyntheticTree.Shape.valueOf(values.getOrDefault("shape", "WIDE"));
+
+        long empty = usedHeap();
+        TreeDirectory maps = generate(shape, entries);
+        long mapsBytes = usedHeap() - empty;
+
+        CompactTreeDirectory compact = CompactTreeDirectory.copyOf(maps);
+        maps = null;
+        long compactBytes = usedHeap() - empty;
+
+        System.out.printf("%s tree, %d entries | maps: %.1f B/entry | compact: %.1f B/entry | %.1fx smaller%n",
+                shape, entries, (double) mapsBytes / entries, (double) compactBytes / entries,
+                (double) mapsBytes / compactBytes);
+        // The compact tree must be reachable until it was measured
+        Reference.reachabilityFence(compact);
+    }
+
+    /**
+     * This method builds a tree with about the given number of entries, counting the directories
+     */
+    private static TreeDirectory generate(SyntheticTree.Shape shape, int entries) {
+        TreeDirectory root = new TreeDirectory();
+        int count = 0;
+        for (int chain = 0; count < entries; chain++) {
+            Path directory = Paths.get("directory-" + chain);
+            count++;
+            if (shape == SyntheticTree.Shape.WIDE) {
+                for (int file = 0; file < WIDE_FILES && count < entries; file++, count++)
+                    root.addFile(directory.resolve("file-" + file + ".txt"), MODIFIED, null);
+                continue;
+            }
+            for (int depth = 0; depth < DEEP_DEPTH && count < entries; depth++) {
+                for (int file = 0; file < DEEP_FILES && count < entries; file++, count++)
+                    root.addFile(directory.resolve("file-" + file + ".txt"), MODIFIED, null);
+                directory = directory.resolve("level-" + depth);
+                count++;
+            }
+        }
+        return root;
+    }
+
+    /**
+     * @return The bytes of the heap used after a few full collections
+     */
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
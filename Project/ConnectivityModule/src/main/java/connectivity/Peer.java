@@ -1,24 +1,45 @@
 package connectivity;
 
 import connectivity.broadcast.Broadcast;
+import connectivity.broadcast.Discovery;
+import connectivity.broadcast.DiscoveryMode;
+import connectivity.broadcast.MulticastDiscovery;
 import connectivity.connection.Connection;
 import connectivity.connection.ConnectionsManager;
+import connectivity.connection.HeartbeatMonitor;
 import connectivity.connection.LocalConnection;
+import connectivity.connection.ReconnectStats;
+import connectivity.connection.ReconnectSupervisor;
 import connectivity.exceptions.BroadcastFailedException;
-import connectivity.exceptions.DeviceAlreadyConnectedException;
 import connectivity.exceptions.DeviceConnectException;
+import connectivity.tracing.PollWaitEvent;
+import connectivity.tracing.SessionTracer;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.*;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 /**
  * This class is used to simulate a client and is the main class of Connectivity
  * Module
  */
 public class Peer implements Closeable {
+    /**
+     * The shortest and the longest time in milliseconds {@link #incomingFile(Path)} waits before looking at the
+     * connections again. In between, it waits a twentieth of the time since the last file arrived: the peers that are
+     * exchanging files are answered quickly, and the idle ones are looked at rarely.
+     */
+    private static final long MIN_POLL_WAIT = 10;
+    private static final long MAX_POLL_WAIT = 1000;
+    /**
+     * The number of files that are received at the same time, the other connections waiting for a free receiver
+     */
+    private static final int RECEIVER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
     /**
      * The variable is implementing the ConnectionManager, and it will be used to
      * manage all the connection a client
@@ -26,10 +47,46 @@ public class Peer implements Closeable {
      */
     private final ConnectionsManager connectionsManager;
     /**
-     * This variable is of type Broadcast, and it will be used to manage the
-     * simulated broadcast through our local network
+     * This variable is of type Discovery, and it will be used to find the other
+     * peers through our local network
+     */
+    private final Discovery broadcast;
+    /**
+     * This variable is the ID of the current peer, sent to every connected peer during the handshake
+     */
+    private final String peerId;
+    /**
+     * This variable reconnects the peers the user connected to when their
+     * connections are lost
+     */
+    private final ReconnectSupervisor reconnectSupervisor;
+    /**
+     * This variable sends heartbeats through the connections and evicts the
+     * connections whose other end stopped answering
      */
-    private final Broadcast broadcast;
+    private final HeartbeatMonitor heartbeatMonitor;
+    /**
+     * The time in milliseconds the last file arrived at
+     */
+    private long lastArrival = System.currentTimeMillis();
+    /**
+     * The files received and not returned by {@link #incomingFile(Path)} yet, in the order they arrived in
+     */
+    private final BlockingQueue<Map.Entry<Connection, Path>> received = new LinkedBlockingQueue<>();
+    /**
+     * The connections from which a file is being received
+     */
+    private final Set<Connection> receiving = ConcurrentHashMap.newKeySet();
+    /**
+     * The threads that receive the files, one connection at a time each, so a slow connection doesn't keep the files
+     * of the others waiting. A connection that isn't sending anything frees its thread right away, so a bounded pool
+     * is enough for many connections.
+     */
+    private final ExecutorService receivers = Executors.newFixedThreadPool(RECEIVER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "receiver");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * The constructor starts a new broadcast through local network, at the given
@@ -44,10 +101,47 @@ public class Peer implements Closeable {
      * @throws SocketException
      */
     public Peer(int port) throws PortUnreachableException, SocketException {
+        this(port, DiscoveryMode.BROADCAST);
+    }
+
+    /**
+     * The constructor starts finding the other peers of the local network with the
+     * given discovery mode. A broadcast is sent every 5 seconds, while the
+     * multicast announcements are jittered and back off while the peer set is stable.
+     *
+     * @param port          The port value of a client through which every connection will be
+     *                      made
+     * @param discoveryMode The way in which the other peers are found
+     * @throws PortUnreachableException
+     * @throws SocketException
+     */
+    public Peer(int port, DiscoveryMode discoveryMode) throws PortUnreachableException, SocketException {
+        this(port, discoveryMode, UUID.randomUUID().toString());
+    }
+
+    /**
+     * The constructor starts finding the other peers of the local network with the
+     * given discovery mode, using the given ID in the handshake of every connection.
+     * A peer that keeps its ID between restarts replaces its old connections when
+     * it reconnects.
+     *
+     * @param port          The port value of a client through which every connection will be
+     *                      made
+     * @param discoveryMode The way in which the other peers are found
+     * @param peerId        The ID of the current peer
+     * @throws PortUnreachableException
+     * @throws SocketException
+     */
+    public Peer(int port, DiscoveryMode discoveryMode, String peerId) throws PortUnreachableException, SocketException {
         if (!portIsAvailable(port))
             throw new PortUnreachableException("port " + port + " is not available");
-        this.broadcast = new Broadcast(port, 5);
-        connectionsManager = ConnectionsManager.getInstance(port);
+        this.peerId = peerId;
+        this.broadcast = discoveryMode == DiscoveryMode.MULTICAST
+                ? new MulticastDiscovery(port)
+                : new Broadcast(port, 5);
+        connectionsManager = new ConnectionsManager(port, peerId);
+        reconnectSupervisor = new ReconnectSupervisor(connectionsManager.getRegistry(), peerId);
+        heartbeatMonitor = new HeartbeatMonitor(connectionsManager.getRegistry(), this::connectionLost);
         new Thread(connectionsManager).start();
     }
 
@@ -74,7 +168,9 @@ public class Peer implements Closeable {
     /**
      * This method search through all available connections and when a connection is
      * sending a file, a new map entry in
-     * returned, having as key that connection, and as value the path to that file
+     * returned, having as key that connection, and as value the path to that file.
+     * The files are received by a thread for every connection that is sending one, and returned in the order they
+     * arrived in. While nothing arrives the connections are looked at less and less often, up to every second.
      *
      * @param to A path to the new received file
      * @return A map entry having as key a connection, and as value the path to a
@@ -83,18 +179,28 @@ public class Peer implements Closeable {
     public synchronized Map.Entry<Connection, Path> incomingFile(Path to) {
         while (!Thread.currentThread().isInterrupted()) {
             try {
+                Map.Entry<Connection, Path> entry = received.poll();
+                if (entry != null)
+                    return entry;
+
                 for (Connection connection : connectionsManager.getConnections()) {
-                    if(connection.isClosed())
-                        disconnectDevice(connection);
-                    try {
-                        Path path = connection.receiveFile(to);
-                        if (path != null)
-                            return new AbstractMap.SimpleImmutableEntry<>(connection, path);
-                    } catch (IOException e) {
-                        return new AbstractMap.SimpleImmutableEntry<>(connection, null);
+                    if(connection.isClosed()) {
+                        connectionLost(connection);
+                        continue;
                     }
+                    if (receiving.add(connection))
+                        receivers.execute(() -> receive(connection, to));
                 }
-                wait(5000);
+                if (!received.isEmpty())
+                    continue;
+
+                PollWaitEvent event = new PollWaitEvent();
+                event.begin();
+                long start = System.nanoTime();
+                long idle = System.currentTimeMillis() - lastArrival;
+                wait(Math.max(MIN_POLL_WAIT, Math.min(idle / 20, MAX_POLL_WAIT)));
+                SessionTracer.getInstance().waited(System.nanoTime() - start);
+                event.commit();
             } catch (InterruptedException ex) {
                 Thread.currentThread().interrupt();
             }
@@ -103,46 +209,152 @@ public class Peer implements Closeable {
         return null;
     }
 
+    /**
+     * This method receives the file a connection is sending, if it is sending one, and wakes up
+     * {@link #incomingFile(Path)} when it arrived. A connection that failed is returned with a null path.
+     *
+     * @param connection The connection
+     * @param to A path to the new received file
+     */
+    private void receive(Connection connection, Path to) {
+        Map.Entry<Connection, Path> entry = null;
+        try {
+            Path path = connection.receiveFile(to);
+            if (path != null)
+                entry = new AbstractMap.SimpleImmutableEntry<>(connection, path);
+        } catch (IOException e) {
+            entry = new AbstractMap.SimpleImmutableEntry<>(connection, null);
+        } finally {
+            if (entry != null)
+                received.add(entry);
+            receiving.remove(connection);
+        }
+
+        if (entry != null) {
+            synchronized (this) {
+                lastArrival = System.currentTimeMillis();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * This method returns the active connection to a peer
+     *
+     * @param peerId The ID of the peer
+     * @return The connection to the peer, or null if it is not connected
+     */
+    public Connection getConnection(String peerId) {
+        return connectionsManager.getRegistry().get(peerId);
+    }
+
     /**
      * This method is adding a new connection to the list of current active
-     * connections
+     * connections. An older connection to the same peer is replaced and closed.
+     * The connection is supervised: if it is lost, it is made again automatically.
      *
      * @param device The address of the new device which is wanted to be added in
      *               the list of active connections
-     * @throws DeviceConnectException
-     * @throws DeviceAlreadyConnectedException This is thrown if that specific
-     *                                         device is
-     *                                         already in the list of connections
+     * @throws DeviceConnectException The device couldn't be reached or the handshake failed
      */
     public void connectDevice(InetAddress device) throws DeviceConnectException {
+        connectDevice(new InetSocketAddress(device, getPort()));
+    }
+
+    /**
+     * This method is adding a new connection to a peer listening on the given
+     * address and port, which may differ from the port of the current peer, like
+     * for the peers started in the same process on the loopback interface.
+     *
+     * @param device The address and port of the device
+     * @throws DeviceConnectException The device couldn't be reached or the handshake failed
+     */
+    public void connectDevice(InetSocketAddress device) throws DeviceConnectException {
         LocalConnection connection;
         try {
-            connection = new LocalConnection(device, getPort());
+            connection = new LocalConnection(device.getAddress(), device.getPort(), peerId);
         } catch (IOException e) {
             throw new DeviceConnectException(e);
         }
 
-        var connections = connectionsManager.getConnections();
-        connections.stream()
-                .filter(c -> c.equals(connection))
-                .findFirst()
-                .ifPresent(this::disconnectDevice);
-        connections.add(connection);
+        connectionsManager.getRegistry().register(connection);
+        reconnectSupervisor.supervise(connection, device.getAddress(), device.getPort());
     }
 
     /**
      * This method closed a connection of a device, removing the connection from the
      * list of connections and closing the
-     * connection
+     * connection. The device is not reconnected anymore.
      *
      * @param device The connection which is wanted to be closed
      */
     public void disconnectDevice(Connection device) {
-        connectionsManager.getConnections().remove(device);
+        reconnectSupervisor.forget(device.getPeerId());
+        closeConnection(device);
+    }
+
+    /**
+     * This method removes a connection that failed and closes it. If the user
+     * connected to that device, it is reconnected with an exponential backoff.
+     *
+     * @param device The connection that failed
+     */
+    public void connectionLost(Connection device) {
+        if (closeConnection(device))
+            reconnectSupervisor.lost(device);
+    }
+
+    /**
+     * @return Whether the connection was still registered, it isn't if it was already
+     *         replaced or removed
+     */
+    private boolean closeConnection(Connection device) {
+        boolean registered = connectionsManager.getRegistry().unregister(device);
         try {
             device.close();
         } catch (IOException ignored) {
         }
+        return registered;
+    }
+
+    /**
+     * This method adds a listener called with every connection that was restored
+     * after it was lost, so the interrupted work can be resumed
+     *
+     * @param listener The listener to add
+     */
+    public void addReconnectListener(Consumer<Connection> listener) {
+        reconnectSupervisor.addListener(listener);
+    }
+
+    /**
+     * This method returns the reconnection history of the supervised peers
+     *
+     * @return The number of reconnects and the downtime, by peer ID
+     */
+    public Map<String, ReconnectStats> getReconnectStats() {
+        return reconnectSupervisor.getStats();
+    }
+
+    /**
+     * This method changes how the dead connections are found. A connection on which
+     * nothing was received for missThreshold intervals is closed, which makes the
+     * transfers waiting on it fail right away.
+     *
+     * @param interval      The interval between two heartbeats in milliseconds
+     * @param missThreshold The number of missed heartbeats after which a connection is dead
+     */
+    public void configureHeartbeat(long interval, int missThreshold) {
+        heartbeatMonitor.configure(interval, missThreshold);
+    }
+
+    /**
+     * This method returns the ID of the current peer
+     *
+     * @return The ID sent during the handshake of every connection
+     */
+    public String getPeerId() {
+        return peerId;
     }
 
     /**
@@ -181,14 +393,16 @@ public class Peer implements Closeable {
 
     /**
      * This method is used to auto close the broadcast variable and the
-     * connectionManager variable
+     * connectionManager variable, together with every connection of the peer
      *
      * @throws IOException
      */
     @Override
     public void close() throws IOException {
         broadcast.close();
-        // TODO: Close connectionsManager
+        reconnectSupervisor.close();
+        heartbeatMonitor.close();
         connectionsManager.stop();
+        receivers.shutdownNow();
     }
 }
\ No newline at end of file
@@ -0,0 +1,94 @@
+package connectivity.bandwidth;
+
+import connectivity.metrics.Histogram;
+import connectivity.metrics.Metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps the bandwidth limits of the application: an upload and a download limit shared by all the peers,
+ * and an upload and a download limit for every peer. The limits can be changed at any time, the connections that
+ * are transferring a file see the change at their next chunk. A limit of 0 means no limit.
+ * The time the chunks waited for bandwidth is kept in the "bandwidth.upload.wait" and "bandwidth.download.wait"
+ * histograms.
+ */
+public class BandwidthLimits {
+    private static final BandwidthLimits instance = new BandwidthLimits();
+
+    private final TokenBucket globalUpload = new TokenBucket();
+    private final TokenBucket globalDownload = new TokenBucket();
+    private final Map<String, TokenBucket> peerUploads = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> peerDownloads = new ConcurrentHashMap<>();
+    private final Histogram uploadWaits = Metrics.getInstance().histogram("bandwidth.upload.wait");
+    private final Histogram downloadWaits = Metrics.getInstance().histogram("bandwidth.download.wait");
+
+    private BandwidthLimits() {
+    }
+
+    /**
+     * @return The limits shared by the whole application
+     */
+    public static BandwidthLimits getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param peerId The ID of a peer
+     * @return The throttle of the data sent to the peer
+     */
+    public Throttle upload(String peerId) {
+        return new Throttle(peerUploads.computeIfAbsent(peerId, id -> new TokenBucket()), globalUpload, uploadWaits);
+    }
+
+    /**
+     * @param peerId The ID of a peer
+     * @return The throttle of the data received from the peer
+     */
+    public Throttle download(String peerId) {
+        return new Throttle(peerDownloads.computeIfAbsent(peerId, id -> new TokenBucket()), globalDownload, downloadWaits);
+    }
+
+    /**
+     * This method changes the limits shared by all the peers
+     * @param upload The upload limit in bytes per second, 0 for no limit
+     * @param download The download limit in bytes per second, 0 for no limit
+     */
+    public void setGlobal(long upload, long download) {
+        globalUpload.setRate(upload);
+        globalDownload.setRate(download);
+    }
+
+    /**
+     * This method changes the limits of a peer
+     * @param peerId The ID of the peer
+     * @param upload The upload limit in bytes per second, 0 for no limit
+     * @param download The download limit in bytes per second, 0 for no limit
+     */
+    public void setPeer(String peerId, long upload, long download) {
+        peerUploads.computeIfAbsent(peerId, id -> new TokenBucket()).setRate(upload);
+        peerDownloads.computeIfAbsent(peerId, id -> new TokenBucket()).setRate(download);
+    }
+
+    public long getGlobalUpload() {
+        return globalUpload.getRate();
+    }
+
+    public long getGlobalDownload() {
+        return globalDownload.getRate();
+    }
+
+    /**
+     * @return The upload and download limits of the peers that have at least one of them, by peer ID
+     */
+    public Map<String, long[]> getPeerLimits() {
+        Map<String, long[]> limits = new TreeMap<>();
+        peerUploads.forEach((peerId, bucket) -> {
+            long download = peerDownloads.containsKey(peerId) ? peerDownloads.get(peerId).getRate() : 0;
+            if (bucket.getRate() > 0 || download > 0)
+                limits.put(peerId, new long[]{bucket.getRate(), download});
+        });
+        return limits;
+    }
+}
@@ -0,0 +1,38 @@
+package connectivity.bandwidth;
+
+import connectivity.metrics.Histogram;
+
+import java.io.InterruptedIOException;
+
+/**
+ * This class limits one direction of a connection: a chunk takes the tokens of the bucket of its peer first and the
+ * tokens of the bucket shared by all the peers after that, so a peer held back by its own limit doesn't keep the
+ * others waiting on the shared one. The time spent waiting is kept in a histogram.
+ */
+public class Throttle {
+    /**
+     * The throttle of a connection that is never limited
+     */
+    public static final Throttle UNLIMITED = new Throttle(new TokenBucket(), new TokenBucket(), new Histogram());
+
+    private final TokenBucket peer;
+    private final TokenBucket global;
+    private final Histogram waits;
+
+    /*default*/ Throttle(TokenBucket peer, TokenBucket global, Histogram waits) {
+        this.peer = peer;
+        this.global = global;
+        this.waits = waits;
+    }
+
+    /**
+     * This method waits until a chunk can go through the connection
+     * @param bytes The size of the chunk
+     * @throws InterruptedIOException The thread was interrupted while waiting
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long waited = peer.acquire(bytes) + global.acquire(bytes);
+        if (waited > 0)
+            waits.record(waited / 1000);
+    }
+}
@@ -0,0 +1,83 @@
+package connectivity.bandwidth;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class limits the rate at which bytes go through a connection, or through all of them. A bucket fills with
+ * one token per byte at the given rate, up to a tenth of a second of data, and every chunk takes as many tokens as it
+ * has bytes, waiting for them if the bucket is empty. A chunk larger than the bucket takes all of it and leaves it in
+ * debt, so the next chunks wait longer.
+ * The threads waiting for tokens are served in the order in which they came, so the connections sharing a bucket take
+ * turns instead of one of them taking all the tokens.
+ */
+public class TokenBucket {
+    /**
+     * The longest time a thread sleeps at once, so a new rate is seen quickly
+     */
+    private static final long MAX_SLEEP = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MIN_BURST = 16 * 1024;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    /**
+     * The rate in bytes per second, or 0 if the bucket doesn't limit anything
+     */
+    private volatile long rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * This method changes the rate of the bucket, even while threads are waiting for tokens
+     * @param rate The rate in bytes per second, or 0 to stop limiting
+     */
+    public void setRate(long rate) {
+        if (rate < 0)
+            throw new IllegalArgumentException("Invalid rate: " + rate);
+        this.rate = rate;
+    }
+
+    /**
+     * This method takes the tokens for a chunk, waiting until the bucket has them
+     * @param bytes The size of the chunk
+     * @return The time in nanoseconds spent waiting
+     * @throws InterruptedIOException The thread was interrupted while waiting
+     */
+    public long acquire(int bytes) throws InterruptedIOException {
+        if (rate == 0)
+            return 0;
+
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            while (true) {
+                long currentRate = rate;
+                if (currentRate == 0)
+                    return System.nanoTime() - start;
+
+                double burst = Math.max(MIN_BURST, currentRate / 10.0);
+                long now = System.nanoTime();
+                tokens = Math.min(burst, tokens + (now - lastRefill) * currentRate / 1e9);
+                lastRefill = now;
+
+                double needed = Math.min(bytes, burst);
+                if (tokens >= needed) {
+                    tokens -= bytes;
+                    return System.nanoTime() - start;
+                }
+
+                long sleep = Math.min(MAX_SLEEP, (long) ((needed - tokens) * 1e9 / currentRate));
+                TimeUnit.NANOSECONDS.sleep(Math.max(1, sleep));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        } finally {
+            lock.unlock();
+        }
+    }
+}
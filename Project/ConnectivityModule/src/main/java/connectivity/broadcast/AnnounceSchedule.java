@@ -0,0 +1,88 @@
+package connectivity.broadcast;
+
+import java.util.Random;
+
+/**
+ * This class computes the delay between two announcements of the same peer. The delay starts at a minimum period,
+ * grows geometrically while the set of known peers doesn't change and goes back to the minimum period as soon as a
+ * change is seen. Every delay is randomized so that the peers of a network don't announce themselves in lockstep.
+ */
+public class AnnounceSchedule {
+    /**
+     * The shortest period between two announcements, in milliseconds
+     */
+    private final long minPeriod;
+    /**
+     * The longest period between two announcements, in milliseconds
+     */
+    private final long maxPeriod;
+    /**
+     * The factor by which the period grows after every announcement of a stable peer set
+     */
+    private final double backoff;
+    /**
+     * The fraction of the period that is randomized, a jitter of 0.5 means the delay is picked from
+     * [0.75 * period, 1.25 * period)
+     */
+    private final double jitter;
+    private final Random random;
+    /**
+     * The period before the jitter is applied
+     */
+    private long period;
+
+    /**
+     * The constructor initializes the schedule at its minimum period
+     *
+     * @param minPeriod The shortest period in milliseconds
+     * @param maxPeriod The longest period in milliseconds
+     * @param backoff   The growth factor of the period, at least 1
+     * @param jitter    The randomized fraction of the period, between 0 and 1
+     * @param random    The source of randomness
+     */
+    public AnnounceSchedule(long minPeriod, long maxPeriod, double backoff, double jitter, Random random) {
+        if (minPeriod <= 0 || maxPeriod < minPeriod)
+            throw new IllegalArgumentException("Invalid announce periods: " + minPeriod + ", " + maxPeriod);
+        if (backoff < 1 || jitter < 0 || jitter > 1)
+            throw new IllegalArgumentException("Invalid backoff or jitter: " + backoff + ", " + jitter);
+        this.minPeriod = minPeriod;
+        this.maxPeriod = maxPeriod;
+        this.backoff = backoff;
+        this.jitter = jitter;
+        this.random = random;
+        this.period = minPeriod;
+    }
+
+    /**
+     * This method returns the delay until the next announcement
+     *
+     * @param peerSetChanged Whether a peer joined or left since the previous announcement
+     * @return The delay in milliseconds
+     */
+    public synchronized long nextDelay(boolean peerSetChanged) {
+        if (peerSetChanged)
+            period = minPeriod;
+        else
+            period = Math.min(maxPeriod, (long) (period * backoff));
+
+        double factor = 1 - jitter / 2 + random.nextDouble() * jitter;
+        return Math.max(1, (long) (period * factor));
+    }
+
+    /**
+     * This method returns a random delay used to spread the answers to a query over a window of time
+     *
+     * @param window The length of the window in milliseconds
+     * @return A delay from [0, window)
+     */
+    public synchronized long responseDelay(long window) {
+        return window <= 0 ? 0 : (long) (random.nextDouble() * window);
+    }
+
+    /**
+     * @return The longest period between two announcements, in milliseconds
+     */
+    public long getMaxPeriod() {
+        return maxPeriod;
+    }
+}
@@ -2,7 +2,6 @@ package connectivity.broadcast;
 
 import connectivity.exceptions.BroadcastFailedException;
 
-import java.io.Closeable;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.Executors;
@@ -13,7 +12,7 @@ import java.util.stream.Collectors;
 /**
  * This is the class that performs a broadcast in our local network
  */
-public class Broadcast implements Closeable {
+public class Broadcast implements Discovery {
     /**
      * This is the variable used to send the message through broadcast
      */
@@ -119,6 +118,7 @@ public class Broadcast implements Closeable {
      * @return A set of addresses that are reachable from a client
      * @throws BroadcastFailedException
      */
+    @Override
     public Set<InetAddress> getAddresses(int timeout) throws BroadcastFailedException {
         var ignoredAddresses = getAvailableInterfaces().stream()
                 .map(InterfaceAddress::getAddress)
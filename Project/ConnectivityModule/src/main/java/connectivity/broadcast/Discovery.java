@@ -0,0 +1,27 @@
+package connectivity.broadcast;
+
+import connectivity.exceptions.BroadcastFailedException;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.util.Set;
+
+/**
+ * This interface describes a way of finding the other peers from the local network
+ */
+public interface Discovery extends Closeable {
+    /**
+     * This method returns a set of addresses that can be reached from the client who is calling this method
+     *
+     * @param timeout The maximum amount of time in seconds spent listening for other peers
+     * @return A set of addresses that are reachable from a client
+     * @throws BroadcastFailedException The discovery socket could not be opened
+     */
+    Set<InetAddress> getAddresses(int timeout) throws BroadcastFailedException;
+
+    /**
+     * This method stops announcing the current peer and releases the sockets
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,12 @@
+package connectivity.broadcast;
+
+/**
+ * Enum with the possible ways of discovering peers:
+ * Every peer sends an empty datagram to the broadcast address of every interface at a fixed period.
+ * Every peer announces itself on a multicast group with a jittered period that backs off while the peer set is
+ * stable, and answers the queries sent by the peers that just joined.
+ */
+public enum DiscoveryMode {
+    BROADCAST,
+    MULTICAST
+}
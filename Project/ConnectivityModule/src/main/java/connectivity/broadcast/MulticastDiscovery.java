@@ -0,0 +1,283 @@
+package connectivity.broadcast;
+
+import connectivity.exceptions.BroadcastFailedException;
+import connectivity.metrics.Metrics;
+import connectivity.naming.HostNameCache;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class finds the peers of the local network through a multicast group. Every peer keeps listening on the
+ * group and keeps a table of the peers it heard from. The announcements of a peer are spaced by an
+ * {@link AnnounceSchedule}, so they are jittered and become rarer while the table is stable. A peer that needs the
+ * table right away sends a query and every peer answers it directly after a random delay. Every datagram carries
+ * the name of the sender, which is saved in the {@link HostNameCache}, so the peers don't need reverse DNS.
+ */
+public class MulticastDiscovery implements Discovery {
+    /**
+     * The administratively scoped group on which all the peers meet
+     */
+    public static final String GROUP = "239.255.42.99";
+    /**
+     * The first bytes of every datagram, used to ignore the datagrams not sent by a peer
+     */
+    private static final int MAGIC = 0x50325044;
+    private static final byte ANNOUNCE = 1;
+    private static final byte QUERY = 2;
+
+    private static final long MIN_PERIOD = 5_000;
+    private static final long MAX_PERIOD = 120_000;
+    private static final long RESPONSE_WINDOW = 1_000;
+
+    private final int port;
+    private final InetAddress group;
+    private final MulticastSocket socket;
+    /**
+     * A random number identifying this instance, so the own datagrams looped back by the group are ignored
+     */
+    private final long instanceId;
+    private final AnnounceSchedule schedule;
+    private final ScheduledExecutorService executor;
+    /**
+     * The name of the current device sent with every datagram, looked up on the announcing thread
+     */
+    private volatile String hostName;
+    /**
+     * The peers heard from, with the time in milliseconds at which they were last heard
+     */
+    private final Map<InetAddress, Long> peers = new ConcurrentHashMap<>();
+    /**
+     * Whether a peer left since the previous announcement
+     */
+    private final AtomicBoolean peerSetChanged = new AtomicBoolean(true);
+    /**
+     * The queriers waiting for an answer, used to answer a burst of queries with a single datagram each
+     */
+    private final Set<SocketAddress> pendingResponses = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The constructor joins the multicast group on the given port, starts listening to it and starts announcing the
+     * current peer
+     *
+     * @param port The port of the group, the same as the port of the peer
+     * @throws SocketException The group couldn't be joined
+     */
+    public MulticastDiscovery(int port) throws SocketException {
+        this(port, new AnnounceSchedule(MIN_PERIOD, MAX_PERIOD, 2, 0.5, new Random()));
+    }
+
+    /**
+     * The constructor joins the multicast group on the given port, starts listening to it and starts announcing the
+     * current peer using the given schedule
+     *
+     * @param port     The port of the group, the same as the port of the peer
+     * @param schedule The schedule of the announcements
+     * @throws SocketException The group couldn't be joined
+     */
+    public MulticastDiscovery(int port, AnnounceSchedule schedule) throws SocketException {
+        this.port = port;
+        this.schedule = schedule;
+        this.instanceId = new Random().nextLong();
+
+        try {
+            this.group = InetAddress.getByName(GROUP);
+            this.socket = new MulticastSocket(null);
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(port));
+            socket.setTimeToLive(1);
+            socket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            joinGroup();
+        } catch (SocketException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new SocketException(e.getMessage());
+        }
+
+        Metrics.getInstance().gauge("discovery." + port + ".peers", peers::size);
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "multicast-announcer-" + port);
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread receiver = new Thread(this::receive, "multicast-receiver-" + port);
+        receiver.setDaemon(true);
+        receiver.start();
+
+        executor.execute(() -> send(QUERY, new InetSocketAddress(group, port)));
+        executor.execute(this::announce);
+    }
+
+    /**
+     * This method joins the group on every interface that supports multicast, or on the default interface if there
+     * is none
+     *
+     * @throws IOException The group couldn't be joined on any interface
+     */
+    private void joinGroup() throws IOException {
+        SocketAddress groupAddress = new InetSocketAddress(group, port);
+        boolean joined = false;
+
+        for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            try {
+                if (!networkInterface.isUp() || networkInterface.isLoopback() || !networkInterface.supportsMulticast())
+                    continue;
+                socket.joinGroup(groupAddress, networkInterface);
+                joined = true;
+            } catch (IOException ignored) {
+            }
+        }
+
+        if (!joined)
+            socket.joinGroup(groupAddress, null);
+    }
+
+    /**
+     * This method announces the current peer on the group and schedules the next announcement
+     */
+    private void announce() {
+        send(ANNOUNCE, new InetSocketAddress(group, port));
+        expirePeers();
+
+        long delay = schedule.nextDelay(peerSetChanged.getAndSet(false));
+        if (!executor.isShutdown())
+            executor.schedule(this::announce, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method removes the peers that weren't heard from for three of the longest periods. A peer that left is the
+     * only change that resets the period: a peer that joined already learned about us from its query.
+     */
+    private void expirePeers() {
+        long limit = System.currentTimeMillis() - 3 * schedule.getMaxPeriod();
+        if (peers.values().removeIf(lastSeen -> lastSeen < limit))
+            peerSetChanged.set(true);
+    }
+
+    /**
+     * This method sends a single datagram
+     *
+     * @param type The type of the datagram, an announcement or a query
+     * @param to   The group or the address of the querier
+     */
+    private void send(byte type, SocketAddress to) {
+        if (hostName == null)
+            hostName = getLocalHostName();
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream message = new DataOutputStream(bytes);
+            message.writeInt(MAGIC);
+            message.writeByte(type);
+            message.writeLong(instanceId);
+            message.writeInt(port);
+            message.writeUTF(hostName);
+
+            byte[] data = bytes.toByteArray();
+            socket.send(new DatagramPacket(data, data.length, to));
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @return The name of the current device, or an empty string if it can't be found
+     */
+    private static String getLocalHostName() {
+        try {
+            String name = InetAddress.getLocalHost().getHostName();
+            return name.length() > 255 ? name.substring(0, 255) : name;
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * This method describes what the receiving thread does: every announcement or answer refreshes the table of
+     * peers and every query is answered after a random delay
+     */
+    private void receive() {
+        byte[] bytes = new byte[512];
+        DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
+
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(bytes.length);
+                socket.receive(packet);
+
+                DataInputStream message = new DataInputStream(
+                        new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength()));
+                if (packet.getLength() < 17 || message.readInt() != MAGIC)
+                    continue;
+                byte type = message.readByte();
+                if (message.readLong() == instanceId)
+                    continue;
+                message.readInt();
+                String name = message.available() > 0 ? message.readUTF() : "";
+
+                peers.put(packet.getAddress(), System.currentTimeMillis());
+                HostNameCache.getInstance().advertise(packet.getAddress(), name);
+
+                if (type == QUERY)
+                    respond(packet.getSocketAddress());
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * This method schedules the answer to a query. The answers of all the peers are spread over a window, so the
+     * querier isn't flooded.
+     *
+     * @param querier The address from which the query was sent
+     */
+    private void respond(SocketAddress querier) {
+        if (!pendingResponses.add(querier))
+            return;
+
+        try {
+            executor.schedule(() -> {
+                pendingResponses.remove(querier);
+                send(ANNOUNCE, querier);
+            }, schedule.responseDelay(RESPONSE_WINDOW), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    /**
+     * This method sends a query to the group and waits for the answers, which are spread over a window of one
+     * second. The table is kept up to date between two calls, so a query isn't needed to know the older peers.
+     *
+     * @param timeout The maximum amount of time in seconds spent waiting for answers
+     * @return A set of addresses that are reachable from a client
+     * @throws BroadcastFailedException The group was already left
+     */
+    @Override
+    public Set<InetAddress> getAddresses(int timeout) throws BroadcastFailedException {
+        if (socket.isClosed())
+            throw new BroadcastFailedException(new IOException("Multicast discovery was closed"));
+
+        try {
+            executor.execute(() -> send(QUERY, new InetSocketAddress(group, port)));
+            Thread.sleep(Math.min(timeout * 1000L, RESPONSE_WINDOW + 500));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RejectedExecutionException e) {
+            throw new BroadcastFailedException(new IOException("Multicast discovery was closed"));
+        }
+
+        return new HashSet<>(peers.keySet());
+    }
+
+    /**
+     * This method is used to auto close the socket and the executor
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        socket.close();
+    }
+}
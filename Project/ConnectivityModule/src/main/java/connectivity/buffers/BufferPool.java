@@ -0,0 +1,218 @@
+package connectivity.buffers;
+
+import connectivity.metrics.Counter;
+import connectivity.metrics.Metrics;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class lends the buffers used to move the content of files, so a transfer doesn't allocate a new buffer for
+ * every file or chunk. The buffers are kept in size classes, the powers of two from {@link #MIN_SIZE} to
+ * {@link #MAX_SIZE}, and a request is served from the smallest class that fits it. Every thread keeps a few buffers
+ * of every class for itself, so lending and returning a buffer on the same thread doesn't take a lock; the other
+ * buffers are shared by all the threads, up to {@link #SHARED_BYTES} for every class.
+ * The buffers are heap buffers, used with the streams of the sockets, which need an array.
+ * When the "p2p.buffers.debug" system property is true, every lent buffer is watched: a buffer that is collected
+ * before it is returned is a leak, which is reported with the stack of the thread that took it, counted in the
+ * "buffers.leaked" counter and given back to the pool.
+ */
+public class BufferPool {
+    public static final int MIN_SIZE = 1024;
+    public static final int MAX_SIZE = 1024 * 1024;
+    /**
+     * The most bytes kept by the shared stack of a size class
+     */
+    static final int SHARED_BYTES = 8 * 1024 * 1024;
+    /**
+     * The most buffers of a size class kept by a thread
+     */
+    private static final int THREAD_CACHE_SIZE = 4;
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+    private static final boolean DEBUG = Boolean.getBoolean("p2p.buffers.debug");
+
+    private static final BufferPool heap = new BufferPool();
+
+    /**
+     * The buffers of a size class kept by a thread
+     */
+    private static final class ThreadCache {
+        private final ByteBuffer[][] buffers = new ByteBuffer[CLASSES][THREAD_CACHE_SIZE];
+        private final int[] counts = new int[CLASSES];
+    }
+
+    /**
+     * A lent buffer, watched in debug mode. The borrower gets a view of the pooled buffer, so the view can be
+     * collected while the pool still holds the memory.
+     */
+    private static final class Lease extends WeakReference<ByteBuffer> {
+        private final ByteBuffer pooled;
+        private final int key;
+        private final Throwable site;
+
+        private Lease(ByteBuffer view, ByteBuffer pooled, ReferenceQueue<ByteBuffer> queue) {
+            super(view, queue);
+            this.pooled = pooled;
+            this.key = System.identityHashCode(view);
+            this.site = new Throwable("Buffer of " + pooled.capacity() + " bytes taken here");
+        }
+    }
+
+    private final ByteBuffer[][] shared = new ByteBuffer[CLASSES][];
+    private final int[] sharedCounts = new int[CLASSES];
+    private final ThreadLocal<ThreadCache> caches = ThreadLocal.withInitial(ThreadCache::new);
+    private final Counter allocated = Metrics.getInstance().counter("buffers.heap.allocated");
+    private final Counter leaked = Metrics.getInstance().counter("buffers.leaked");
+    private final Map<Integer, List<Lease>> leases = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+    private BufferPool() {
+        for (int i = 0; i < CLASSES; i++)
+            shared[i] = new ByteBuffer[Math.max(THREAD_CACHE_SIZE, SHARED_BYTES / (MIN_SIZE << i))];
+    }
+
+    /**
+     * @return The pool of heap buffers, whose content can be read and written through {@link ByteBuffer#array()}
+     */
+    public static BufferPool heap() {
+        return heap;
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    /**
+     * This method lends a buffer. The buffer must be given back with {@link #release(ByteBuffer)} once it is not
+     * used anymore, and not used after that.
+     * @param size The size in bytes needed
+     * @return A buffer with a capacity of at least the size, whose position is 0 and whose limit is the size
+     */
+    public ByteBuffer acquire(int size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("Invalid buffer size: " + size);
+        if (DEBUG)
+            reportLeaks();
+
+        ByteBuffer buffer = null;
+        if (size <= MAX_SIZE) {
+            int sizeClass = sizeClass(size);
+            ThreadCache cache = caches.get();
+
+            if (cache.counts[sizeClass] > 0) {
+                buffer = cache.buffers[sizeClass][--cache.counts[sizeClass]];
+                cache.buffers[sizeClass][cache.counts[sizeClass]] = null;
+            } else {
+                synchronized (shared[sizeClass]) {
+                    if (sharedCounts[sizeClass] > 0) {
+                        buffer = shared[sizeClass][--sharedCounts[sizeClass]];
+                        shared[sizeClass][sharedCounts[sizeClass]] = null;
+                    }
+                }
+            }
+
+            if (buffer == null)
+                buffer = allocate(MIN_SIZE << sizeClass);
+        } else
+            buffer = allocate(size);
+
+        buffer.clear().limit(size);
+        return DEBUG ? watch(buffer) : buffer;
+    }
+
+    /**
+     * This method takes back a buffer lent by {@link #acquire(int)}
+     * @param buffer The buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if (DEBUG) {
+            buffer = unwatch(buffer);
+            if (buffer == null)
+                return;
+        }
+        give(buffer);
+    }
+
+    private void give(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity > MAX_SIZE || capacity < MIN_SIZE || Integer.bitCount(capacity) != 1 || buffer.isDirect())
+            return;
+
+        int sizeClass = sizeClass(capacity);
+        ThreadCache cache = caches.get();
+        if (cache.counts[sizeClass] < THREAD_CACHE_SIZE) {
+            cache.buffers[sizeClass][cache.counts[sizeClass]++] = buffer;
+            return;
+        }
+
+        synchronized (shared[sizeClass]) {
+            if (sharedCounts[sizeClass] < shared[sizeClass].length)
+                shared[sizeClass][sharedCounts[sizeClass]++] = buffer;
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        allocated.increment();
+        return ByteBuffer.allocate(capacity);
+    }
+
+    private ByteBuffer watch(ByteBuffer pooled) {
+        ByteBuffer view = pooled.duplicate();
+        Lease lease = new Lease(view, pooled, collected);
+        leases.compute(lease.key, (key, list) -> {
+            if (list == null)
+                list = new ArrayList<>(1);
+            list.add(lease);
+            return list;
+        });
+        return view;
+    }
+
+    private ByteBuffer unwatch(ByteBuffer view) {
+        ByteBuffer[] pooled = new ByteBuffer[1];
+        leases.computeIfPresent(System.identityHashCode(view), (key, list) -> {
+            list.removeIf(lease -> {
+                if (lease.get() != view)
+                    return false;
+                pooled[0] = lease.pooled;
+                lease.clear();
+                return true;
+            });
+            return list.isEmpty() ? null : list;
+        });
+
+        if (pooled[0] == null)
+            System.err.println("A buffer was returned to the pool twice, or it doesn't belong to the pool");
+        return pooled[0];
+    }
+
+    /**
+     * This method reports the buffers that were collected before they were returned and gives them back to the pool
+     */
+    private void reportLeaks() {
+        Reference<? extends ByteBuffer> reference;
+        while ((reference = collected.poll()) != null) {
+            Lease lease = (Lease) reference;
+            boolean[] found = new boolean[1];
+            leases.computeIfPresent(lease.key, (key, list) -> {
+                found[0] = list.remove(lease);
+                return list.isEmpty() ? null : list;
+            });
+            if (!found[0])
+                continue;
+
+            leaked.increment();
+            System.err.println("A buffer was not returned to the pool");
+            lease.site.printStackTrace();
+            give(lease.pooled);
+        }
+    }
+}
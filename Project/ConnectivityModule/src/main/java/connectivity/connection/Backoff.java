@@ -0,0 +1,36 @@
+package connectivity.connection;
+
+import java.util.Random;
+
+/**
+ * This class computes the delays between the attempts of an operation that keeps failing. The delay doubles with every
+ * attempt up to a maximum, and a random half of it is dropped so that the peers that lost their connections at the
+ * same moment don't retry in lockstep.
+ */
+public class Backoff {
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random;
+
+    /**
+     * @param baseDelay The delay before the first retry, in milliseconds
+     * @param maxDelay  The longest delay, in milliseconds
+     * @param random    The source of randomness
+     */
+    public Backoff(long baseDelay, long maxDelay, Random random) {
+        if (baseDelay <= 0 || maxDelay < baseDelay)
+            throw new IllegalArgumentException("Invalid backoff delays: " + baseDelay + ", " + maxDelay);
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.random = random;
+    }
+
+    /**
+     * @param attempt The number of attempts that already failed, starting from 0
+     * @return The delay before the next attempt, in milliseconds
+     */
+    public synchronized long nextDelay(int attempt) {
+        long delay = attempt >= 62 ? maxDelay : Math.min(maxDelay, baseDelay << Math.min(attempt, 30));
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2.0));
+    }
+}
@@ -17,6 +17,17 @@ public interface Connection extends Closeable {
     Path receiveFile(Path to) throws IOException;
     void sendFile(Path root, Path relativePath) throws IOException;
 
+    /**
+     * This method is used to send a file whose content doesn't come directly from the disk, like the chunks of a
+     * {@link FanOut} read once for several connections
+     * @param relativePath The path of the file, as the other end will save it
+     * @param modified The time of the last modification of the file, in milliseconds
+     * @param size The number of bytes of the file
+     * @param content The content of the file, from which exactly size bytes are read
+     * @throws IOException
+     */
+    void sendFile(String relativePath, long modified, long size, InputStream content) throws IOException;
+
     /**
      * This method is used to return the current host file of connection
      * @return The host name
@@ -29,5 +40,33 @@ public interface Connection extends Closeable {
      */
     String getAddress();
 
+    /**
+     * This method is used to return the ID the peer sent during the handshake. It stays the same when the peer
+     * reconnects from another address.
+     * @return The ID of the peer
+     */
+    String getPeerId();
+
+    /**
+     * This method is used to decide which connection is kept when two peers connect to each other at the same time
+     * @return The ID of the peer that opened the connection, or null if it is not known
+     */
+    default String getInitiatorId() {
+        return null;
+    }
+
     boolean isClosed();
+
+    /**
+     * This method is used to show the other end that the connection is still alive
+     * @return Whether the heartbeat was sent, it is not sent while a file is being sent
+     * @throws IOException
+     */
+    boolean sendHeartbeat() throws IOException;
+
+    /**
+     * This method is used to find the connections whose other end stopped answering
+     * @return The time in milliseconds since data was last seen from the other end
+     */
+    long getIdleTime();
 }
\ No newline at end of file
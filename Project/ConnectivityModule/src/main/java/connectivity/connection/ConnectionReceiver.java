@@ -1,20 +1,68 @@
 package connectivity.connection;
 
+import connectivity.bandwidth.Throttle;
+import connectivity.metrics.Counter;
+import connectivity.metrics.Histogram;
+import connectivity.metrics.Metrics;
+import connectivity.metrics.PeerStats;
+import connectivity.tracing.Phase;
+import connectivity.tracing.SessionTracer;
+import connectivity.tracing.Span;
+
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.FileTime;
 
 /**
  * This class is used to receive a file which was sent through a socket
  */
 public class ConnectionReceiver {
+    /**
+     * The size of the chunks in which a file is received when no other size is given
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+    /**
+     * The directory, relative to the directory in which files are received, where a file is written until all of it
+     * is received. A transfer that is interrupted never leaves a truncated file in place of the real one.
+     */
+    private static final Path PARTIAL_DIRECTORY = Paths.get(".peer", "partial");
+
     /**
      * The decorator used for receiving a file from a socket
      */
     private final DataInputStream reader;
+    /**
+     * The moment in milliseconds at which data was last seen on the socket
+     */
+    private volatile long lastReceived = System.currentTimeMillis();
+    /**
+     * The amount of data received from the peer at the other end of the socket
+     */
+    private final PeerStats stats;
+    /**
+     * The size of the chunks in which a file is received
+     */
+    private final int chunkSize;
+    /**
+     * The bandwidth limits the chunks go through
+     */
+    private final Throttle throttle;
+    private final Histogram latency = Metrics.getInstance().histogram("transfer.receive.latency");
+    private final Counter activeStreams = Metrics.getInstance().counter("transfer.streams.active");
+    /**
+     * The stage writing the received chunks on the disk while the next ones are read
+     */
+    private final DiskWriter diskWriter;
+    /**
+     * The ID of the peer at the other end of the socket, by which the files it sends are looked up in the
+     * {@link RelayTable}, or null if they are never forwarded
+     */
+    private final String peerId;
 
     /**
      * The constructor initializes the reader, receiving a socket and set the reader to read from that socket's input stream
@@ -22,44 +70,152 @@ public class ConnectionReceiver {
      * @throws IOException
      */
     public ConnectionReceiver(Socket socket) throws IOException {
+        this(socket, new PeerStats(), DEFAULT_CHUNK_SIZE, Throttle.UNLIMITED, null);
+    }
+
+    /**
+     * The constructor initializes the reader, receiving a socket and set the reader to read from that socket's input stream
+     * @param socket The socket through which a file was sent and received
+     * @param stats The statistics in which the received data is counted
+     * @param chunkSize The size in bytes of the chunks in which a file is received
+     * @param throttle The bandwidth limits of the download
+     * @param peerId The ID of the peer at the other end of the socket, whose files may be forwarded to another peer
+     * @throws IOException
+     */
+    public ConnectionReceiver(Socket socket, PeerStats stats, int chunkSize, Throttle throttle, String peerId)
+            throws IOException {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
         this.reader = new DataInputStream(socket.getInputStream());
+        this.stats = stats;
+        this.chunkSize = chunkSize;
+        this.throttle = throttle;
+        this.diskWriter = new DiskWriter(chunkSize);
+        this.peerId = peerId;
     }
 
     /**
-     * This is the only method of class which use is to receive a file from socket and returning the new path of that file
+     * This method receives a file that doesn't belong to a known sync session
      * @param to The path of new received file
      * @return The path of a file that was read from socket
      * @throws IOException
      */
-    public synchronized Path receiveFile(Path to) throws IOException {
-        if(reader.available() == 0)
-            return null;
+    public Path receiveFile(Path to) throws IOException {
+        return receiveFile(to, null);
+    }
+
+    /**
+     * This is the main method of class which use is to receive a file from socket and returning the new path of that file.
+     * The file is written in a partial file first, and moved in place after it was completely received. The chunks
+     * are written by a {@link DiskWriter}, so the socket is read while the disk writes, but the method returns only
+     * after the file is in place. Every chunk is counted against the download limits after it was read, so the next
+     * read waits while the peer is over its limit and the socket buffers fill up, which slows down the sender.
+     * A file that has a route in the {@link RelayTable} is forwarded to the next peer chunk by chunk as it is read.
+     * @param to The path of new received file
+     * @param sessionId The sync session the file belongs to, or null if it isn't known
+     * @return The path of a file that was read from socket
+     * @throws IOException
+     */
+    public synchronized Path receiveFile(Path to, String sessionId) throws IOException {
+        byte type = Frame.HEARTBEAT;
+        while (type == Frame.HEARTBEAT) {
+            if(reader.available() == 0)
+                return null;
+            type = reader.readByte();
+            lastReceived = System.currentTimeMillis();
+        }
+        if(type != Frame.FILE)
+            throw new IOException("Unknown frame type: " + type);
+
+        long start = System.nanoTime();
         Path relativePath = Paths.get(reader.readUTF());
         Path path = to.resolve(relativePath);
         long modified = reader.readLong();
         long size = reader.readLong();
-        Files.createDirectories(path.getParent());
+        Path partialDirectory = to.resolve(PARTIAL_DIRECTORY);
+        Path partial;
 
-        try(OutputStream os = new FileOutputStream(path.toFile())){
-            final int chunk = 1024;
-            byte[] buffer = new byte[chunk];
+        try (Span span = SessionTracer.getInstance().start(Phase.RECEIVE, sessionId, relativePath.toString())) {
+            long diskTime = 0;
 
-            while (size > 0){
-                int readSize = (int) Math.min(chunk, size);
-                int actualRead = reader.read(buffer, 0, readSize);
+            try {
+                Files.createDirectories(path.getParent());
+                Files.createDirectories(partialDirectory);
+                partial = Files.createTempFile(partialDirectory, "receive", ".part");
+            } catch (IOException e) {
+                reader.skipNBytes(size);
+                return relativePath;
+            }
 
-                if(actualRead == 0)
-                    break;
+            Relay relay = peerId == null ? null
+                    : RelayTable.getInstance().take(peerId, relativePath.toString(), modified, size);
+            activeStreams.increment();
+            boolean written = false;
+            diskWriter.open(partial);
+            try {
+                while (size > 0){
+                    ByteBuffer buffer = diskWriter.acquire();
+                    int readSize = (int) Math.min(chunkSize, size);
+                    int actualRead = reader.read(buffer.array(), buffer.arrayOffset(), readSize);
 
-                os.write(buffer, 0, actualRead);
-                size -= actualRead;
-            }
+                    if(actualRead <= 0) {
+                        diskWriter.release(buffer);
+                        if (actualRead < 0)
+                            throw new EOFException("Connection closed while receiving " + relativePath);
+                        break;
+                    }
 
-            Files.setLastModifiedTime(path, FileTime.fromMillis(modified));
+                    if (relay != null)
+                        relay.write(buffer.array(), buffer.arrayOffset(), actualRead);
+                    diskWriter.write(buffer, actualRead);
+                    throttle.acquire(actualRead);
+                    stats.bytesReceived(actualRead);
+                    span.addSize(actualRead);
+                    size -= actualRead;
+                }
+            } finally {
+                try {
+                    diskTime += diskWriter.close();
+                    written = true;
+                } catch (IOException ignored) {
+                }
+                activeStreams.decrement();
+                if (relay != null) {
+                    if (size > 0)
+                        relay.abort();
+                    else
+                        relay.finish();
+                }
+                if (size > 0 || !written)
+                    Files.deleteIfExists(partial);
+            }
 
-        } catch (Exception e){
-            reader.skipNBytes(size);
+            if (size == 0 && written) {
+                long moveStart = System.nanoTime();
+                Files.setLastModifiedTime(partial, FileTime.fromMillis(modified));
+                Files.move(partial, path, StandardCopyOption.REPLACE_EXISTING);
+                diskTime += System.nanoTime() - moveStart;
+                stats.fileReceived();
+                latency.recordMicrosSince(start);
+            }
+            span.addNested(Phase.DISK_WRITE, diskTime);
         }
         return relativePath;
     }
+
+    /**
+     * This method returns the time since data was last seen on the socket. Data that is waiting to be read counts as
+     * seen, so a connection is not idle only because its files were not read yet.
+     * @return The idle time in milliseconds
+     */
+    public long getIdleTime() {
+        long now = System.currentTimeMillis();
+        try {
+            if (reader.available() > 0)
+                lastReceived = now;
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+        return now - lastReceived;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,89 @@
+package connectivity.connection;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps the active connections of a node, one for every peer, indexed by the ID the peer sent during the
+ * handshake. It can be used from the accepting thread and from the threads that connect, disconnect and transfer
+ * files at the same time.
+ */
+public class ConnectionRegistry {
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+
+    /**
+     * This method adds a connection, replacing and closing the previous connection to the same peer, if there is one.
+     * When two peers connect to each other at the same time, both ends keep the connection opened by the peer with
+     * the lower ID and close the other one, so they don't close each other's connection and reconnect again.
+     *
+     * @param connection The new connection
+     * @return The connection kept for the peer, which is the new one unless the previous one was opened by the other
+     * end and wins the tie-break
+     */
+    public Connection register(Connection connection) {
+        Connection[] closed = new Connection[1];
+        Connection kept = connections.compute(connection.getPeerId(), (peerId, previous) -> {
+            if (previous == null || previous == connection)
+                return connection;
+            if (!previous.isClosed() && winsTieBreak(previous, connection)) {
+                closed[0] = connection;
+                return previous;
+            }
+            closed[0] = previous;
+            return connection;
+        });
+
+        if (closed[0] != null) {
+            try {
+                closed[0].close();
+            } catch (IOException ignored) {
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * @return Whether the previous connection is kept instead of the new one. A newer connection opened by the same
+     * peer always replaces the previous one, which may be half-closed.
+     */
+    private static boolean winsTieBreak(Connection previous, Connection connection) {
+        String previousInitiator = previous.getInitiatorId();
+        String initiator = connection.getInitiatorId();
+        if (previousInitiator == null || initiator == null || previousInitiator.equals(initiator))
+            return false;
+        return previousInitiator.compareTo(initiator) < 0;
+    }
+
+    /**
+     * This method removes a connection. A newer connection to the same peer is not removed.
+     *
+     * @param connection The connection to remove
+     * @return Whether the connection was removed
+     */
+    public boolean unregister(Connection connection) {
+        return connections.remove(connection.getPeerId(), connection);
+    }
+
+    /**
+     * @param peerId The ID of a peer
+     * @return The connection to that peer, or null if it isn't connected
+     */
+    public Connection get(String peerId) {
+        return connections.get(peerId);
+    }
+
+    /**
+     * The method returns a live view of the connections. It can be iterated while connections are added or removed.
+     *
+     * @return The active connections
+     */
+    public Collection<Connection> getConnections() {
+        return connections.values();
+    }
+
+    public int size() {
+        return connections.size();
+    }
+}
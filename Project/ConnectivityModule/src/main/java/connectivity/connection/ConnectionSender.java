@@ -1,18 +1,57 @@
 package connectivity.connection;
 
+import connectivity.bandwidth.Throttle;
+import connectivity.buffers.BufferPool;
+import connectivity.metrics.Counter;
+import connectivity.metrics.Histogram;
+import connectivity.metrics.Metrics;
+import connectivity.metrics.PeerStats;
+import connectivity.tracing.Phase;
+import connectivity.tracing.SessionTracer;
+import connectivity.tracing.Span;
+
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class is used to send a file through a socket
  */
 public class ConnectionSender {
+    /**
+     * The size of the chunks in which a file is sent when no other size is given
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+    /**
+     * The size of the smallest file whose sending time counts in the upload speed of the peer. The time of the
+     * smaller files is mostly the latency of the network.
+     */
+    private static final long MEASURED_SIZE = 256 * 1024;
     /**
      * The decorator used for writing in a file
      */
     private final DataOutputStream writer;
+    /**
+     * The lock held while a frame is written, so the frames of different threads are not mixed
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * The amount of data sent to the peer at the other end of the socket
+     */
+    private final PeerStats stats;
+    /**
+     * The size of the chunks in which a file is sent
+     */
+    private final int chunkSize;
+    /**
+     * The bandwidth limits the chunks go through
+     */
+    private final Throttle throttle;
+    private final Histogram latency = Metrics.getInstance().histogram("transfer.send.latency");
+    private final Counter activeStreams = Metrics.getInstance().counter("transfer.streams.active");
 
     /**
      * The constructor initializes the writer, receiving a socket and set the writer to write in that socket's output stream
@@ -20,39 +59,122 @@ public class ConnectionSender {
      * @throws IOException
      */
     public ConnectionSender(Socket socket) throws IOException {
+        this(socket, new PeerStats());
+    }
+
+    /**
+     * The constructor initializes the writer, receiving a socket and set the writer to write in that socket's output stream
+     * @param socket The socket through which a file was sent and received
+     * @param stats The statistics in which the sent data is counted
+     * @throws IOException
+     */
+    public ConnectionSender(Socket socket, PeerStats stats) throws IOException {
+        this(socket, stats, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * The constructor initializes the writer, receiving a socket and set the writer to write in that socket's output stream
+     * @param socket The socket through which a file was sent and received
+     * @param stats The statistics in which the sent data is counted
+     * @param chunkSize The size in bytes of the chunks in which a file is sent
+     * @throws IOException
+     */
+    public ConnectionSender(Socket socket, PeerStats stats, int chunkSize) throws IOException {
+        this(socket, stats, chunkSize, Throttle.UNLIMITED);
+    }
+
+    /**
+     * The constructor initializes the writer, receiving a socket and set the writer to write in that socket's output stream
+     * @param socket The socket through which a file was sent and received
+     * @param stats The statistics in which the sent data is counted
+     * @param chunkSize The size in bytes of the chunks in which a file is sent
+     * @param throttle The bandwidth limits of the upload
+     * @throws IOException
+     */
+    public ConnectionSender(Socket socket, PeerStats stats, int chunkSize, Throttle throttle) throws IOException {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
         this.writer = new DataOutputStream(socket.getOutputStream());
+        this.stats = stats;
+        this.chunkSize = chunkSize;
+        this.throttle = throttle;
     }
 
     /**
-     * This is the only method of class which use is to send a file as a stream of bytes through a socket
+     * This method sends a file of the disk as a stream of bytes through a socket
      * @param root The path to the root of a file
      * @param relative The relative path to a file (the full path)
      * @throws IOException
      */
-    public synchronized void sendFile(Path root, Path relative) throws IOException {
-        String pathName = relative.toString();
+    public void sendFile(Path root, Path relative) throws IOException {
         Path file = root.resolve(relative);
 
-        try(InputStream is = new FileInputStream(file.toFile())){
+        try (InputStream is = new FileInputStream(file.toFile())) {
+            sendFile(relative.toString(), Files.getLastModifiedTime(file).toMillis(), Files.size(file), is);
+        }
+    }
+
+    /**
+     * This is the main method of class which use is to send a file as a stream of bytes through a socket. The chunks
+     * are read in a buffer of the {@link BufferPool} and every one of them waits for the upload limits first.
+     * @param pathName The relative path to the file, as the peer will save it
+     * @param modified The time of the last modification of the file, in milliseconds
+     * @param size The number of bytes of the file
+     * @param is The content of the file, from which exactly size bytes are read
+     * @throws IOException
+     */
+    public void sendFile(String pathName, long modified, long size, InputStream is) throws IOException {
+        lock.lock();
+        long start = System.nanoTime();
+        activeStreams.increment();
+        ByteBuffer pooled = BufferPool.heap().acquire(chunkSize);
+        try(Span span = SessionTracer.getInstance().start(Phase.SEND, pathName)){
+            writer.writeByte(Frame.FILE);
             writer.writeUTF(pathName);
-            writer.writeLong(Files.getLastModifiedTime(file).toMillis());
+            writer.writeLong(modified);
             writer.flush();
 
-            final int chunk = 1024;
-            byte[] buffer = new byte[chunk];
-            long size = Files.size(file);
+            byte[] buffer = pooled.array();
             writer.writeLong(size);
+            long total = size;
 
             while(size > 0){
-                int sendSize = is.read(buffer);
-                if(sendSize == 0)
-                    break;
-                writer.write(buffer, 0, sendSize);
+                int sendSize = is.read(buffer, pooled.arrayOffset(), (int) Math.min(chunkSize, size));
+                if(sendSize <= 0)
+                    throw new EOFException(pathName + " ended before its size");
+                throttle.acquire(sendSize);
+                writer.write(buffer, pooled.arrayOffset(), sendSize);
+                stats.bytesSent(sendSize);
+                span.addSize(sendSize);
                 size -= sendSize;
             }
 
             writer.flush();
+            stats.fileSent();
+            if (total >= MEASURED_SIZE)
+                stats.uploadMeasured(total, System.nanoTime() - start);
+            latency.recordMicrosSince(start);
+        } finally {
+            BufferPool.heap().release(pooled);
+            activeStreams.decrement();
+            lock.unlock();
         }
     }
 
+    /**
+     * This method sends a heartbeat frame, unless a file is being sent, which already shows the connection is alive
+     * @return Whether the heartbeat was sent
+     * @throws IOException
+     */
+    public boolean sendHeartbeat() throws IOException {
+        if (!lock.tryLock())
+            return false;
+        try {
+            writer.writeByte(Frame.HEARTBEAT);
+            writer.flush();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
 }
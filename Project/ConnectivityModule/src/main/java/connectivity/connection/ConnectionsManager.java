@@ -1,21 +1,19 @@
 package connectivity.connection;
 
+import connectivity.metrics.Metrics;
+
 import java.net.ServerSocket;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This class keeps a track of all connections that are accepted by a node, managing them.
  */
 public class ConnectionsManager implements Runnable {
 
-    /**
-     * This is private variable used as a inner instace of class and ensures the existence of a single instace
-     * of the class at any given moment. The default value of this instance is null.
-     */
-    private static volatile ConnectionsManager instance = null;
     /**
      * This variable represents the port on which the connection is made. The default value of port is 8080.
      */
@@ -29,43 +27,50 @@ public class ConnectionsManager implements Runnable {
      */
     protected Thread runningThread = null;
     /**
-     * This variable keeps a track of all connections that are realised for a certain client address.
+     * This variable represents the ID of the current peer, sent during the handshake of every accepted connection.
+     */
+    protected final String peerId;
+    /**
+     * This variable keeps a track of all connections that are realised, one for every peer ID.
+     */
+    protected final ConnectionRegistry connections = new ConnectionRegistry();
+    /**
+     * The handshakes of the accepted sockets run on these threads, so a client that doesn't answer doesn't stop the
+     * other ones from connecting until its handshake times out
      */
-    protected Set<Connection> connections = new HashSet<>();
+    private final ExecutorService handshakes = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "handshake");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
-     * The method returns the connections variable which keeps a track of all connections that are realised
+     * The method returns the connections which are realised. The collection can be iterated while connections are
+     * added or removed.
      * @return The current list of connections that are realised
      */
-    public Set<Connection> getConnections() {
-        return connections;
+    public Collection<Connection> getConnections() {
+        return connections.getConnections();
     }
 
     /**
-     * This constructor will simply set the variable serverPort to the value of parameter port.
-     * @param port The value which is assigned to serverPort variable
+     * The method returns the registry which keeps a track of all connections that are realised
+     * @return The registry of connections
      */
-    private ConnectionsManager(int port) {
-        this.serverPort = port;
+    public ConnectionRegistry getRegistry() {
+        return connections;
     }
 
     /**
-     * This method will return an istance of class. If the variable instance of class is null both locally and as well
-     * as in all the threads that use the class then the instance variable is initialized as a new instance of class,
-     * calling the constructor with the parameter port.
-     * @param port The port used to create a new instance of ConnectionsManager class
-     * @return An instance of ConnectionsManager class
+     * This constructor will simply set the variable serverPort to the value of parameter port. Every peer has its own
+     * manager, so several peers listening on different ports can live in the same process.
+     * @param port The value which is assigned to serverPort variable
+     * @param peerId The ID of the current peer
      */
-    public static ConnectionsManager getInstance(int port) {
-        if (instance == null) {
-            synchronized (ConnectionsManager.class) {
-                if (instance == null) {
-                    instance = new ConnectionsManager(port);
-                }
-            }
-        }
-
-        return instance;
+    public ConnectionsManager(int port, String peerId) {
+        this.serverPort = port;
+        this.peerId = peerId;
+        Metrics.getInstance().gauge("connections." + port + ".active", connections::size);
     }
 
     /**
@@ -73,8 +78,9 @@ public class ConnectionsManager implements Runnable {
      * will use the code write in this method. At the beginning of method the variable runningThread is initialized
      * with the value of the thread that is currently running the method and a new socket is open, calling the
      * openServerSocket method. After that, in a loop, new connections are expected and when a new connection is made
-     * a new LocalConnection will be added on the connections map variable, having as key the IP address of the node
-     * requesting the connection.
+     * a new LocalConnection will be added on the connections registry, having as key the ID the node requesting the
+     * connection sent during the handshake, which is made on another thread. An older connection to the same node is
+     * replaced and closed.
      */
     @Override
     public void run() {
@@ -99,39 +105,53 @@ public class ConnectionsManager implements Runnable {
                         "Error accepting client connection", e);
             }
 
-            try {
-                LocalConnection connection = new LocalConnection(clientSocket);
-
-                //TODO: connections as HASHMAP<INTEGER/STRING, CONNECTION>
-                connections .stream()
-                        .filter(c -> c.equals(connection))
-                        .findFirst()
-                        .ifPresent(c -> {
-                            try {
-                                connections.remove(c);
-                                c.close();
-                            } catch (IOException ignored) {
-                            }
-                        });
-                connections.add(connection);
-                System.out.println("Peer: " + clientSocket.getRemoteSocketAddress().toString() + " connected!");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            Socket accepted = clientSocket;
+            handshakes.execute(() -> accept(accepted));
         }
 
         System.out.println("Connection manager stopped.");
     }
 
     /**
-     * This method will close the socket for the node who was waiting for connections.
+     * This method makes the handshake of an accepted socket and registers its connection
+     * @param clientSocket The accepted socket
+     */
+    private void accept(Socket clientSocket) {
+        try {
+            LocalConnection connection = new LocalConnection(clientSocket, peerId, false);
+            if (connections.register(connection) != connection)
+                return;
+            // The manager may have been stopped during the handshake
+            if (serverSocket.isClosed()) {
+                connections.unregister(connection);
+                connection.close();
+                return;
+            }
+            System.out.println("Peer: " + clientSocket.getRemoteSocketAddress().toString() + " connected!");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This method will close the socket for the node who was waiting for connections, and every connection that was
+     * realised.
      */
     public synchronized void stop() {
         try {
-            this.serverSocket.close();
+            if (this.serverSocket != null)
+                this.serverSocket.close();
         } catch (IOException ignored) {
 
         }
+
+        for (Connection connection : connections.getConnections()) {
+            connections.unregister(connection);
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 
     /**
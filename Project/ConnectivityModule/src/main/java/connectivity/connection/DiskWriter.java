@@ -0,0 +1,214 @@
+package connectivity.connection;
+
+import connectivity.buffers.BufferPool;
+import connectivity.metrics.Counter;
+import connectivity.metrics.Histogram;
+import connectivity.metrics.Metrics;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class writes the content of a received file on a thread of its own, so the socket is read while the previous
+ * chunks are written. The chunks are read in buffers of the {@link BufferPool}, and a connection holds at most
+ * {@link #IN_FLIGHT_BYTES} of them: when every buffer waits to be written, the reader waits too and TCP slows the
+ * sender down. Nothing is allocated for a chunk, so the writer doesn't add to the garbage of a transfer.
+ * The writer gives the written buffers back to the connection instead of the pool, and the reader gives them back to
+ * the pool when the file is closed, so the buffers go back to the cache of the thread that takes them.
+ * The time the reader waits for a buffer is kept in the "receive.reader.stall" histogram and the time the writer
+ * waits for a chunk in the "receive.writer.wait" histogram, so a slow disk shows in the first one and a slow network
+ * in the second one. The "receive.buffers.inflight" counter holds the bytes read and not written yet.
+ */
+/*default*/ class DiskWriter {
+    /**
+     * The memory in bytes taken by the buffers of a connection
+     */
+    static final int IN_FLIGHT_BYTES = 1024 * 1024;
+
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+    private static final ExecutorService writers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "disk-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Histogram readerStall = Metrics.getInstance().histogram("receive.reader.stall");
+    private static final Histogram writerWait = Metrics.getInstance().histogram("receive.writer.wait");
+    private static final Counter inFlight = Metrics.getInstance().counter("receive.buffers.inflight");
+
+    private final int bufferSize;
+    private final int buffers;
+    /**
+     * The buffers taken from the pool by the reader and not given back to it, used only by the reader
+     */
+    private int lent;
+    /**
+     * The buffers that were written, or not filled, and can be filled again
+     */
+    private final BlockingQueue<ByteBuffer> empty;
+    private final BlockingQueue<ByteBuffer> filled;
+    private Future<Long> current;
+
+    /**
+     * @param bufferSize The size in bytes of a buffer, the size of the chunks in which a file is received
+     */
+    DiskWriter(int bufferSize) {
+        this.buffers = Math.max(2, IN_FLIGHT_BYTES / bufferSize);
+        this.bufferSize = bufferSize;
+        this.empty = new ArrayBlockingQueue<>(buffers);
+        this.filled = new ArrayBlockingQueue<>(buffers + 1);
+    }
+
+    /**
+     * This method starts writing a file. The chunks given to {@link #write(ByteBuffer, int)} until the next call of
+     * {@link #close()} are written in it.
+     * @param file The file to write
+     */
+    void open(Path file) {
+        current = writers.submit(() -> drain(file));
+    }
+
+    /**
+     * This method takes a buffer that was written, or one from the pool, waiting if the connection already holds all
+     * the buffers it can
+     * @return The buffer, whose array is filled from its offset
+     * @throws InterruptedIOException The reader was interrupted while waiting
+     */
+    ByteBuffer acquire() throws InterruptedIOException {
+        ByteBuffer buffer = empty.poll();
+        if (buffer == null && lent < buffers) {
+            lent++;
+            return BufferPool.heap().acquire(bufferSize);
+        }
+        if (buffer == null) {
+            long start = System.nanoTime();
+            try {
+                buffer = empty.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the disk");
+            }
+            readerStall.recordMicrosSince(start);
+        }
+        buffer.clear().limit(bufferSize);
+        return buffer;
+    }
+
+    /**
+     * This method gives back a buffer that wasn't filled, or that was written
+     * @param buffer The buffer returned by {@link #acquire()}
+     */
+    void release(ByteBuffer buffer) {
+        empty.add(buffer);
+    }
+
+    /**
+     * This method queues a filled buffer to be written in the open file
+     * @param buffer The buffer returned by {@link #acquire()}
+     * @param length The number of bytes filled
+     */
+    void write(ByteBuffer buffer, int length) {
+        inFlight.add(length);
+        buffer.limit(length);
+        filled.add(buffer);
+    }
+
+    /**
+     * This method waits until all the chunks of the open file are written and closes it
+     * @return The time in nanoseconds spent writing the file
+     * @throws IOException The file couldn't be written
+     */
+    long close() throws IOException {
+        filled.add(CLOSE);
+        try {
+            long diskTime = current.get();
+            giveBack();
+            return diskTime;
+        } catch (InterruptedException e) {
+            // The writer may still hold buffers, they are given back after the next file
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the disk");
+        } catch (ExecutionException e) {
+            giveBack();
+            if (e.getCause() instanceof IOException ioException)
+                throw ioException;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * This method gives the buffers back to the pool, on the thread of the reader, after the writer wrote all of them
+     */
+    private void giveBack() {
+        ByteBuffer buffer;
+        while ((buffer = empty.poll()) != null) {
+            BufferPool.heap().release(buffer);
+            lent--;
+        }
+    }
+
+    /**
+     * This method describes what the writing thread does for a file: every chunk is written and its buffer goes back
+     * to the pool. After an error the chunks are still taken from the queue, so the reader never waits for a buffer
+     * that is not coming back, and the error is thrown when the file is closed.
+     * @param file The file to write
+     * @return The time in nanoseconds spent writing the file
+     */
+    private long drain(Path file) throws IOException, InterruptedException {
+        long diskTime = 0;
+        IOException failure = null;
+        OutputStream os = null;
+
+        try {
+            os = new FileOutputStream(file.toFile());
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        try {
+            while (true) {
+                ByteBuffer chunk = filled.poll();
+                if (chunk == null) {
+                    long start = System.nanoTime();
+                    chunk = filled.take();
+                    writerWait.recordMicrosSince(start);
+                }
+                if (chunk == CLOSE)
+                    break;
+
+                try {
+                    if (failure == null) {
+                        long start = System.nanoTime();
+                        os.write(chunk.array(), chunk.arrayOffset(), chunk.limit());
+                        diskTime += System.nanoTime() - start;
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    inFlight.add(-chunk.limit());
+                    release(chunk);
+                }
+            }
+        } finally {
+            if (os != null) {
+                long start = System.nanoTime();
+                os.close();
+                diskTime += System.nanoTime() - start;
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+        return diskTime;
+    }
+}
@@ -0,0 +1,316 @@
+package connectivity.connection;
+
+import connectivity.buffers.BufferPool;
+import connectivity.metrics.Counter;
+import connectivity.metrics.Metrics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class sends the same file to several connections reading it from the disk only once. A reader reads the file
+ * in chunks of the {@link BufferPool} and gives every chunk to all the connections, which send it at the same time,
+ * each one on its own thread. A chunk goes back to the pool when the last connection sent it.
+ * The reader stays a few chunks ahead of the fastest connection, and every connection may fall at most
+ * {@link #WINDOW} chunks behind it, so a slow connection doesn't hold back the others: when it has no room for a new
+ * chunk for a short while it is detached, and after the chunks it already has it reads the rest of the file from the disk by itself. The detached
+ * connections are counted in the "fanout.detached" counter and the bytes that didn't have to be read again in
+ * "fanout.bytes.shared".
+ */
+public class FanOut {
+    /**
+     * The size of the chunks in which the file is read
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+    /**
+     * The number of chunks a connection may be behind the reader before it is detached
+     */
+    public static final int WINDOW = 32;
+    /**
+     * The number of chunks the reader may be ahead of the fastest connection. It is smaller than the window, so the
+     * connections about as fast as the fastest one are never detached.
+     */
+    private static final int LEAD = WINDOW / 4;
+    /**
+     * The time in milliseconds the reader waits for a connection that has no room before detaching it
+     */
+    private static final long GRACE_MILLIS = 250;
+
+    private static final Counter detached = Metrics.getInstance().counter("fanout.detached");
+    private static final Counter sharedBytes = Metrics.getInstance().counter("fanout.bytes.shared");
+    private static final ExecutorService threads = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fan-out");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A chunk of the file shared by the connections, given back to the pool when nobody holds it anymore
+     */
+    private static class Chunk {
+        private final ByteBuffer buffer;
+        private final int length;
+        private final AtomicInteger holders;
+
+        private Chunk(ByteBuffer buffer, int length, int holders) {
+            this.buffer = buffer;
+            this.length = length;
+            this.holders = new AtomicInteger(holders);
+        }
+
+        private void release() {
+            if (holders.decrementAndGet() == 0)
+                BufferPool.heap().release(buffer);
+        }
+    }
+
+    /**
+     * The content of the file as it is seen by a single connection: the shared chunks while it keeps up, and the
+     * file itself after it was detached
+     */
+    private class Target extends InputStream {
+        private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(WINDOW);
+        private volatile boolean detached;
+        /**
+         * The time in milliseconds since the queue of the connection is full, or 0 if it isn't, used by the reader
+         */
+        private long fullSince;
+        /**
+         * Whether the connection stopped reading, because the file was sent or it failed
+         */
+        private volatile boolean closed;
+        private Chunk current;
+        private int position;
+        private long offset;
+        private InputStream own;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) throws IOException {
+            if (own != null)
+                return readOwn(bytes, off, len);
+
+            while (current == null || position == current.length) {
+                if (current != null) {
+                    current.release();
+                    current = null;
+                }
+                current = nextChunk();
+                position = 0;
+                if (current == null) {
+                    own = new FileInputStream(file.toFile());
+                    own.skipNBytes(offset);
+                    return readOwn(bytes, off, len);
+                }
+            }
+
+            int count = Math.min(len, current.length - position);
+            current.buffer.get(position, bytes, off, count);
+            position += count;
+            offset += count;
+            return count;
+        }
+
+        private int readOwn(byte[] bytes, int off, int len) throws IOException {
+            int count = own.read(bytes, off, len);
+            if (count > 0)
+                offset += count;
+            return count;
+        }
+
+        /**
+         * @return The next shared chunk, or null if the connection was detached and has no shared chunks left
+         */
+        private Chunk nextChunk() throws IOException {
+            try {
+                while (true) {
+                    Chunk chunk = chunks.poll(100, TimeUnit.MILLISECONDS);
+                    if (chunk != null) {
+                        synchronized (FanOut.this) {
+                            FanOut.this.notifyAll();
+                        }
+                        return chunk;
+                    }
+                    if (failure != null)
+                        throw failure;
+                    if (detached && chunks.isEmpty())
+                        return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Fan-out interrupted");
+            }
+        }
+
+        /**
+         * This method gives back the chunks the connection will never send
+         */
+        private void drain() {
+            Chunk chunk;
+            while ((chunk = chunks.poll()) != null)
+                chunk.release();
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            if (current != null)
+                current.release();
+            current = null;
+            drain();
+            if (own != null)
+                own.close();
+            synchronized (FanOut.this) {
+                FanOut.this.notifyAll();
+            }
+        }
+    }
+
+    private final Path file;
+    private final List<Target> targets = new ArrayList<>();
+    private volatile IOException failure;
+
+    private FanOut(Path file, int connections) {
+        this.file = file;
+        for (int i = 0; i < connections; i++)
+            targets.add(new Target());
+    }
+
+    /**
+     * This method starts sending a file to several connections and returns without waiting for it
+     * @param root The path to the root of the file
+     * @param relativePath The relative path to the file
+     * @param connections The connections to which the file is sent
+     * @return A future for every connection, in the same order, completed when the file was sent through it or with
+     * the exception that stopped it
+     * @throws IOException The file can't be read
+     */
+    public static List<CompletableFuture<Void>> send(Path root, Path relativePath,
+                                                     List<? extends Connection> connections) throws IOException {
+        Path file = root.resolve(relativePath);
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        FanOut fanOut = new FanOut(file, connections.size());
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+
+        for (int i = 0; i < connections.size(); i++) {
+            Connection connection = connections.get(i);
+            Target target = fanOut.targets.get(i);
+            sent.add(CompletableFuture.runAsync(() -> {
+                try (target) {
+                    connection.sendFile(relativePath.toString(), attributes.lastModifiedTime().toMillis(),
+                            attributes.size(), target);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, threads));
+        }
+        threads.execute(() -> fanOut.read(attributes.size()));
+        return sent;
+    }
+
+    /**
+     * This method describes what the reader does: every chunk is given to all the connections that are still
+     * attached, after {@link #waitForRoom()} made sure they have room for it
+     * @param size The size of the file when the connections started sending it
+     */
+    private void read(long size) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long read = 0;
+            while (read < size) {
+                if (!waitForRoom())
+                    return;
+
+                ByteBuffer buffer = BufferPool.heap().acquire(CHUNK_SIZE);
+                int length = 0;
+                buffer.limit((int) Math.min(CHUNK_SIZE, size - read));
+                while (buffer.hasRemaining()) {
+                    int count = channel.read(buffer);
+                    if (count < 0)
+                        break;
+                    length += count;
+                }
+                if (length == 0) {
+                    BufferPool.heap().release(buffer);
+                    throw new EOFException(file + " ended before its size");
+                }
+                read += length;
+
+                Chunk chunk = new Chunk(buffer, length, targets.size() + 1);
+                int receivers = 0;
+                for (Target target : targets) {
+                    if (!target.detached && !target.closed && target.chunks.offer(chunk)) {
+                        receivers++;
+                        if (target.closed)
+                            target.drain();
+                    } else {
+                        chunk.release();
+                    }
+                }
+                sharedBytes.add((long) Math.max(0, receivers - 1) * length);
+                chunk.release();
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Fan-out interrupted");
+        } finally {
+            // The connections that still need bytes after the last chunk read them by themselves
+            for (Target target : targets)
+                target.detached = true;
+        }
+    }
+
+    /**
+     * This method waits until the fastest connection is close behind the reader and every other connection has room
+     * for the next chunk. A connection that stays without room for {@link #GRACE_MILLIS} is detached, so the others
+     * wait for it only that long.
+     * @return Whether the reader may read a chunk, false if no connection is attached anymore
+     */
+    private synchronized boolean waitForRoom() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            boolean attached = false;
+            boolean close = false;
+            boolean full = false;
+
+            for (Target target : targets) {
+                if (target.detached || target.closed)
+                    continue;
+                attached = true;
+                close |= target.chunks.size() < LEAD;
+
+                if (target.chunks.remainingCapacity() > 0) {
+                    target.fullSince = 0;
+                } else if (target.fullSince == 0) {
+                    target.fullSince = now;
+                    full = true;
+                } else if (now - target.fullSince > GRACE_MILLIS) {
+                    target.detached = true;
+                    detached.increment();
+                } else {
+                    full = true;
+                }
+            }
+
+            if (!attached)
+                return false;
+            if (close && !full)
+                return true;
+            wait(close ? 10 : 100);
+        }
+    }
+}
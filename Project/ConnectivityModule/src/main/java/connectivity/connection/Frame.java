@@ -0,0 +1,18 @@
+package connectivity.connection;
+
+/**
+ * This class holds the types of the frames sent through a connection. Every frame starts with one of these bytes.
+ */
+/*default*/ final class Frame {
+    /**
+     * A file: its relative path, its last modified time, its size and its content
+     */
+    static final byte FILE = 0;
+    /**
+     * A frame without content, sent to show the connection is still alive
+     */
+    static final byte HEARTBEAT = 1;
+
+    private Frame() {
+    }
+}
@@ -0,0 +1,93 @@
+package connectivity.connection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * This class keeps the connections of a node alive and finds the dead ones. A heartbeat is sent through every
+ * connection at every interval, and a connection on which nothing was seen for a number of intervals is given to the
+ * eviction callback. The heartbeats are written by other threads than the one checking the connections, so a
+ * connection whose send buffer is full can't stop the others from being checked.
+ */
+public class HeartbeatMonitor implements Closeable {
+    public static final long DEFAULT_INTERVAL = 5_000;
+    public static final int DEFAULT_MISS_THRESHOLD = 3;
+
+    private final ConnectionRegistry registry;
+    private final Consumer<Connection> onDead;
+    private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "heartbeat-checker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService senders = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "heartbeat-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledFuture<?> task;
+    private long interval;
+    private int missThreshold;
+
+    /**
+     * The constructor starts checking the connections with the default interval and miss threshold
+     *
+     * @param registry The connections to check
+     * @param onDead   The callback called with every dead connection
+     */
+    public HeartbeatMonitor(ConnectionRegistry registry, Consumer<Connection> onDead) {
+        this.registry = registry;
+        this.onDead = onDead;
+        configure(DEFAULT_INTERVAL, DEFAULT_MISS_THRESHOLD);
+    }
+
+    /**
+     * This method changes how often the heartbeats are sent and after how many missed heartbeats a connection is dead
+     *
+     * @param interval      The interval between two heartbeats in milliseconds
+     * @param missThreshold The number of intervals without any data after which a connection is dead
+     */
+    public synchronized void configure(long interval, int missThreshold) {
+        if (interval <= 0 || missThreshold <= 0)
+            throw new IllegalArgumentException("Invalid heartbeat configuration: " + interval + ", " + missThreshold);
+
+        this.interval = interval;
+        this.missThreshold = missThreshold;
+        if (task != null)
+            task.cancel(false);
+        task = checker.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void check() {
+        long deadline;
+        synchronized (this) {
+            deadline = interval * missThreshold;
+        }
+
+        for (Connection connection : registry.getConnections()) {
+            if (connection.isClosed() || connection.getIdleTime() > deadline) {
+                onDead.accept(connection);
+                continue;
+            }
+
+            try {
+                senders.execute(() -> {
+                    try {
+                        connection.sendHeartbeat();
+                    } catch (IOException e) {
+                        onDead.accept(connection);
+                    }
+                });
+            } catch (RejectedExecutionException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        checker.shutdownNow();
+        senders.shutdownNow();
+    }
+}
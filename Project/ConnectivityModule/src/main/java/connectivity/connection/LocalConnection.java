@@ -1,17 +1,32 @@
 package connectivity.connection;
 
+import connectivity.bandwidth.BandwidthLimits;
+import connectivity.exceptions.HandshakeException;
+import connectivity.metrics.Metrics;
+import connectivity.metrics.PeerStats;
+import connectivity.tracing.SessionTracer;
+import connectivity.naming.HostNameCache;
+
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.file.Path;
-import java.util.Arrays;
-import java.util.Objects;
 
 /**
  * This class simulates a local connection created by an end-point of our application, and manages all tasks that a normal
  * user may encounter
  */
 public class LocalConnection implements Connection {
+    /**
+     * The first bytes sent by both ends of a connection, used to reject the sockets not opened by a peer
+     */
+    private static final int HANDSHAKE_MAGIC = 0x50325031;
+    /**
+     * The time in milliseconds in which the other end has to accept the connection, and then to complete the handshake
+     */
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+
     /**
      * This is the socket through our client will connect to the application
      */
@@ -26,27 +41,89 @@ public class LocalConnection implements Connection {
      * socket
      */
     protected ConnectionSender sender;
+    /**
+     * The ID the peer sent during the handshake
+     */
+    protected String peerId;
+    /**
+     * The ID of the peer that opened the connection, the current one or the other end
+     */
+    protected String initiatorId;
 
     /**
-     * The constructor initializes the socket and the receiver and sender of class. This is the default constructor of class
+     * The constructor initializes the socket and the receiver and sender of class, after both ends exchanged their
+     * IDs. This is the default constructor of class
      * @param clientSocket The socket through which the connection will be made
+     * @param localPeerId The ID of the current peer
+     * @param outgoing Whether the current peer opened the connection, false if it accepted it
      * @throws IOException
+     * @throws HandshakeException The other end is not a peer or it is the current peer
      */
-    /*default*/ LocalConnection(Socket clientSocket) throws IOException {
+    /*default*/ LocalConnection(Socket clientSocket, String localPeerId, boolean outgoing) throws IOException {
         this.clientSocket = clientSocket;
-        this.receiver = new ConnectionReceiver(clientSocket);
-        this.sender = new ConnectionSender(clientSocket);
+        try {
+            this.peerId = handshake(localPeerId);
+        } catch (IOException e) {
+            clientSocket.close();
+            throw e;
+        }
+        this.initiatorId = outgoing ? localPeerId : peerId;
+        PeerStats stats = Metrics.getInstance().peer(peerId);
+        BandwidthLimits limits = BandwidthLimits.getInstance();
+        this.receiver = new ConnectionReceiver(clientSocket, stats, ConnectionReceiver.DEFAULT_CHUNK_SIZE,
+                limits.download(peerId), peerId);
+        this.sender = new ConnectionSender(clientSocket, stats, ConnectionSender.DEFAULT_CHUNK_SIZE,
+                limits.upload(peerId));
     }
 
     /**
      * The constructor in used only to set the socket through which the connection will be made, receiving as parameter
-     * an IP address and a port
+     * an IP address and a port. A peer that doesn't accept the connection in time is given up, so a peer whose packets
+     * are dropped doesn't hold the caller for the whole timeout of the system.
      * @param address The IP address used to create a new socket
      * @param port The port used to create a new socket
+     * @param localPeerId The ID of the current peer
      * @throws IOException
      */
-    public LocalConnection(InetAddress address, int port) throws IOException {
-        this(new Socket(address, port));
+    public LocalConnection(InetAddress address, int port, String localPeerId) throws IOException {
+        this(connect(address, port), localPeerId, true);
+    }
+
+    private static Socket connect(InetAddress address, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), HANDSHAKE_TIMEOUT);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * The method sends the ID of the current peer and reads the ID of the other end
+     * @param localPeerId The ID of the current peer
+     * @return The ID of the other end
+     * @throws IOException
+     */
+    private String handshake(String localPeerId) throws IOException {
+        int timeout = clientSocket.getSoTimeout();
+        clientSocket.setSoTimeout(HANDSHAKE_TIMEOUT);
+
+        DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+        out.writeInt(HANDSHAKE_MAGIC);
+        out.writeUTF(localPeerId);
+        out.flush();
+
+        DataInputStream in = new DataInputStream(clientSocket.getInputStream());
+        if (in.readInt() != HANDSHAKE_MAGIC)
+            throw new HandshakeException(clientSocket.getRemoteSocketAddress() + " is not a peer");
+        String remotePeerId = in.readUTF();
+        if (remotePeerId.equals(localPeerId))
+            throw new HandshakeException("connected to itself");
+
+        clientSocket.setSoTimeout(timeout);
+        return remotePeerId;
     }
 
     /**
@@ -57,7 +134,7 @@ public class LocalConnection implements Connection {
      */
     @Override
     public Path receiveFile(Path to) throws IOException {
-        return receiver.receiveFile(to);
+        return receiver.receiveFile(to, SessionTracer.getInstance().expected(peerId));
     }
 
     /**
@@ -72,12 +149,26 @@ public class LocalConnection implements Connection {
     }
 
     /**
-     * This is a getter just for returning the host name of the clientSocket
+     * The method use the sender to send the content of a file through socket
+     * @param relativePath The path of the file, as the other end will save it
+     * @param modified The time of the last modification of the file, in milliseconds
+     * @param size The number of bytes of the file
+     * @param content The content of the file
+     * @throws IOException
+     */
+    @Override
+    public void sendFile(String relativePath, long modified, long size, InputStream content) throws IOException {
+        sender.sendFile(relativePath, modified, size, content);
+    }
+
+    /**
+     * This is a getter just for returning the host name of the clientSocket. The name is taken from the
+     * {@link HostNameCache}, so the address is returned until the name is resolved.
      * @return A string representing the name of the host of clientSocket
      */
     @Override
     public String getName() {
-        return clientSocket.getInetAddress().getHostName();
+        return HostNameCache.getInstance().getName(clientSocket.getInetAddress());
     }
 
     /**
@@ -89,6 +180,20 @@ public class LocalConnection implements Connection {
         return clientSocket.getInetAddress().getHostAddress();
     }
 
+    /**
+     * This is a getter just for returning the ID of the peer
+     * @return The ID the peer sent during the handshake
+     */
+    @Override
+    public String getPeerId() {
+        return peerId;
+    }
+
+    @Override
+    public String getInitiatorId() {
+        return initiatorId;
+    }
+
     /**
      * The method is used to access and close the clientSocket
      * @throws IOException
@@ -102,30 +207,14 @@ public class LocalConnection implements Connection {
         return clientSocket.isClosed();
     }
 
-    /**
-     * The method overrides the equals() method of class Object in order to compare two object of type LocalConnection
-     * @param o An object
-     * @return
-     */
     @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        LocalConnection that = (LocalConnection) o;
-        if(clientSocket.equals(that.clientSocket))
-            return true;
-
-        return clientSocket.getLocalAddress().equals(that.clientSocket.getLocalAddress());
+    public boolean sendHeartbeat() throws IOException {
+        return sender.sendHeartbeat();
     }
 
-    /**
-     * The method overrides the hashCode() method of class Object in order to get a correct value of a hash code of an
-     * object of type LocalConnection. The hash is based of clientSocket local address.
-     * @return A hash code used
-     */
     @Override
-    public int hashCode() {
-        return Objects.hash(clientSocket.getLocalAddress());
+    public long getIdleTime() {
+        return receiver.getIdleTime();
     }
 
     /**
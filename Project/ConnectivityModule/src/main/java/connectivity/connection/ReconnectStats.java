@@ -0,0 +1,64 @@
+package connectivity.connection;
+
+/**
+ * This class keeps the reconnection history of a supervised peer
+ */
+public class ReconnectStats {
+    private int reconnects;
+    private int failedAttempts;
+    private long totalDowntime;
+    /**
+     * The moment the connection was lost in milliseconds, or 0 if the peer is connected
+     */
+    private long downSince;
+
+    /*default*/ synchronized void lost() {
+        if (downSince == 0)
+            downSince = System.currentTimeMillis();
+    }
+
+    /*default*/ synchronized void failedAttempt() {
+        failedAttempts++;
+    }
+
+    /*default*/ synchronized void reconnected() {
+        if (downSince != 0) {
+            totalDowntime += System.currentTimeMillis() - downSince;
+            downSince = 0;
+        }
+        reconnects++;
+    }
+
+    /**
+     * @return The number of times the peer was reconnected
+     */
+    public synchronized int getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * @return The number of attempts to reconnect that failed
+     */
+    public synchronized int getFailedAttempts() {
+        return failedAttempts;
+    }
+
+    /**
+     * @return The time in milliseconds the peer spent disconnected, including the current disconnection
+     */
+    public synchronized long getDowntime() {
+        return totalDowntime + (downSince == 0 ? 0 : System.currentTimeMillis() - downSince);
+    }
+
+    public synchronized boolean isDown() {
+        return downSince != 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "reconnects: " + reconnects
+                + ", failed attempts: " + failedAttempts
+                + ", downtime: " + getDowntime() / 1000 + "s"
+                + (isDown() ? " (reconnecting)" : "");
+    }
+}
@@ -0,0 +1,168 @@
+package connectivity.connection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * This class reconnects the peers the user connected to, when their connections are lost. The attempts are spaced by a
+ * jittered exponential {@link Backoff} and stop when the peer is connected again, either by this class or because the
+ * peer connected back first. The listeners are told about every restored connection, so the work that was interrupted
+ * can be resumed. The attempts run on a few threads, so a peer that takes long to answer doesn't delay the others.
+ */
+public class ReconnectSupervisor implements Closeable {
+    /**
+     * The number of peers that are reconnected at the same time
+     */
+    private static final int ATTEMPT_THREADS = 4;
+
+    /**
+     * The address of a supervised peer
+     */
+    private record Target(InetAddress address, int port) {
+    }
+
+    private final ConnectionRegistry registry;
+    private final String localPeerId;
+    private final Backoff backoff;
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+    private final Map<String, ReconnectStats> stats = new ConcurrentHashMap<>();
+    /**
+     * The peers for which an attempt is scheduled, so a peer that is lost twice isn't reconnected twice
+     */
+    private final Map<String, Boolean> reconnecting = new ConcurrentHashMap<>();
+    private final List<Consumer<Connection>> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(ATTEMPT_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "reconnect-supervisor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param registry    The registry in which the restored connections are added
+     * @param localPeerId The ID of the current peer, sent during the handshake
+     */
+    public ReconnectSupervisor(ConnectionRegistry registry, String localPeerId) {
+        this(registry, localPeerId, new Backoff(1_000, 60_000, new Random()));
+    }
+
+    public ReconnectSupervisor(ConnectionRegistry registry, String localPeerId, Backoff backoff) {
+        this.registry = registry;
+        this.localPeerId = localPeerId;
+        this.backoff = backoff;
+    }
+
+    /**
+     * This method starts supervising a peer the user connected to
+     *
+     * @param connection The connection to the peer
+     * @param address    The address the connection was made to
+     * @param port       The port the connection was made to
+     */
+    public void supervise(Connection connection, InetAddress address, int port) {
+        targets.put(connection.getPeerId(), new Target(address, port));
+        stats.computeIfAbsent(connection.getPeerId(), id -> new ReconnectStats());
+    }
+
+    /**
+     * This method stops supervising a peer, because the user disconnected it
+     *
+     * @param peerId The ID of the peer
+     */
+    public void forget(String peerId) {
+        targets.remove(peerId);
+        stats.remove(peerId);
+    }
+
+    /**
+     * This method starts reconnecting a peer whose connection was lost. The peers that are not supervised are
+     * ignored.
+     *
+     * @param connection The lost connection
+     */
+    public void lost(Connection connection) {
+        String peerId = connection.getPeerId();
+        ReconnectStats peerStats = stats.get(peerId);
+
+        if (peerStats == null || !targets.containsKey(peerId))
+            return;
+
+        peerStats.lost();
+        if (reconnecting.putIfAbsent(peerId, Boolean.TRUE) == null)
+            schedule(peerId, 0);
+    }
+
+    private void schedule(String peerId, int attempt) {
+        try {
+            executor.schedule(() -> attempt(peerId, attempt), backoff.nextDelay(attempt), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            reconnecting.remove(peerId);
+        }
+    }
+
+    /**
+     * This method makes one attempt to reconnect a peer and schedules the next one if it fails
+     *
+     * @param peerId  The ID of the peer
+     * @param attempt The number of attempts that already failed
+     */
+    private void attempt(String peerId, int attempt) {
+        Target target = targets.get(peerId);
+        ReconnectStats peerStats = stats.get(peerId);
+
+        if (target == null || peerStats == null) {
+            reconnecting.remove(peerId);
+            return;
+        }
+
+        Connection current = registry.get(peerId);
+        if (current != null && !current.isClosed()) {
+            reconnected(peerId, peerStats, current);
+            return;
+        }
+
+        try {
+            LocalConnection connection = new LocalConnection(target.address(), target.port(), localPeerId);
+            if (!connection.getPeerId().equals(peerId)) {
+                connection.close();
+                throw new IOException("Another peer answered on " + target.address());
+            }
+            reconnected(peerId, peerStats, registry.register(connection));
+        } catch (IOException e) {
+            peerStats.failedAttempt();
+            schedule(peerId, attempt + 1);
+        }
+    }
+
+    private void reconnected(String peerId, ReconnectStats peerStats, Connection connection) {
+        reconnecting.remove(peerId);
+        peerStats.reconnected();
+        listeners.forEach(listener -> listener.accept(connection));
+    }
+
+    /**
+     * This method adds a listener called from the supervisor thread with every restored connection
+     *
+     * @param listener The listener to add
+     */
+    public void addListener(Consumer<Connection> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return The reconnection history of every supervised peer, by peer ID
+     */
+    public Map<String, ReconnectStats> getStats() {
+        return Map.copyOf(stats);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,235 @@
+package connectivity.connection;
+
+import connectivity.buffers.BufferPool;
+import connectivity.metrics.Counter;
+import connectivity.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+
+/**
+ * This class forwards a file to the next peer of a chain while the file is being received. The receiver gives it every
+ * chunk it reads, and a thread sends them to the next peer as a frame of its own, so the next peer starts receiving
+ * the file long before the current one received all of it. The chunks are gathered in blocks of the
+ * {@link BufferPool}, and the receiver waits while the next peer is {@link #WINDOW} blocks behind, so a chain runs at
+ * the speed of its slowest link.
+ * A relay that fails only stops forwarding: the file is still received. Since a frame that was started can't be
+ * completed otherwise, the connection to the next peer is closed. The forwarded bytes are counted in the
+ * "relay.bytes" counter and the relays that failed in "relay.failed".
+ */
+public class Relay {
+    /**
+     * The size of the blocks in which the chunks are forwarded
+     */
+    public static final int BLOCK_SIZE = 64 * 1024;
+    /**
+     * The number of blocks the next peer may be behind the receiver
+     */
+    public static final int WINDOW = 64;
+    /**
+     * The time in milliseconds after which a waiting receiver or sender looks again whether the other end failed
+     */
+    private static final long CHECK_MILLIS = 100;
+
+    private static final Counter relayedBytes = Metrics.getInstance().counter("relay.bytes");
+    private static final Counter failures = Metrics.getInstance().counter("relay.failed");
+    private static final ExecutorService threads = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "relay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A block of the file, or the end of the file if the buffer is null
+     */
+    private record Block(ByteBuffer buffer, int length) {
+    }
+
+    private static final Block END = new Block(null, 0);
+
+    private final Connection next;
+    private final BlockingQueue<Block> blocks = new ArrayBlockingQueue<>(WINDOW);
+    private final CompletableFuture<Void> sent = new CompletableFuture<>();
+    private ByteBuffer current;
+    /**
+     * Whether the receiver stopped before the end of the file
+     */
+    private volatile boolean aborted;
+
+    private Relay(Connection next) {
+        this.next = next;
+    }
+
+    /**
+     * This method starts forwarding a file to the next peer
+     * @param next The connection to the next peer
+     * @param pathName The path of the file, as the next peer will save it
+     * @param modified The time of the last modification of the file, in milliseconds
+     * @param size The number of bytes of the file
+     * @return The relay to which the receiver gives the chunks of the file
+     */
+    public static Relay start(Connection next, String pathName, long modified, long size) {
+        Relay relay = new Relay(next);
+        threads.execute(() -> {
+            try (InputStream content = relay.new Content()) {
+                next.sendFile(pathName, modified, size, content);
+                relay.sent.complete(null);
+            } catch (IOException e) {
+                relay.fail(e);
+            }
+        });
+        return relay;
+    }
+
+    /**
+     * This method gives a chunk of the file to the relay. It waits while the next peer is too far behind and returns
+     * at once if the relay failed.
+     * @param bytes The array holding the chunk
+     * @param offset The offset of the chunk in the array
+     * @param length The length of the chunk
+     * @throws InterruptedIOException The receiver was interrupted while waiting
+     */
+    public void write(byte[] bytes, int offset, int length) throws InterruptedIOException {
+        while (length > 0 && !sent.isDone()) {
+            if (current == null)
+                current = BufferPool.heap().acquire(BLOCK_SIZE);
+            int count = Math.min(length, current.remaining());
+            current.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+            if (!current.hasRemaining())
+                flush();
+        }
+    }
+
+    /**
+     * This method tells the relay all the file was given to it
+     * @throws InterruptedIOException The receiver was interrupted while waiting
+     */
+    public void finish() throws InterruptedIOException {
+        if (current != null)
+            flush();
+        put(END);
+    }
+
+    /**
+     * This method tells the relay the receiver stopped before the end of the file, so the frame sent to the next peer
+     * can't be completed
+     */
+    public void abort() {
+        aborted = true;
+        if (current != null)
+            BufferPool.heap().release(current);
+        current = null;
+    }
+
+    /**
+     * @return A future completed when all the file was sent to the next peer, or with the exception that stopped it
+     */
+    public CompletableFuture<Void> getSent() {
+        return sent;
+    }
+
+    private void flush() throws InterruptedIOException {
+        ByteBuffer buffer = current;
+        current = null;
+        put(new Block(buffer, buffer.position()));
+    }
+
+    private void put(Block block) throws InterruptedIOException {
+        try {
+            while (!blocks.offer(block, CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (sent.isDone()) {
+                    release(block);
+                    return;
+                }
+            }
+            // The sender may have failed while the block was added
+            if (sent.isDone())
+                drain();
+        } catch (InterruptedException e) {
+            release(block);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Relay interrupted");
+        }
+    }
+
+    private void fail(IOException e) {
+        failures.increment();
+        System.err.println("Relay to " + next.getName() + " failed: " + e.getMessage());
+        try {
+            next.close();
+        } catch (IOException ignored) {
+        }
+        sent.completeExceptionally(e);
+        drain();
+    }
+
+    private void drain() {
+        Block block;
+        while ((block = blocks.poll()) != null)
+            release(block);
+    }
+
+    private static void release(Block block) {
+        if (block.buffer() != null)
+            BufferPool.heap().release(block.buffer());
+    }
+
+    /**
+     * The content of the file as the sender of the next peer reads it
+     */
+    private class Content extends InputStream {
+        private Block block;
+        private int position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) throws IOException {
+            while (block == null || position == block.length()) {
+                if (block != null)
+                    release(block);
+                block = next();
+                position = 0;
+                if (block == END)
+                    return -1;
+            }
+
+            int count = Math.min(len, block.length() - position);
+            block.buffer().get(position, bytes, off, count);
+            position += count;
+            relayedBytes.add(count);
+            return count;
+        }
+
+        private Block next() throws IOException {
+            try {
+                while (true) {
+                    Block next = blocks.poll(CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                    if (next != null)
+                        return next;
+                    if (aborted)
+                        throw new IOException("The file stopped before its end");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Relay interrupted");
+            }
+        }
+
+        @Override
+        public void close() {
+            if (block != null && block != END)
+                release(block);
+            block = null;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package connectivity.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps the files that are forwarded to the next peer of a chain while they are received. A route is added
+ * for every file of a chain replication before the file is sent, and the receiver of the connection from the previous
+ * peer starts a {@link Relay} when the file arrives. The routes belong to a session, which is finished when the
+ * previous peer sent all its files.
+ */
+public class RelayTable {
+    private static final RelayTable instance = new RelayTable();
+
+    /**
+     * The next peer of a file and the session it belongs to
+     */
+    private record Route(String sessionId, Connection next) {
+    }
+
+    /**
+     * The routes by the ID of the previous peer and the path of the file
+     */
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    /**
+     * The relays started in every session
+     */
+    private final Map<String, List<Relay>> started = new ConcurrentHashMap<>();
+
+    public static RelayTable getInstance() {
+        return instance;
+    }
+
+    /**
+     * This method adds the route of a file
+     * @param sessionId The session of the chain replication
+     * @param fromPeerId The ID of the peer from which the file comes
+     * @param pathName The path of the file, as the previous peer sends it
+     * @param next The connection to the peer to which the file is forwarded
+     */
+    public void expect(String sessionId, String fromPeerId, String pathName, Connection next) {
+        started.computeIfAbsent(sessionId, key -> new ArrayList<>());
+        routes.put(key(fromPeerId, pathName), new Route(sessionId, next));
+    }
+
+    /**
+     * This method starts forwarding a file that has a route, and removes the route
+     * @param fromPeerId The ID of the peer from which the file comes
+     * @param pathName The path of the file
+     * @param modified The time of the last modification of the file, in milliseconds
+     * @param size The number of bytes of the file
+     * @return The relay of the file, or null if the file has no route
+     */
+    /*default*/ Relay take(String fromPeerId, String pathName, long modified, long size) {
+        Route route = routes.remove(key(fromPeerId, pathName));
+        if (route == null || route.next().isClosed())
+            return null;
+
+        Relay relay = Relay.start(route.next(), pathName, modified, size);
+        List<Relay> relays = started.get(route.sessionId());
+        if (relays != null) {
+            synchronized (relays) {
+                relays.add(relay);
+            }
+        }
+        return relay;
+    }
+
+    /**
+     * This method removes the routes of a session whose files didn't arrive
+     * @param sessionId The session of the chain replication
+     * @return A future completed when the files of the session that are being forwarded were sent, even if some of
+     * them failed
+     */
+    public CompletableFuture<Void> finish(String sessionId) {
+        routes.values().removeIf(route -> route.sessionId().equals(sessionId));
+        List<Relay> relays = started.remove(sessionId);
+        if (relays == null)
+            return CompletableFuture.completedFuture(null);
+
+        synchronized (relays) {
+            return CompletableFuture.allOf(relays.stream()
+                    .map(relay -> relay.getSent().exceptionally(e -> null))
+                    .toArray(CompletableFuture[]::new));
+        }
+    }
+
+    private static String key(String peerId, String pathName) {
+        return peerId + '/' + pathName;
+    }
+}
@@ -13,4 +13,12 @@ public class HandshakeException extends SSLHandshakeException {
     public HandshakeException(int peerID) {
         super("Handshake failed");
     }
+
+    /**
+     * The method returns an exception with the text 'Handshake failed: 'reason''
+     * @param reason The reason for which the handshake failed
+     */
+    public HandshakeException(String reason) {
+        super("Handshake failed: " + reason);
+    }
 }
@@ -0,0 +1,49 @@
+package connectivity.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A counter that can be increased from many threads at once at the cost of an uncontended addition. It can also go
+ * down, for counting the operations in progress. Its rate is measured by {@link Metrics} over a fixed window, so all
+ * the readers see the same rate.
+ */
+public class Counter implements CounterMBean {
+    private final LongAdder count = new LongAdder();
+    private long lastCount;
+    private long lastSample = System.nanoTime();
+    private volatile double rate;
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void decrement() {
+        count.decrement();
+    }
+
+    public void add(long value) {
+        count.add(value);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getRatePerSecond() {
+        return rate;
+    }
+
+    /**
+     * This method ends a window of the rate, it is called only by the sampling thread of {@link Metrics}
+     * @param now The current time in nanoseconds
+     */
+    /*default*/ void sample(long now) {
+        long current = count.sum();
+        rate = (current - lastCount) * 1e9 / Math.max(1, now - lastSample);
+
+        lastCount = current;
+        lastSample = now;
+    }
+}
@@ -0,0 +1,13 @@
+package connectivity.metrics;
+
+/**
+ * The JMX view of a {@link Counter}
+ */
+public interface CounterMBean {
+    long getCount();
+
+    /**
+     * @return The average increase per second during the last sampling window of {@link Metrics}
+     */
+    double getRatePerSecond();
+}
@@ -0,0 +1,19 @@
+package connectivity.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A value read only when it is asked for, like the size of a table
+ */
+public class Gauge implements GaugeMBean {
+    private final LongSupplier supplier;
+
+    public Gauge(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    @Override
+    public long getValue() {
+        return supplier.getAsLong();
+    }
+}
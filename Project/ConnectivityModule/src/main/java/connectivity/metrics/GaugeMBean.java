@@ -0,0 +1,8 @@
+package connectivity.metrics;
+
+/**
+ * The JMX view of a {@link Gauge}
+ */
+public interface GaugeMBean {
+    long getValue();
+}
@@ -0,0 +1,18 @@
+package connectivity.metrics;
+
+/**
+ * The JMX view of a {@link Histogram}
+ */
+public interface HistogramMBean {
+    long getCount();
+
+    double getMean();
+
+    long getMax();
+
+    long getP50();
+
+    long getP90();
+
+    long getP99();
+}
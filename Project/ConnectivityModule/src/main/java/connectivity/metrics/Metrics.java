@@ -0,0 +1,101 @@
+package connectivity.metrics;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * This class keeps the metrics of the application, by name, and exposes every one of them as an MBean of the
+ * platform MBean server, under the "p2p" domain. A metric is created the first time it is asked for, so the hot paths
+ * should keep the returned metric in a field instead of looking it up on every use.
+ */
+public class Metrics {
+    public static final String DOMAIN = "p2p";
+    /**
+     * The length in milliseconds of the window over which the rates of the counters are measured
+     */
+    public static final long SAMPLE_PERIOD = 5_000;
+
+    private static final Metrics instance = new Metrics();
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final Map<String, PeerStats> peers = new ConcurrentHashMap<>();
+
+    /**
+     * The thread that ends the window of the rates of all the counters at the same time
+     */
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Metrics() {
+        sampler.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            counters.values().forEach(counter -> counter.sample(now));
+        }, SAMPLE_PERIOD, SAMPLE_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The metrics shared by the whole application
+     */
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param name The name of the counter, like "transfer.streams.active"
+     * @return The counter with that name
+     */
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, key -> register("Counter", key, new Counter()));
+    }
+
+    /**
+     * @param name The name of the histogram, like "transfer.send.latency"
+     * @return The histogram with that name
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> register("Histogram", key, new Histogram()));
+    }
+
+    /**
+     * This method adds a gauge, replacing the gauge with the same name
+     *
+     * @param name     The name of the gauge, like "discovery.peers"
+     * @param supplier The function reading the value of the gauge
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, register("Gauge", name, new Gauge(supplier)));
+    }
+
+    /**
+     * @param peerId The ID of a peer
+     * @return The amount of data exchanged with that peer
+     */
+    public PeerStats peer(String peerId) {
+        return peers.computeIfAbsent(peerId, key -> register("Peer", key, new PeerStats()));
+    }
+
+    private static <T> T register(String type, String name, T metric) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+            server.registerMBean(metric, objectName);
+        } catch (Exception ignored) {
+        }
+        return metric;
+    }
+}
@@ -0,0 +1,70 @@
+package connectivity.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The amount of data exchanged with a single peer
+ */
+public class PeerStats implements PeerStatsMBean {
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder filesSent = new LongAdder();
+    private final LongAdder filesReceived = new LongAdder();
+    /**
+     * The average speed in bytes per second at which files were sent to the peer, or 0 if it isn't known yet
+     */
+    private volatile double uploadRate;
+
+    public void bytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    public void bytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    public void fileSent() {
+        filesSent.increment();
+    }
+
+    public void fileReceived() {
+        filesReceived.increment();
+    }
+
+    /**
+     * This method adds the speed at which a file was sent to the average upload speed
+     * @param bytes The size of the file
+     * @param nanos The time in nanoseconds the file took to be sent
+     */
+    public void uploadMeasured(long bytes, long nanos) {
+        if (nanos <= 0)
+            return;
+        double rate = bytes * 1e9 / nanos;
+        uploadRate = uploadRate == 0 ? rate : 0.7 * uploadRate + 0.3 * rate;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getFilesSent() {
+        return filesSent.sum();
+    }
+
+    @Override
+    public long getFilesReceived() {
+        return filesReceived.sum();
+    }
+
+    @Override
+    public long getUploadRate() {
+        return (long) uploadRate;
+    }
+}
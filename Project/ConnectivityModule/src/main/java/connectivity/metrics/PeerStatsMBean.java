@@ -0,0 +1,19 @@
+package connectivity.metrics;
+
+/**
+ * The JMX view of the {@link PeerStats} of a peer
+ */
+public interface PeerStatsMBean {
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getFilesSent();
+
+    long getFilesReceived();
+
+    /**
+     * @return The average speed in bytes per second at which files were sent to the peer, or 0 if it isn't known yet
+     */
+    long getUploadRate();
+}
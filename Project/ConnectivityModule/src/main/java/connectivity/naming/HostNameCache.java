@@ -0,0 +1,140 @@
+package connectivity.naming;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * This class keeps the names of the devices found on the local network. A name is never resolved on the calling
+ * thread: until the reverse DNS lookup is done the address itself is used as the name, and the listeners are told
+ * when the real name is known. The names are kept for a while, the failed lookups for a shorter while, and the names
+ * advertised by the peers themselves are used before any lookup.
+ */
+public class HostNameCache {
+    /**
+     * The time in milliseconds for which a resolved or advertised name is kept
+     */
+    private static final long NAME_TTL = TimeUnit.MINUTES.toMillis(10);
+    /**
+     * The time in milliseconds for which a failed lookup is kept, so it's not retried on every refresh of a table
+     */
+    private static final long NEGATIVE_TTL = TimeUnit.MINUTES.toMillis(1);
+    private static final int LOOKUP_THREADS = 4;
+
+    private static final HostNameCache instance = new HostNameCache();
+
+    /**
+     * A name of the cache
+     *
+     * @param name    The name of the device, or its address if the lookup failed
+     * @param expires The time in milliseconds after which the name is looked up again
+     */
+    private record Entry(String name, long expires) {
+        boolean isExpired() {
+            return System.currentTimeMillis() > expires;
+        }
+    }
+
+    private final Map<InetAddress, Entry> names = new ConcurrentHashMap<>();
+    /**
+     * The addresses that are being looked up right now, so the same address isn't looked up twice at once
+     */
+    private final Map<InetAddress, Boolean> pending = new ConcurrentHashMap<>();
+    private final List<Consumer<InetAddress>> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService executor = Executors.newFixedThreadPool(LOOKUP_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "host-name-lookup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private HostNameCache() {
+    }
+
+    /**
+     * @return The cache shared by all the peers of the application
+     */
+    public static HostNameCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * This method returns the name of a device without blocking. If the name is not known yet, or it expired, a
+     * lookup is started and the address, or the expired name, is returned.
+     *
+     * @param address The address of the device
+     * @return The name of the device or its address
+     */
+    public String getName(InetAddress address) {
+        Entry entry = names.get(address);
+
+        if (entry == null || entry.isExpired())
+            lookup(address);
+
+        return entry == null ? address.getHostAddress() : entry.name();
+    }
+
+    /**
+     * This method saves the name a device advertised for itself, for example in its discovery beacon
+     *
+     * @param address The address of the device
+     * @param name    The advertised name
+     */
+    public void advertise(InetAddress address, String name) {
+        if (name == null || name.isBlank())
+            return;
+        update(address, new Entry(name, System.currentTimeMillis() + NAME_TTL));
+    }
+
+    /**
+     * This method adds a listener called with the address of a device every time the name of the device changes.
+     * The listener is called from a lookup thread.
+     *
+     * @param listener The listener to add
+     */
+    public void addListener(Consumer<InetAddress> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<InetAddress> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * This method starts the reverse DNS lookup of an address on a lookup thread
+     *
+     * @param address The address to look up
+     */
+    private void lookup(InetAddress address) {
+        if (pending.putIfAbsent(address, Boolean.TRUE) != null)
+            return;
+
+        try {
+            executor.execute(() -> {
+                try {
+                    String ip = address.getHostAddress();
+                    String name = InetAddress.getByAddress(address.getAddress()).getHostName();
+                    boolean resolved = !name.equals(ip);
+                    long ttl = resolved ? NAME_TTL : NEGATIVE_TTL;
+
+                    Entry advertised = names.get(address);
+                    if (resolved || advertised == null || advertised.isExpired())
+                        update(address, new Entry(name, System.currentTimeMillis() + ttl));
+                } catch (Exception ignored) {
+                } finally {
+                    pending.remove(address);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(address);
+        }
+    }
+
+    private void update(InetAddress address, Entry entry) {
+        Entry previous = names.put(address, entry);
+
+        if (previous == null || !previous.name().equals(entry.name()))
+            listeners.forEach(listener -> listener.accept(address));
+    }
+}
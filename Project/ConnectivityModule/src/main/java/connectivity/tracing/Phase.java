@@ -0,0 +1,29 @@
+package connectivity.tracing;
+
+/**
+ * Enum with the phases in which the time of a sync session is spent:
+ * Building the tree of a directory from the disk.
+ * Writing an action as JSON.
+ * Reading an action from JSON.
+ * Handling an action, besides the other phases.
+ * Deciding which files are pushed to a peer.
+ * Deleting the files a peer deleted.
+ * Waiting for the transfer scheduler to start sending a file.
+ * Sending a file through a socket, including reading it from the disk.
+ * Receiving a file from a socket, besides writing it to the disk.
+ * Writing a received file to the disk.
+ * The last wait of the poll of the incoming files before the data of the session was found.
+ */
+public enum Phase {
+    SCAN,
+    ENCODE,
+    DECODE,
+    ACTION,
+    PUSH,
+    DELETE,
+    QUEUE,
+    SEND,
+    RECEIVE,
+    DISK_WRITE,
+    WAIT
+}
@@ -0,0 +1,13 @@
+package connectivity.tracing;
+
+import jdk.jfr.*;
+
+/**
+ * The flight recorder event of a wait of the thread polling the connections for incoming files
+ */
+@Name("p2p.PollWait")
+@Label("Poll Wait")
+@Category({"P2P", "Sync"})
+@StackTrace(false)
+public class PollWaitEvent extends Event {
+}
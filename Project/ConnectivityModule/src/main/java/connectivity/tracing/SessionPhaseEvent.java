@@ -0,0 +1,32 @@
+package connectivity.tracing;
+
+import jdk.jfr.*;
+
+/**
+ * The flight recorder event of a phase of a sync session. The duration of the event includes the nested phases, the
+ * self time doesn't.
+ */
+@Name("p2p.SessionPhase")
+@Label("Session Phase")
+@Category({"P2P", "Sync"})
+@Description("A phase of a sync session, correlated with the other phases by the session ID")
+@StackTrace(false)
+class SessionPhaseEvent extends Event {
+    @Label("Session ID")
+    String sessionId;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Detail")
+    @Description("The path or the action the phase worked on")
+    String detail;
+
+    @Label("Size")
+    @Description("The bytes transferred or the entries scanned, depending on the phase")
+    long size;
+
+    @Label("Self Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long selfTime;
+}
@@ -0,0 +1,83 @@
+package connectivity.tracing;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The time a sync session spent in every phase, as seen by the current peer
+ */
+public class SessionTrace {
+    private final String sessionId;
+    private final long started = System.currentTimeMillis();
+    private volatile long ended = started;
+    private volatile String description = "";
+    private final Map<Phase, Long> times = new EnumMap<>(Phase.class);
+    private final Map<Phase, Long> sizes = new EnumMap<>(Phase.class);
+
+    SessionTrace(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    synchronized void record(Phase phase, long nanos, long size) {
+        times.merge(phase, nanos, Long::sum);
+        sizes.merge(phase, size, Long::sum);
+        ended = System.currentTimeMillis();
+    }
+
+    /**
+     * @param description The description of the session, kept only if the session wasn't described yet, so the
+     *                    peer that started a session describes it when both peers run in the same process
+     */
+    synchronized void describe(String description) {
+        if (this.description.isEmpty())
+            this.description = description;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * @return The action and the peer of the session
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return The time in milliseconds between the first and the last phase of the session
+     */
+    public long getWallTime() {
+        return ended - started;
+    }
+
+    /**
+     * @return The time in nanoseconds spent in every phase
+     */
+    public synchronized Map<Phase, Long> getTimes() {
+        return new EnumMap<>(times);
+    }
+
+    /**
+     * @return The bytes transferred or the entries scanned in every phase
+     */
+    public synchronized Map<Phase, Long> getSizes() {
+        return new EnumMap<>(sizes);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder(sessionId.length() > 8 ? sessionId.substring(0, 8) : sessionId)
+                .append(" ").append(description)
+                .append(" | wall ").append(getWallTime()).append(" ms");
+
+        times.forEach((phase, nanos) -> {
+            builder.append(" | ").append(phase.name().toLowerCase())
+                    .append(" ").append(String.format("%.1f", nanos / 1e6)).append(" ms");
+            long size = sizes.getOrDefault(phase, 0L);
+            if (size > 0)
+                builder.append(" (").append(size).append(")");
+        });
+        return builder.toString();
+    }
+}
@@ -0,0 +1,166 @@
+package connectivity.tracing;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class measures where the time of every sync session goes. The phases are measured by {@link Span}s, which are
+ * also emitted as flight recorder events, and the time of every phase is summed by session for the last sessions.
+ * <p>
+ * The session of the work done on a thread is the session of the outermost span that has one. The files received
+ * from a peer belong to the session the current peer is waiting on for that peer.
+ */
+public class SessionTracer {
+    /**
+     * The number of sessions that are kept
+     */
+    private static final int KEPT_SESSIONS = 100;
+
+    private static final SessionTracer instance = new SessionTracer();
+
+    private final ThreadLocal<Span> current = new ThreadLocal<>();
+    /**
+     * The time the current thread waited for the last poll before the data it's handling now was found
+     */
+    private final ThreadLocal<Long> pendingWait = new ThreadLocal<>();
+    private final Map<String, String> expected = new ConcurrentHashMap<>();
+    private final Map<String, SessionTrace> sessions = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SessionTrace> eldest) {
+            return size() > KEPT_SESSIONS;
+        }
+    };
+
+    private SessionTracer() {
+    }
+
+    /**
+     * @return The tracer shared by the whole application
+     */
+    public static SessionTracer getInstance() {
+        return instance;
+    }
+
+    /**
+     * This method starts measuring a phase of the session of the current thread
+     *
+     * @param phase  The phase
+     * @param detail The path or the action the phase works on
+     * @return The span, which must be closed on the same thread
+     */
+    public Span start(Phase phase, String detail) {
+        Span parent = current.get();
+        return start(phase, parent != null ? parent.getSessionId() : null, detail);
+    }
+
+    /**
+     * This method starts measuring a phase of a session. The spans started on the same thread until this one is
+     * closed belong to the same session.
+     *
+     * @param phase     The phase
+     * @param sessionId The ID of the session, or null if it isn't known
+     * @param detail    The path or the action the phase works on
+     * @return The span, which must be closed on the same thread
+     */
+    public Span start(Phase phase, String sessionId, String detail) {
+        Span span = new Span(this, current.get(), phase, sessionId, detail);
+        current.set(span);
+        return span;
+    }
+
+    void finish(Span span) {
+        if (current.get() == span)
+            current.set(span.getParent());
+    }
+
+    /**
+     * This method adds time to a phase of a session
+     *
+     * @param sessionId The ID of the session, nothing is kept if it is null
+     * @param phase     The phase
+     * @param nanos     The time spent in the phase
+     * @param size      The bytes transferred or the entries scanned
+     */
+    public void record(String sessionId, Phase phase, long nanos, long size) {
+        if (sessionId == null)
+            return;
+        trace(sessionId).record(phase, nanos, size);
+    }
+
+    /**
+     * This method describes a session, for example with its action and its peer
+     *
+     * @param sessionId   The ID of the session
+     * @param description The description
+     */
+    public void describe(String sessionId, String description) {
+        if (sessionId != null)
+            trace(sessionId).describe(description);
+    }
+
+    private synchronized SessionTrace trace(String sessionId) {
+        return sessions.computeIfAbsent(sessionId, SessionTrace::new);
+    }
+
+    /**
+     * This method keeps the time the current thread waited for the last poll, until the session of the data it found
+     * is known
+     *
+     * @param nanos The time waited
+     */
+    public void waited(long nanos) {
+        pendingWait.set(nanos);
+    }
+
+    /**
+     * This method adds the time the current thread last waited to a session
+     *
+     * @param sessionId The ID of the session of the data the thread found
+     */
+    public void claimWait(String sessionId) {
+        Long nanos = pendingWait.get();
+        pendingWait.remove();
+        if (nanos != null)
+            record(sessionId, Phase.WAIT, nanos, 0);
+    }
+
+    /**
+     * This method tells the tracer that the files received from a peer belong to a session, until it is finished
+     *
+     * @param peerId    The ID of the peer
+     * @param sessionId The ID of the session
+     */
+    public void expect(String peerId, String sessionId) {
+        if (peerId != null && sessionId != null)
+            expected.put(peerId, sessionId);
+    }
+
+    /**
+     * @param peerId The ID of a peer
+     * @return The session the files received from the peer belong to, or null
+     */
+    public String expected(String peerId) {
+        return peerId == null ? null : expected.get(peerId);
+    }
+
+    /**
+     * This method tells the tracer that a session expected from a peer is finished
+     *
+     * @param peerId    The ID of the peer
+     * @param sessionId The ID of the session
+     */
+    public void finished(String peerId, String sessionId) {
+        if (peerId != null && sessionId != null)
+            expected.remove(peerId, sessionId);
+    }
+
+    /**
+     * @param count The number of sessions
+     * @return The last sessions, the most recent first
+     */
+    public synchronized List<SessionTrace> getRecent(int count) {
+        List<SessionTrace> recent = new ArrayList<>(sessions.values());
+        Collections.reverse(recent);
+        return recent.subList(0, Math.min(count, recent.size()));
+    }
+}
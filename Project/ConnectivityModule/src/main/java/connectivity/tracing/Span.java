@@ -0,0 +1,88 @@
+package connectivity.tracing;
+
+/**
+ * A phase of a sync session that is being measured on the current thread. The spans of a thread are nested: a span
+ * started while another one is open belongs to the same session, unless it has its own, and its time is not counted
+ * in the self time of the outer span.
+ */
+public class Span implements AutoCloseable {
+    private final SessionTracer tracer;
+    private final Span parent;
+    private final Phase phase;
+    private final String detail;
+    private final SessionPhaseEvent event = new SessionPhaseEvent();
+    private final long start = System.nanoTime();
+    private String sessionId;
+    /**
+     * The time spent in the nested spans, in nanoseconds
+     */
+    private long nested;
+    private long size;
+
+    Span(SessionTracer tracer, Span parent, Phase phase, String sessionId, String detail) {
+        this.tracer = tracer;
+        this.parent = parent;
+        this.phase = phase;
+        this.sessionId = sessionId;
+        this.detail = detail;
+        event.begin();
+    }
+
+    Span getParent() {
+        return parent;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * This method sets the session of a span that was started before its session was known, like the span of
+     * reading an action
+     *
+     * @param sessionId The ID of the session
+     */
+    public void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * @param size The bytes transferred or the entries scanned
+     */
+    public void addSize(long size) {
+        this.size += size;
+    }
+
+    /**
+     * This method counts time spent in a nested phase that wasn't measured by its own span, like the many short
+     * writes to the disk of a received file
+     *
+     * @param phase The nested phase
+     * @param nanos The time spent in the nested phase
+     */
+    public void addNested(Phase phase, long nanos) {
+        nested += nanos;
+        tracer.record(sessionId, phase, nanos, 0);
+    }
+
+    @Override
+    public void close() {
+        event.end();
+        long duration = System.nanoTime() - start;
+        long self = Math.max(0, duration - nested);
+
+        tracer.finish(this);
+        if (parent != null)
+            parent.nested += duration;
+        tracer.record(sessionId, phase, self, size);
+
+        if (event.shouldCommit()) {
+            event.sessionId = sessionId;
+            event.phase = phase.name();
+            event.detail = detail;
+            event.size = size;
+            event.selfTime = self;
+            event.commit();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package console;
 
+import connectivity.broadcast.DiscoveryMode;
 import console.commands.*;
 import george.resident.exceptions.BadSyncDirectory;
 import george.resident.sync.ConnectivityResident;
@@ -12,7 +13,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class ConsoleInterface {
-    private static final String manual = "peer <port> <path> [--watch]";
+    private static final String manual = "peer <port> <path> [--watch] [--multicast]";
 
     static final private Scanner input = new Scanner(System.in);
     static final private Stream<Command> commandStream = Stream.of(
@@ -22,7 +23,11 @@ public class ConsoleInterface {
             new SyncCommand(),
             new ExitCommand(),
             new ConnectCommand(),
-            new ConnectedCommand()
+            new ConnectedCommand(),
+            new TraceCommand(),
+            new LimitCommand(),
+            new SwarmCommand(),
+            new ChainCommand()
     );
 
     public static void main(String[] args) {
@@ -39,12 +44,17 @@ public class ConsoleInterface {
         Path path = Paths.get(args[1]);
         System.out.println("Path: " + path);
 
+        List<String> options = Arrays.asList(args).subList(2, args.length);
+        DiscoveryMode discoveryMode = options.contains("--multicast")
+                ? DiscoveryMode.MULTICAST
+                : DiscoveryMode.BROADCAST;
+
         final Map<String, Command> commands = commandStream.collect(
                 Collectors.toMap(Command::getName, command -> command)
         );
 
         try {
-            final ConnectivityResident cr = new ConnectivityResident(port, path);
+            final ConnectivityResident cr = new ConnectivityResident(port, path, discoveryMode);
             commands.forEach((k, v) -> v.setApp(cr));
         } catch (BadSyncDirectory e) {
             System.out.println("Couldn't synchronize the directory: ");
@@ -0,0 +1,26 @@
+package console.commands;
+
+import java.nio.file.Paths;
+import java.util.concurrent.CompletionException;
+
+public class ChainCommand extends Command{
+
+    public ChainCommand() {
+        super("chain", "<path>");
+    }
+
+    @Override
+    public void run(String[] arguments) throws Exception {
+        if(arguments.length != 1)
+            throw manual();
+
+        app.chainReplicate(Paths.get(arguments[0])).whenComplete((ignored, error) -> {
+            if (error == null) {
+                System.out.println("Chain replication of " + arguments[0] + " sent");
+                return;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            System.err.println("Chain replication of " + arguments[0] + " failed: " + cause.getMessage());
+        });
+    }
+}
@@ -16,5 +16,12 @@ public class ConnectedCommand extends Command{
         System.out.println("Connected Devices: ");
         AtomicInteger i = new AtomicInteger();
         app.getConnectedDevices().forEach(device -> System.out.println((i.getAndIncrement()) + ". " + device));
+
+        var reconnectStats = app.getReconnectStats();
+        if(reconnectStats.isEmpty())
+            return;
+
+        System.out.println("Supervised Devices: ");
+        reconnectStats.forEach((peerId, stats) -> System.out.println(peerId + " | " + stats));
     }
 }
\ No newline at end of file
@@ -0,0 +1,40 @@
+package console.commands;
+
+import connectivity.bandwidth.BandwidthLimits;
+
+public class LimitCommand extends Command{
+    private static final long KB = 1024;
+
+    public LimitCommand() {
+        super("limit", "[upload_KB/s download_KB/s [index]]");
+    }
+
+    @Override
+    public void run(String[] arguments) throws Exception {
+        if(arguments.length == 1 || arguments.length > 3)
+            throw manual();
+
+        if(arguments.length == 0) {
+            BandwidthLimits limits = app.getBandwidthLimits();
+            System.out.println("All devices | " + format(limits.getGlobalUpload(), limits.getGlobalDownload()));
+            limits.getPeerLimits().forEach((peerId, peerLimits) ->
+                    System.out.println(peerId + " | " + format(peerLimits[0], peerLimits[1])));
+            return;
+        }
+
+        long upload = parseUnsigned(arguments[0]) * KB;
+        long download = parseUnsigned(arguments[1]) * KB;
+        if(arguments.length == 3)
+            app.setBandwidthLimits(parseUnsigned(arguments[2]), upload, download);
+        else
+            app.setBandwidthLimits(upload, download);
+    }
+
+    private static String format(long upload, long download) {
+        return "upload " + format(upload) + ", download " + format(download);
+    }
+
+    private static String format(long rate) {
+        return rate == 0 ? "unlimited" : rate / KB + " KB/s";
+    }
+}
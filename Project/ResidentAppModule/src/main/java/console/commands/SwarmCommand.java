@@ -0,0 +1,19 @@
+package console.commands;
+
+import java.nio.file.Paths;
+
+public class SwarmCommand extends Command{
+
+    public SwarmCommand() {
+        super("swarm", "<path>");
+    }
+
+    @Override
+    public void run(String[] arguments) throws Exception {
+        if(arguments.length != 1)
+            throw manual();
+
+        app.swarmFetch(Paths.get(arguments[0]))
+                .thenAccept(path -> System.out.println("Swarm fetch of " + path + " done"));
+    }
+}
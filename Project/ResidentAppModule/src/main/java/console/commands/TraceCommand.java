@@ -0,0 +1,27 @@
+package console.commands;
+
+import connectivity.tracing.SessionTrace;
+
+import java.util.List;
+
+public class TraceCommand extends Command{
+    private static final int DEFAULT_COUNT = 5;
+
+    public TraceCommand() {
+        super("trace", "[count]");
+    }
+
+    @Override
+    public void run(String[] arguments) throws Exception {
+        if(arguments.length > 1)
+            throw manual();
+
+        int count = arguments.length == 1 ? parseUnsigned(arguments[0]) : DEFAULT_COUNT;
+        List<SessionTrace> traces = app.getSessionTraces(count);
+
+        if(traces.isEmpty())
+            System.out.println("No sessions traced");
+        else
+            traces.forEach(System.out::println);
+    }
+}
@@ -1,5 +1,7 @@
 package george;
 
+import connectivity.metrics.Metrics;
+
 import java.io.File;
 import java.nio.file.*;
 import java.util.ArrayList;
@@ -59,6 +61,7 @@ public class ListenerThread extends FileListener implements Runnable{
                 for(WatchEvent<?> event : watchKey.pollEvents()){
 //                    get the event type
                     WatchEvent.Kind<?> kind =event.kind();
+                    Metrics.getInstance().counter("watcher.events." + kind.name()).increment();
 //                    get the path
                     Path eventPath = (Path)event.context();
 
@@ -1,21 +1,51 @@
 package george.resident;
 
+import connectivity.metrics.Counter;
+import connectivity.metrics.Histogram;
+import connectivity.metrics.Metrics;
+import connectivity.tracing.Phase;
+import connectivity.tracing.SessionTracer;
+import connectivity.tracing.Span;
 import george.resident.exceptions.BadSyncDirectory;
 import george.resident.tree.TreeDirectory;
+import george.resident.tree.TreeSnapshot;
+import george.resident.versions.VersionIndex;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 public class  SynchronizedDirectory {
 
+    private static final Histogram scanDuration = Metrics.getInstance().histogram("scan.duration");
+    private static final Counter scannedEntries = Metrics.getInstance().counter("scan.entries");
+    private static final Counter snapshotListings = Metrics.getInstance().counter("scan.snapshot.listings");
+    /**
+     * Whether the tree is also kept in a {@link TreeSnapshot} in the .peer folder, written at every full scan
+     */
+    private static final boolean snapshotEnabled = Boolean.getBoolean("p2p.tree.snapshot");
+
     protected Path path;
+    /**
+     * The versions of the files, by the peer ID of the device
+     */
+    protected VersionIndex versionIndex;
+    /**
+     * The snapshot written by the last full scan, or null if there is none
+     */
+    private volatile TreeSnapshot snapshot;
 
     /**
-     * Method to create the .peer folder starting from the path
+     * Method to create the .peer folder starting from the path and to read the versions of the files
      * @param path
      * @throws BadSyncDirectory This exception is thrown when the peer can not be created.
      */
@@ -32,6 +62,21 @@ public class  SynchronizedDirectory {
             throw new BadSyncDirectory(e);
         }
         //TODO: hide this folder
+
+        try {
+            versionIndex = new VersionIndex(path, getPeerId());
+        } catch (IOException | RuntimeException e) {
+            throw new BadSyncDirectory(e instanceof IOException ioException ? ioException : new IOException(e));
+        }
+
+        Path snapshotPath = peerPath.resolve("tree.snapshot");
+        if (snapshotEnabled && Files.exists(snapshotPath)) {
+            try {
+                snapshot = TreeSnapshot.open(snapshotPath);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
     }
 
     public Path getPath() {
@@ -39,30 +84,237 @@ public class  SynchronizedDirectory {
     }
 
     /**
-     * Private recursive method that returns a tree for a directory given as a parameter
+     * Method that returns the ID of this device, kept in the .peer folder so that it stays the same
+     * between restarts. The ID is created the first time it is needed.
+     * @return The ID of this device
+     * @throws BadSyncDirectory This exception is thrown when the ID can not be read or saved.
      */
-    private static TreeDirectory getTreeFromFile(File directory) {
+    public String getPeerId() throws BadSyncDirectory {
+        Path idPath = path.resolve(".peer").resolve("id");
+
+        try {
+            if (Files.exists(idPath))
+                return Files.readString(idPath).trim();
+
+            String peerId = UUID.randomUUID().toString();
+            Files.writeString(idPath, peerId);
+            return peerId;
+        } catch (IOException e) {
+            throw new BadSyncDirectory(e);
+        }
+    }
+
+    /**
+     * Private recursive method that returns a tree for a directory given as a parameter. The version of every file
+     * is taken from the index, which counts the files changed since the previous scan as new versions. When a
+     * snapshot is written, the children are walked in its order and written after the directory.
+     * A directory whose modification time didn't change since the last snapshot is not listed again, its entries are
+     * taken from the snapshot. Its files and subdirectories are still read from the disk.
+     */
+    private TreeDirectory getTreeFromFile(Path relativePath, Span span, SnapshotWriter writer)
+            throws IOException {
 
         TreeDirectory treeDirectory = new TreeDirectory();
-        File[] children = directory.listFiles();
+        File directory = path.resolve(relativePath).toFile();
+        TreeSnapshot previous = snapshot;
+        List<TreeSnapshot.Entry> listed = previous != null
+                ? previous.listIfUnchanged(relativePath, directory.lastModified())
+                : null;
+        File[] children;
+        if (listed != null) {
+            snapshotListings.increment();
+            children = listed.stream().map(entry -> new File(directory, entry.name())).toArray(File[]::new);
+        } else {
+            children = directory.listFiles();
+        }
 
         if (children == null)
             return treeDirectory;
 
+        scannedEntries.add(children.length);
+        span.addSize(children.length);
+
+        if (writer != null)
+            Arrays.sort(children, (first, second) -> TreeSnapshot.compare(
+                    first.getName(), first.isDirectory(), second.getName(), second.isDirectory()));
+
         for (File file : children) {
             String fileName = file.getName();
+            Path childPath = relativePath.resolve(fileName);
 
             if (file.isDirectory()) {
-                TreeDirectory directoryChild = getTreeFromFile(file);
+                // The modification time is taken before the directory is listed, so a later change is seen
+                if (writer != null && !childPath.startsWith(".peer"))
+                    writer.add(childPath, true, 0, file.lastModified(), 0);
+                TreeDirectory directoryChild = getTreeFromFile(childPath, span,
+                        childPath.startsWith(".peer") ? null : writer);
                 treeDirectory.addDirectory(fileName, directoryChild);
-            } else
+            } else if (childPath.startsWith(".peer"))
                 treeDirectory.addFile(fileName, file.lastModified());
+            else {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    // The file was deleted since the directory was listed, it is left out of the tree
+                    continue;
+                }
+                var version = versionIndex.update(childPath, attributes);
+                treeDirectory.addFile(fileName, attributes.lastModifiedTime().toMillis());
+                treeDirectory.setVersion(fileName, version);
+                if (writer != null)
+                    writer.add(childPath, false, attributes.size(), attributes.lastModifiedTime().toMillis(),
+                            version != null ? version.fingerprint() : 0);
+            }
         }
 
         return treeDirectory;
     }
 
+    /**
+     * Method that returns the tree of a directory of the synchronized directory. The duration of the scan is kept in
+     * the "scan.duration" histogram and the scanned entries in the "scan.entries" counter, whose rate is the number
+     * of entries scanned per second. When the snapshot is enabled, a scan of the whole directory also replaces it, and
+     * the previous snapshot is kept if the new one can't be written, and the version index drops the files it didn't
+     * see.
+     * @param relativePath The path of the directory, relative to the synchronized directory
+     * @return The tree of the directory
+     */
     public TreeDirectory getTree(Path relativePath) {
-        return getTreeFromFile(path.resolve(relativePath).toFile());
+        long start = System.nanoTime();
+        boolean whole = relativePath.toString().isEmpty();
+        try (Span span = SessionTracer.getInstance().start(Phase.SCAN, relativePath.toString())) {
+            TreeDirectory tree;
+            boolean complete = false;
+            if (whole)
+                versionIndex.beginScan();
+            try {
+                if (snapshotEnabled && whole) {
+                    SnapshotWriter writer = new SnapshotWriter(path.resolve(".peer").resolve("tree.snapshot"));
+                    try {
+                        writer.add(relativePath, true, 0, path.toFile().lastModified(), 0);
+                        tree = getTreeFromFile(relativePath, span, writer);
+                        TreeSnapshot written = writer.commit();
+                        if (written != null)
+                            snapshot = written;
+                    } finally {
+                        writer.close();
+                    }
+                } else {
+                    tree = getTreeFromFile(relativePath, span, null);
+                }
+                complete = true;
+            } finally {
+                if (whole)
+                    versionIndex.endScan(complete);
+            }
+            versionIndex.save();
+            scanDuration.recordMicrosSince(start);
+            return tree;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return new TreeDirectory();
+        }
+    }
+
+    /**
+     * SnapshotWriter class writes the snapshot of a full scan. The snapshot is only a copy of the tree, so an error
+     * while writing it doesn't stop the scan: the entries after it are not written, the error is printed and the
+     * previous snapshot is kept.
+     */
+    private static final class SnapshotWriter {
+        private final Path file;
+        private TreeSnapshot.Writer writer;
+        private IOException failure;
+
+        private SnapshotWriter(Path file) {
+            this.file = file;
+            try {
+                writer = new TreeSnapshot.Writer(file);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        private void add(Path relativePath, boolean directory, long size, long modified, long version) {
+            if (failure != null)
+                return;
+            try {
+                writer.add(relativePath, directory, size, modified, version);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * The method replaces the previous snapshot with the written one, if all of it was written
+         * @return The new snapshot, or null if the previous one is kept
+         */
+        private TreeSnapshot commit() {
+            if (failure == null) {
+                try {
+                    writer.commit();
+                    return TreeSnapshot.open(file);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            System.err.println("The snapshot of the tree was not written: " + failure.getMessage());
+            return null;
+        }
+
+        /**
+         * The method deletes the temporary file of a snapshot that was not committed
+         */
+        private void close() {
+            if (writer == null)
+                return;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Method that returns the snapshot of the tree, which can be read without scanning the directory. It is opened
+     * when the application starts and replaced at every full scan.
+     * @return The snapshot, or null if it is not enabled or no full scan was done yet
+     */
+    public TreeSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public VersionIndex getVersionIndex() {
+        return versionIndex;
+    }
+
+    /**
+     * Method that adds the versions sent by a peer to the versions of the files received from it
+     * @param versions The tree of the received files, relative to the synchronized directory
+     */
+    public void mergeVersions(TreeDirectory versions) {
+        mergeVersions(Paths.get(""), versions);
+
+        try {
+            versionIndex.save();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    private void mergeVersions(Path relativePath, TreeDirectory versions) {
+        if (relativePath.startsWith(".peer"))
+            return;
+
+        for (String fileName : versions.getFiles().keySet()) {
+            var version = versions.getVersion(fileName);
+            if (version != null)
+                versionIndex.merge(relativePath.resolve(fileName), version);
+        }
+
+        for (Map.Entry<String, TreeDirectory> directory : versions.getDirectories().entrySet())
+            mergeVersions(relativePath.resolve(directory.getKey()), directory.getValue());
     }
 }
@@ -0,0 +1,158 @@
+package george.resident.swarm;
+
+import george.resident.versions.VersionVector;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Manifest class describes the content of a file as the SHA-256 hashes of its chunks of {@link #CHUNK_SIZE} bytes.
+ * Two devices with the same content hash have the same file, so a device can fetch different chunks of it from each
+ * of them and check every chunk on its own. The manifests of the last files are kept in memory as long as the size
+ * and the modification time of their file don't change, so a file is hashed only once for all the devices asking.
+ */
+public class Manifest {
+    /**
+     * The size of the chunks in which the files are hashed and fetched
+     */
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int CACHED_MANIFESTS = 64;
+
+    private static final Map<Path, Manifest> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Manifest> eldest) {
+            return size() > CACHED_MANIFESTS;
+        }
+    };
+
+    private int chunkSize;
+    private long size;
+    private long modified;
+    private List<String> hashes;
+    /**
+     * The version of the file on the device that hashed it
+     */
+    private VersionVector version;
+    private transient String contentHash;
+
+    private Manifest(int chunkSize, long size, long modified, List<String> hashes) {
+        this.chunkSize = chunkSize;
+        this.size = size;
+        this.modified = modified;
+        this.hashes = hashes;
+    }
+
+    /**
+     * The method returns the manifest of a file, hashing it if it changed since its last manifest
+     * @param file The file
+     * @return The manifest of the file
+     * @throws IOException This exception is thrown when the file can not be read.
+     */
+    public static Manifest of(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if (!attributes.isRegularFile())
+            throw new IOException(file + " is not a file");
+
+        synchronized (cache) {
+            Manifest cached = cache.get(file);
+            if (cached != null && cached.size == attributes.size()
+                    && cached.modified == attributes.lastModifiedTime().toMillis())
+                return cached.copy();
+        }
+
+        List<String> hashes = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (long offset = 0; offset < attributes.size(); offset += CHUNK_SIZE) {
+                buffer.clear();
+                buffer.limit((int) Math.min(CHUNK_SIZE, attributes.size() - offset));
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+                buffer.flip();
+                hashes.add(hash(buffer));
+            }
+        }
+
+        Manifest manifest = new Manifest(CHUNK_SIZE, attributes.size(), attributes.lastModifiedTime().toMillis(), hashes);
+        synchronized (cache) {
+            cache.put(file, manifest);
+        }
+        return manifest.copy();
+    }
+
+    private Manifest copy() {
+        return new Manifest(chunkSize, size, modified, hashes);
+    }
+
+    /**
+     * @param chunk The content of a chunk, between its position and its limit
+     * @return The SHA-256 hash of the chunk
+     */
+    public static String hash(ByteBuffer chunk) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(chunk);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The hash of the whole content, the same for two files with the same chunks
+     */
+    public String getContentHash() {
+        if (contentHash == null) {
+            String chunks = chunkSize + ":" + size + ":" + String.join("", hashes);
+            contentHash = hash(ByteBuffer.wrap(chunks.getBytes()));
+        }
+        return contentHash;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    public int getChunkCount() {
+        return hashes.size();
+    }
+
+    public String getHash(int chunk) {
+        return hashes.get(chunk);
+    }
+
+    public long getOffset(int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    public int getLength(int chunk) {
+        return (int) Math.min(chunkSize, size - getOffset(chunk));
+    }
+
+    public VersionVector getVersion() {
+        return version;
+    }
+
+    public void setVersion(VersionVector version) {
+        this.version = version;
+    }
+}
@@ -1,11 +1,21 @@
 package george.resident.sync;
 
 import connectivity.connection.Connection;
+import connectivity.metrics.Metrics;
+import connectivity.tracing.Phase;
+import connectivity.tracing.SessionTracer;
+import connectivity.tracing.Span;
 import george.resident.SynchronizedDirectory;
+import george.resident.exceptions.BadSyncDirectory;
+import george.resident.swarm.Manifest;
+import george.resident.transfers.TransferScheduler;
 import george.resident.tree.FileSystemTree;
 import george.resident.tree.TreeDirectory;
+import george.resident.tree.actions.ChunkDeal;
 import george.resident.tree.actions.DeleteDeal;
+import george.resident.tree.actions.PullDeal;
 import george.resident.tree.actions.PushDeal;
+import george.resident.tree.actions.SyncDeal;
 import george.resident.tree.actions.TreeActionsEnum;
 import george.resident.tree.actions.TreeDeal;
 
@@ -17,20 +27,101 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class ActionHandler {
+    /**
+     * The number of actions kept for a peer that didn't acknowledge them, the oldest ones are forgotten first
+     */
+    private static final int MAX_PENDING_PER_PEER = 256;
+    /**
+     * The time in milliseconds after which an action that was not acknowledged is forgotten, so the actions for a
+     * peer that never comes back don't pile up
+     */
+    private static final long PENDING_EXPIRY = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * An action sent to a peer that didn't acknowledge it yet. The tree of a Delete is kept, because the
+     * files it describes are already deleted locally, the trees of the other actions are built again. The time at
+     * which the action was first sent is used to measure its round trip.
+     */
+    private record PendingAction(String peerId, TreeActionsEnum action, Path path, FileSystemTree deleteTree,
+                                 long sentAt) {
+    }
 
     protected SynchronizedDirectory synchronizedDirectory;
+    /**
+     * The actions sent and not acknowledged yet, by session ID. They are sent again when the connection to their
+     * peer is restored. At most {@link #MAX_PENDING_PER_PEER} actions are kept for every peer, for at most
+     * {@link #PENDING_EXPIRY} milliseconds.
+     */
+    private final Map<String, PendingAction> pendingActions = new ConcurrentHashMap<>();
+    /**
+     * The swarm fetches started by the current device, by session ID
+     */
+    private final Map<String, SwarmFetch> swarms = new ConcurrentHashMap<>();
+    private final ChainReplication chains = new ChainReplication(this);
+    private final TreeCache trees;
+    /**
+     * The scheduler of the files the deals of the device send, which has the limits of the device
+     */
+    private final TransferScheduler scheduler;
+    /**
+     * The connections to the peers by their IDs, used to find the next device of a chain replication
+     */
+    private Function<String, Connection> peers = peerId -> null;
+    /**
+     * The deals of the actions received from a peer run on these threads, so the thread reading from the connection
+     * keeps reading the files the peer sends at the same time. Otherwise, two peers pushing to each other could both
+     * block on a full socket buffer. Several deals run at the same time and the {@link TransferScheduler} decides
+     * which of their files is sent first, so a fetch doesn't wait for a large sync to end.
+     */
+    private final ExecutorService pushExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "push");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public ActionHandler(SynchronizedDirectory synchronizedDirectory) {
         this.synchronizedDirectory = synchronizedDirectory;
+        this.trees = new TreeCache(synchronizedDirectory.getPath().resolve(".peer"));
+        this.scheduler = new TransferScheduler(schedulerName(synchronizedDirectory));
+    }
+
+    /**
+     * @return The ID of the device, which names the gauge of its scheduler, or its directory if the ID can't be read
+     */
+    private static String schedulerName(SynchronizedDirectory synchronizedDirectory) {
+        try {
+            return synchronizedDirectory.getPeerId();
+        } catch (BadSyncDirectory e) {
+            return synchronizedDirectory.getPath().getFileName().toString();
+        }
     }
 
     public SynchronizedDirectory getSynchronizedDirectory() {
         return synchronizedDirectory;
     }
 
-    private void sendFileSystemTree(Connection connection, FileSystemTree fileSystemTree) throws FileNotFoundException, IOException {
+    public TransferScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /*default*/ void setPeers(Function<String, Connection> peers) {
+        this.peers = peers;
+    }
+
+    /*default*/ void sendFileSystemTree(Connection connection, FileSystemTree fileSystemTree) throws FileNotFoundException, IOException {
         Path root = synchronizedDirectory.getPath();
         Path tempFile;
 
@@ -40,9 +131,12 @@ public class ActionHandler {
                     "action",
                     ".json"
             );
-            FileWriter fileWriter = new FileWriter(tempFile.toFile());
-            fileSystemTree.toJSON(fileWriter);
-            fileWriter.close();
+            try (Span span = SessionTracer.getInstance().start(Phase.ENCODE, fileSystemTree.getAction().name());
+                 FileWriter fileWriter = new FileWriter(tempFile.toFile())) {
+                fileSystemTree.toJSON(fileWriter);
+                fileWriter.flush();
+                span.addSize(Files.size(tempFile));
+            }
         } catch (IOException e) {
             throw new FileNotFoundException(".peer/action.json");
         }
@@ -56,71 +150,414 @@ public class ActionHandler {
     }
 
     //This exists because I have to deal with temp file not working
+    @SuppressWarnings("try")
     public void sendAction(Connection connection, TreeActionsEnum action, Path ...paths) throws IOException {
         Path path = Arrays.stream(paths).reduce(Paths.get(""), Path::resolve);
+        String sessionId = UUID.randomUUID().toString();
+        SessionTracer tracer = SessionTracer.getInstance();
+        tracer.describe(sessionId, action + " -> " + connection.getName());
+        if (action != TreeActionsEnum.Delete)
+            tracer.expect(connection.getPeerId(), sessionId);
+
+        try (Span ignored = tracer.start(Phase.ACTION, sessionId, action + " " + path)) {
+            TreeDirectory root = synchronizedDirectory.getTree(path);
+            FileSystemTree fileSystemTree = new FileSystemTree(root, action);
+            fileSystemTree.setPath(path);
+            fileSystemTree.setSessionId(sessionId);
+
+            Path absolutePath = synchronizedDirectory.getPath().resolve(path);
+
+            if(!Files.exists(absolutePath)){
+                root.addFile("", 0);
+            } else if(!Files.isDirectory(absolutePath)){
+                root.addFile("", Files.getLastModifiedTime(absolutePath).toMillis());
+                var version = synchronizedDirectory.getVersionIndex().update(path);
+                if (version != null)
+                    root.setVersion("", version);
+            }
+
+            if(action == TreeActionsEnum.Delete){
+                if(Files.exists(absolutePath) && !Files.isSameFile(synchronizedDirectory.getPath(), absolutePath)) {
+                    if (Files.isDirectory(absolutePath)){
+                        root.getFiles().clear();
+                        root.getDirectories().clear();
+                    }
+                }
+
+                new DeleteDeal(root, absolutePath).deal();
+            }
+
+            // Before the action is pending, so a tree that can't be kept fails the action instead of being ignored
+            if (isDelta(action, path))
+                fileSystemTree = trees.encode(connection.getPeerId(), fileSystemTree);
+
+            pendingActions.put(sessionId, new PendingAction(
+                    connection.getPeerId(),
+                    action,
+                    path,
+                    action == TreeActionsEnum.Delete ? fileSystemTree : null,
+                    System.nanoTime()
+            ));
+            forgetOldActions(connection.getPeerId());
+
+            try {
+                sendFileSystemTree(connection, fileSystemTree);
+            } catch (FileSystemException e) {
+                //TODO: DEAL WITH TEMP FILE NOT WORKING
+            }
+        }
+    }
 
-        TreeDirectory root = synchronizedDirectory.getTree(path);
-        FileSystemTree fileSystemTree = new FileSystemTree(root, action);
-        fileSystemTree.setPath(path);
+    /**
+     * @return Whether the tree of an action is sent as a delta of the tree the peer kept, see {@link TreeCache}
+     */
+    private static boolean isDelta(TreeActionsEnum action, Path path) {
+        return TreeCache.enabled
+                && (action == TreeActionsEnum.Sync || action == TreeActionsEnum.Fetch)
+                && path.toString().isEmpty();
+    }
 
+    private void sendAck(Connection connection, String sessionId) throws IOException {
+        if (sessionId == null)
+            return;
 
-        Path absolutePath = synchronizedDirectory.getPath().resolve(path);
+        FileSystemTree ack = new FileSystemTree(new TreeDirectory(), TreeActionsEnum.Ack);
+        ack.setSessionId(sessionId);
+        if (trees.kept(connection.getPeerId(), sessionId))
+            ack.setBase(sessionId);
+        sendFileSystemTree(connection, ack);
+    }
 
-        if(!Files.exists(absolutePath)){
-            root.addFile("", 0);
-        } else if(!Files.isDirectory(absolutePath)){
-            root.addFile("", Files.getLastModifiedTime(absolutePath).toMillis());
+    /**
+     * Makes the whole tree of a received "Sync" or "Fetch", whose tree may be a delta of a tree received before.
+     * Only the trees of the whole synchronized directory are kept and sent as deltas, like the ones we send.
+     * @param connection The connection from which the action came
+     * @param fileSystemTree The received action
+     * @return The action with its whole tree, or null if the base of the delta is not kept anymore, in which case
+     * the peer is asked to send the whole tree
+     */
+    private FileSystemTree wholeTree(Connection connection, FileSystemTree fileSystemTree) throws IOException {
+        FileSystemTree whole;
+        if (isDelta(fileSystemTree.getAction(), fileSystemTree.getPath()))
+            whole = trees.decode(connection.getPeerId(), fileSystemTree);
+        else
+            whole = fileSystemTree.getBase() == null ? fileSystemTree : null;
+        if (whole == null) {
+            FileSystemTree fullTree = new FileSystemTree(new TreeDirectory(), TreeActionsEnum.FullTree);
+            fullTree.setSessionId(fileSystemTree.getSessionId());
+            sendFileSystemTree(connection, fullTree);
         }
+        return whole;
+    }
+
+    /**
+     * Forgets the actions that were not acknowledged for too long, and the oldest actions of a peer that has too many
+     * of them. A forgotten action is not sent again when its peer reconnects.
+     * @param peerId The ID of the peer to which an action was just sent
+     */
+    private void forgetOldActions(String peerId) {
+        long now = System.nanoTime();
+        long expiry = TimeUnit.MILLISECONDS.toNanos(PENDING_EXPIRY);
+        pendingActions.values().removeIf(pending -> now - pending.sentAt() > expiry);
+
+        List<Map.Entry<String, PendingAction>> ofPeer = pendingActions.entrySet().stream()
+                .filter(entry -> entry.getValue().peerId().equals(peerId))
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().sentAt()))
+                .toList();
+        for (int i = 0; i < ofPeer.size() - MAX_PENDING_PER_PEER; i++)
+            pendingActions.remove(ofPeer.get(i).getKey(), ofPeer.get(i).getValue());
+    }
+
+    /**
+     * Sends again every action the peer of the connection didn't acknowledge before its previous connection was lost.
+     * The files the peer received before are skipped by the peer, because they are not newer anymore, so the
+     * interrupted work continues from where it stopped.
+     * @param connection The restored connection
+     */
+    public void resume(Connection connection) {
+        pendingActions.forEach((sessionId, pending) -> {
+            if (!pending.peerId().equals(connection.getPeerId()))
+                return;
 
-        if(action == TreeActionsEnum.Delete){
-            if(!Files.isSameFile(synchronizedDirectory.getPath(), absolutePath)) {
-                if (Files.isDirectory(absolutePath)){
-                    root.getFiles().clear();
-                    root.getDirectories().clear();
+            try {
+                if (pending.deleteTree() != null)
+                    sendFileSystemTree(connection, pending.deleteTree());
+                else if (pendingActions.remove(sessionId, pending))
+                    sendAction(connection, pending.action(), pending.path());
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Sends the files of a deal on a push thread and acknowledges the action once they were all sent. The versions
+     * of the sent files are sent between the files and the acknowledgement, so the peer knows them before the
+     * action is over.
+     * @param connection The connection to the peer that sent the action
+     * @param sessionId The session ID of the action
+     * @param deal The deal sending the files
+     */
+    @SuppressWarnings("try")
+    private void push(Connection connection, String sessionId, TreeDeal deal) {
+        pushExecutor.execute(() -> {
+            try (Span ignored = SessionTracer.getInstance().start(Phase.ACTION, sessionId, "push -> " + connection.getName())) {
+                deal.deal();
+                TreeDirectory versions = deal.getSentVersions();
+                if (!versions.isEmpty()) {
+                    FileSystemTree versionsTree = new FileSystemTree(versions, TreeActionsEnum.Versions);
+                    versionsTree.setSessionId(sessionId);
+                    sendFileSystemTree(connection, versionsTree);
                 }
+                synchronizedDirectory.getVersionIndex().save();
+                sendAck(connection, sessionId);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Fetches a single file from all the given peers that have its newest content at once, see {@link SwarmFetch}
+     * @param connections The connections to the peers that may have the file
+     * @param path The path of the file, relative to the synchronized directory
+     * @return A future completed with the path of the file when all of it was received
+     */
+    public CompletableFuture<Path> swarmFetch(List<Connection> connections, Path path) {
+        String sessionId = UUID.randomUUID().toString();
+        SessionTracer.getInstance().describe(sessionId, "Swarm " + path);
+        SwarmFetch swarm = new SwarmFetch(this, sessionId, path, connections);
+        swarms.put(sessionId, swarm);
+        swarm.start();
+        return swarm.getResult();
+    }
+
+    /**
+     * Sends the files at a path to all the given peers through a chain, see {@link ChainReplication}
+     * @param connections The connections to the peers
+     * @param path The path of a file or directory, relative to the synchronized directory
+     * @return A future completed when the first peer of the chain received all the files
+     */
+    public CompletableFuture<Void> chainReplicate(List<Connection> connections, Path path) {
+        String sessionId = UUID.randomUUID().toString();
+        SessionTracer.getInstance().describe(sessionId, "Chain " + path);
+        return CompletableFuture.runAsync(() -> {
+            try {
+                chains.start(sessionId, connections, path);
+            } catch (IOException e) {
+                throw new CompletionException(e);
             }
+        }, pushExecutor);
+    }
+
+    /*default*/ void swarmFinished(String sessionId) {
+        swarms.remove(sessionId);
+    }
+
+    /**
+     * Gives a received chunk to the swarm fetch it belongs to, or deletes it if the fetch is over
+     * @param connection The connection from which the chunk came
+     * @param relativePath The path of the chunk, relative to the synchronized directory
+     */
+    public void incomingChunk(Connection connection, Path relativePath) {
+        Path chunk = synchronizedDirectory.getPath().resolve(relativePath);
+        SwarmFetch swarm = swarms.get(SwarmFetch.chunkSession(relativePath));
+        if (swarm != null) {
+            swarm.chunk(connection, SwarmFetch.chunkIndex(relativePath), chunk);
+            return;
+        }
+        try {
+            Files.deleteIfExists(chunk);
+        } catch (IOException ignored) {
+        }
+    }
 
-            new DeleteDeal(root, absolutePath).deal();
+    /**
+     * Sends the manifest of a file to a peer that wants to swarm fetch it. The answer has no manifest if the file
+     * doesn't exist or may not be shared.
+     * @param connection The connection to the peer
+     * @param request The "Manifest" action of the peer
+     */
+    private void answerManifest(Connection connection, FileSystemTree request) {
+        FileSystemTree answer = new FileSystemTree(new TreeDirectory(), TreeActionsEnum.Manifest);
+        answer.setPath(request.getPath());
+        answer.setSessionId(request.getSessionId());
+        try {
+            if (isShared(request.getPath())) {
+                Manifest manifest = Manifest.of(synchronizedDirectory.getPath().resolve(request.getPath()));
+                manifest.setVersion(synchronizedDirectory.getVersionIndex().update(request.getPath()));
+                answer.setManifest(manifest);
+            }
+        } catch (IOException ignored) {
+            // The file is missing, the answer has no manifest
         }
 
         try {
-            sendFileSystemTree(connection, fileSystemTree);
-        } catch (FileSystemException ignored) {
-            //TODO: DEAL WITH TEMP FILE NOT WORKING
+            sendFileSystemTree(connection, answer);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
         }
     }
 
-    private void sendModifiedFiles(Connection connection, FileSystemTree fileSystemTree) throws IOException {
-        TreeDeal action = new PushDeal(
-                connection,
-                fileSystemTree,
-                synchronizedDirectory.getPath()
-        );
+    /**
+     * @param path A path asked by a peer, relative to the synchronized directory
+     * @return Whether the path is inside the synchronized directory and outside the .peer directory
+     */
+    private boolean isShared(Path path) {
+        Path root = synchronizedDirectory.getPath().toAbsolutePath().normalize();
+        Path resolved = root.resolve(path).normalize();
+        return resolved.startsWith(root) && !root.relativize(resolved).startsWith(".peer");
+    }
 
-        action.deal();
+    /**
+     * A "Pull" is only the answer to a "Sync" the current device sent to the same peer and that is not over yet, so
+     * a peer can't ask for files on its own
+     * @param connection The connection from which the "Pull" came
+     * @param pull The received "Pull"
+     * @return Whether the files of the "Pull" may be sent
+     */
+    private boolean isPullExpected(Connection connection, FileSystemTree pull) {
+        PendingAction pending = pull.getSessionId() != null ? pendingActions.get(pull.getSessionId()) : null;
+        if (pending == null || pending.action() != TreeActionsEnum.Sync
+                || !pending.peerId().equals(connection.getPeerId()) || !isShared(pull.getPath())) {
+            System.err.println("Unexpected pull from " + connection.getName());
+            return false;
+        }
+        return true;
     }
 
+    /**
+     * Handles an action received from a peer. The time spent handling every kind of action is kept in the
+     * "action.<kind>.latency" histograms and the time between sending an action and receiving its acknowledgement
+     * in the "action.<kind>.rtt" histograms. The work is traced as a phase of the session of the action.
+     * @param connection The connection from which the action came
+     * @param fileSystemTree The received action
+     */
+    @SuppressWarnings("try")
     public void incomingAction(Connection connection, FileSystemTree fileSystemTree) {
-        try {
+        long start = System.nanoTime();
+        SessionTracer tracer = SessionTracer.getInstance();
+        String sessionId = fileSystemTree.getSessionId();
+        if (fileSystemTree.getAction() != TreeActionsEnum.Ack)
+            tracer.describe(sessionId, fileSystemTree.getAction() + " <- " + connection.getName());
+
+        try (Span ignored = tracer.start(Phase.ACTION, sessionId, fileSystemTree.getAction() + " " + fileSystemTree.getPath())) {
 
             switch (fileSystemTree.getAction()) {
                 case Sync -> {
-                    sendModifiedFiles(connection, fileSystemTree);
-                    sendAction(connection, TreeActionsEnum.Fetch, fileSystemTree.getPath());
+                    FileSystemTree whole = wholeTree(connection, fileSystemTree);
+                    if (whole == null)
+                        break;
+                    SyncDeal deal = new SyncDeal(
+                            connection,
+                            scheduler,
+                            whole,
+                            synchronizedDirectory.getPath(),
+                            synchronizedDirectory.getVersionIndex()
+                    );
+                    FileSystemTree pull = new FileSystemTree(deal.compare(), TreeActionsEnum.Pull);
+                    pull.setPath(fileSystemTree.getPath());
+                    pull.setSessionId(sessionId);
+                    tracer.expect(connection.getPeerId(), sessionId);
+                    sendFileSystemTree(connection, pull);
+                    push(connection, sessionId, deal);
                 }
                 case Fetch -> {
-                    sendModifiedFiles(connection, fileSystemTree);
+                    boolean dealt = false;
+                    try {
+                        FileSystemTree whole = wholeTree(connection, fileSystemTree);
+                        if (whole == null)
+                            break;
+                        push(connection, sessionId, new PushDeal(
+                                connection,
+                                scheduler,
+                                whole,
+                                synchronizedDirectory.getPath(),
+                                synchronizedDirectory.getVersionIndex(),
+                                synchronizedDirectory.getSnapshot()
+                        ));
+                        dealt = true;
+                    } finally {
+                        // The deal deletes the action file of a streamed tree, unless there is no deal to read it
+                        if (!dealt && fileSystemTree.getSource() != null)
+                            Files.deleteIfExists(fileSystemTree.getSource());
+                    }
+                }
+                case Pull -> {
+                    if (!isPullExpected(connection, fileSystemTree))
+                        break;
+                    push(connection, sessionId, new PullDeal(
+                            connection,
+                            scheduler,
+                            fileSystemTree,
+                            synchronizedDirectory.getPath(),
+                            synchronizedDirectory.getVersionIndex()
+                    ));
+                }
+                case Versions -> synchronizedDirectory.mergeVersions(fileSystemTree.getRoot());
+                case Manifest -> {
+                    SwarmFetch swarm = swarms.get(sessionId);
+                    if (swarm != null)
+                        swarm.manifest(connection, fileSystemTree.getManifest());
+                    else
+                        pushExecutor.execute(() -> answerManifest(connection, fileSystemTree));
                 }
+                case Chunks -> {
+                    if (!isShared(fileSystemTree.getPath()) || fileSystemTree.getChunks() == null)
+                        break;
+                    pushExecutor.execute(() -> {
+                        try {
+                            new ChunkDeal(connection, fileSystemTree, synchronizedDirectory.getPath()).deal();
+                        } catch (IOException e) {
+                            System.err.println(e.getMessage());
+                        }
+                    });
+                }
+                case Chain -> {
+                    if (!chains.answered(sessionId))
+                        pushExecutor.execute(() -> chains.request(connection, fileSystemTree, peers));
+                }
+                case ChainEnd -> pushExecutor.execute(() -> chains.end(fileSystemTree));
                 case Delete -> {
                     new DeleteDeal(
                             fileSystemTree.getRoot(),
                             synchronizedDirectory.getPath().resolve(fileSystemTree.getPath())
                     ).deal();
+                    sendAck(connection, fileSystemTree.getSessionId());
+                }
+                case Ack -> {
+                    PendingAction pending = fileSystemTree.getSessionId() != null
+                            ? pendingActions.remove(fileSystemTree.getSessionId())
+                            : null;
+                    if (pending != null)
+                        Metrics.getInstance()
+                                .histogram("action." + pending.action() + ".rtt")
+                                .recordMicrosSince(pending.sentAt());
+                    if (pending != null && isDelta(pending.action(), pending.path()))
+                        trees.acknowledged(pending.peerId(), fileSystemTree.getBase());
+                    tracer.finished(connection.getPeerId(), sessionId);
+                }
+                case FullTree -> {
+                    trees.forget(connection.getPeerId());
+                    PendingAction pending = sessionId != null ? pendingActions.remove(sessionId) : null;
+                    if (pending == null)
+                        break;
+                    pushExecutor.execute(() -> {
+                        try {
+                            sendAction(connection, pending.action(), pending.path());
+                        } catch (IOException e) {
+                            System.err.println(e.getMessage());
+                        }
+                    });
                 }
             }
 
         } catch (Exception e) {
             System.err.println(e.getMessage());
+        } finally {
+            Metrics.getInstance()
+                    .histogram("action." + fileSystemTree.getAction() + ".latency")
+                    .recordMicrosSince(start);
         }
     }
 
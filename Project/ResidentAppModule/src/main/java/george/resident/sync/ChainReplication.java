@@ -0,0 +1,241 @@
+package george.resident.sync;
+
+import connectivity.connection.Connection;
+import connectivity.connection.RelayTable;
+import connectivity.metrics.Histogram;
+import connectivity.metrics.Metrics;
+import george.resident.SynchronizedDirectory;
+import george.resident.transfers.Priority;
+import george.resident.tree.FileSystemTree;
+import george.resident.tree.TreeDirectory;
+import george.resident.tree.actions.TreeActionsEnum;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * ChainReplication class distributes files to many devices in about the time of a single transfer. The devices are put
+ * in a chain, ordered by the upload speed measured to them, the fastest first. The current device sends the files
+ * only to the first device, which writes them and at the same time forwards them to the second one, and so on, so
+ * every device receives the files while the previous one is still receiving them.
+ * A "Chain" action with the files and the rest of the chain is sent before the files, and every device answers it
+ * only after the next one answered, so all the routes are ready when the first file arrives. A device forwards to
+ * the first device of the rest of the chain it is connected to, the others are left for the next devices. A
+ * "ChainEnd" action follows the files, and is forwarded after the device forwarded all of them.
+ */
+/*default*/ class ChainReplication {
+    /**
+     * The time in milliseconds a device waits for the next device to answer the "Chain" action, after which the files
+     * are sent but not forwarded
+     */
+    private static final long READY_TIMEOUT = 10_000;
+    private static final Histogram duration = Metrics.getInstance().histogram("chain.duration");
+
+    /**
+     * A device of the chain that the current device forwards the files to
+     *
+     * @param next The connection to the next device, or null if the current device is the last one
+     * @param files The files of the chain replication, with their versions
+     */
+    private record Hop(Connection next, TreeDirectory files) {
+    }
+
+    private final ActionHandler actionHandler;
+    /**
+     * The sessions whose "Chain" action was sent and not answered yet
+     */
+    private final Map<String, CompletableFuture<Void>> waiting = new ConcurrentHashMap<>();
+    /**
+     * The sessions whose files the current device receives, by session ID
+     */
+    private final Map<String, Hop> hops = new ConcurrentHashMap<>();
+
+    /*default*/ ChainReplication(ActionHandler actionHandler) {
+        this.actionHandler = actionHandler;
+    }
+
+    /**
+     * The method sends the files at a path to all the given devices through a chain, and waits until the first
+     * device received all of them
+     * @param sessionId The session of the chain replication
+     * @param connections The devices
+     * @param path The path of a file or directory, relative to the synchronized directory
+     * @throws IOException The files can't be read or the first device can't be reached
+     */
+    /*default*/ void start(String sessionId, List<Connection> connections, Path path) throws IOException {
+        long start = System.nanoTime();
+        SynchronizedDirectory synchronizedDirectory = actionHandler.getSynchronizedDirectory();
+        Path root = synchronizedDirectory.getPath();
+        Map<Path, BasicFileAttributes> files = new LinkedHashMap<>();
+        TreeDirectory tree = new TreeDirectory();
+
+        try (Stream<Path> walk = Files.walk(root.resolve(path))) {
+            for (Path file : walk.toList()) {
+                Path relative = root.relativize(file);
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (relative.startsWith(".peer") || !attributes.isRegularFile())
+                    continue;
+                files.put(relative, attributes);
+                tree.addFile(relative, attributes.lastModifiedTime().toMillis(),
+                        synchronizedDirectory.getVersionIndex().update(relative, attributes));
+            }
+        }
+        synchronizedDirectory.getVersionIndex().save();
+
+        List<Connection> chain = new ArrayList<>(connections);
+        chain.sort(Comparator.comparingLong(
+                (Connection connection) -> Metrics.getInstance().peer(connection.getPeerId()).getUploadRate())
+                .reversed());
+        Connection first = chain.remove(0);
+
+        if (!forward(first, sessionId, path, tree, chain.stream().map(Connection::getPeerId).toList()))
+            System.err.println("The chain after " + first.getName() + " is not ready, the files are sent only to it");
+
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        files.forEach((relative, attributes) -> sent.add(actionHandler.getScheduler()
+                .submit(first, root, relative, attributes, Priority.BULK, sessionId)));
+        try {
+            CompletableFuture.allOf(sent.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException cause ? cause : new IOException(e.getCause());
+        }
+
+        FileSystemTree end = new FileSystemTree(new TreeDirectory(), TreeActionsEnum.ChainEnd);
+        end.setPath(path);
+        end.setSessionId(sessionId);
+        actionHandler.sendFileSystemTree(first, end);
+        duration.recordMicrosSince(start);
+    }
+
+    /**
+     * The method sends a "Chain" action to the next device and waits for its answer
+     * @return Whether the next device answered in time
+     */
+    private boolean forward(Connection next, String sessionId, Path path, TreeDirectory files, List<String> chain)
+            throws IOException {
+        FileSystemTree request = new FileSystemTree(files, TreeActionsEnum.Chain);
+        request.setPath(path);
+        request.setSessionId(sessionId);
+        request.setChain(chain);
+
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        waiting.put(sessionId, ready);
+        try {
+            actionHandler.sendFileSystemTree(next, request);
+            ready.get(READY_TIMEOUT, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        } finally {
+            waiting.remove(sessionId);
+        }
+    }
+
+    /**
+     * The method takes the answer of the next device to a "Chain" action
+     * @param sessionId The session of the action
+     * @return Whether the action was an answer, false if it is a request of the previous device
+     */
+    /*default*/ boolean answered(String sessionId) {
+        CompletableFuture<Void> ready = sessionId != null ? waiting.get(sessionId) : null;
+        if (ready == null)
+            return false;
+        ready.complete(null);
+        return true;
+    }
+
+    /**
+     * The method prepares the current device to forward the files of a chain replication to the next device, and
+     * answers the previous device once the rest of the chain is ready
+     * @param previous The connection to the previous device
+     * @param request The "Chain" action of the previous device
+     * @param peers The connections to the devices by their IDs
+     */
+    /*default*/ void request(Connection previous, FileSystemTree request, Function<String, Connection> peers) {
+        String sessionId = request.getSessionId();
+        List<String> chain = request.getChain() != null ? request.getChain() : List.of();
+        Connection next = null;
+        for (String peerId : chain) {
+            Connection connection = peers.apply(peerId);
+            if (connection != null && !connection.isClosed()) {
+                next = connection;
+                break;
+            }
+        }
+
+        if (next != null) {
+            for (Path file : files(request.getRoot()))
+                RelayTable.getInstance().expect(sessionId, previous.getPeerId(), file.toString(), next);
+            String nextId = next.getPeerId();
+            try {
+                if (!forward(next, sessionId, request.getPath(), request.getRoot(),
+                        chain.stream().filter(peerId -> !peerId.equals(nextId)).toList())) {
+                    System.err.println("The chain after " + next.getName() + " is not ready");
+                    RelayTable.getInstance().finish(sessionId);
+                    next = null;
+                }
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                RelayTable.getInstance().finish(sessionId);
+                next = null;
+            }
+        } else if (!chain.isEmpty()) {
+            System.err.println("Not connected to any of the " + chain.size() + " devices left in the chain");
+        }
+        hops.put(sessionId, new Hop(next, request.getRoot()));
+
+        FileSystemTree answer = new FileSystemTree(new TreeDirectory(), TreeActionsEnum.Chain);
+        answer.setPath(request.getPath());
+        answer.setSessionId(sessionId);
+        try {
+            actionHandler.sendFileSystemTree(previous, answer);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * The method keeps the versions of the files of a chain replication, all of them being received, and tells the
+     * next device once they were all forwarded
+     * @param end The "ChainEnd" action of the previous device
+     */
+    /*default*/ void end(FileSystemTree end) {
+        Hop hop = hops.remove(end.getSessionId());
+        RelayTable.getInstance().finish(end.getSessionId()).join();
+        if (hop == null)
+            return;
+
+        actionHandler.getSynchronizedDirectory().mergeVersions(hop.files());
+        if (hop.next() == null)
+            return;
+        try {
+            actionHandler.sendFileSystemTree(hop.next(), end);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * @return The paths of all the files of a tree, relative to its root
+     */
+    private static List<Path> files(TreeDirectory tree) {
+        List<Path> files = new ArrayList<>();
+        files(tree, Paths.get(""), files);
+        return files;
+    }
+
+    private static void files(TreeDirectory tree, Path relativePath, List<Path> files) {
+        tree.getFiles().keySet().forEach(name -> files.add(relativePath.resolve(name)));
+        tree.getDirectories().forEach((name, directory) -> files(directory, relativePath.resolve(name), files));
+    }
+}
@@ -1,6 +1,13 @@
 package george.resident.sync;
 
 import connectivity.Peer;
+import connectivity.bandwidth.BandwidthLimits;
+import connectivity.broadcast.DiscoveryMode;
+import connectivity.connection.Connection;
+import connectivity.connection.ReconnectStats;
+import connectivity.naming.HostNameCache;
+import connectivity.tracing.SessionTrace;
+import connectivity.tracing.SessionTracer;
 import connectivity.exceptions.BroadcastFailedException;
 import connectivity.exceptions.DeviceAlreadyConnectedException;
 import george.resident.SynchronizedDirectory;
@@ -11,10 +18,13 @@ import george.resident.tree.actions.TreeActionsEnum;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.PortUnreachableException;
 import java.net.SocketException;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The class responsible for the communication between two devices
@@ -23,6 +33,7 @@ import java.util.List;
 public class ConnectivityResident {
 
     UpcomingFileThread thread;
+    private final DiscoveryMode discoveryMode;
 
     /**
      * The constructor for ConnectivityResident.
@@ -34,12 +45,28 @@ public class ConnectivityResident {
      * @throws SocketException Standard socket exception.
      */
     public ConnectivityResident(int port, Path directory) throws BadSyncDirectory, PortUnreachableException, SocketException {
+        this(port, directory, DiscoveryMode.BROADCAST);
+    }
+
+    /**
+     * The constructor for ConnectivityResident.
+     * @param port The port given for establishing the connection.
+     * @param directory The path for the directory used to store the files destined
+     *                  to be syncronized.
+     * @param discoveryMode The way in which the other devices are found.
+     * @throws BadSyncDirectory Inaccesible directory.
+     * @throws PortUnreachableException The port is not available for connection.
+     * @throws SocketException Standard socket exception.
+     */
+    public ConnectivityResident(int port, Path directory, DiscoveryMode discoveryMode) throws BadSyncDirectory, PortUnreachableException, SocketException {
+        this.discoveryMode = discoveryMode;
         SynchronizedDirectory synchronizedDirectory = new SynchronizedDirectory(directory);
         ActionHandler actionHandler = new ActionHandler(synchronizedDirectory);
-        Peer peer = new Peer(port);
+        Peer peer = new Peer(port, discoveryMode, synchronizedDirectory.getPeerId());
         PeerManager peerManager = new PeerManager(peer);
         this.thread = new UpcomingFileThread(actionHandler, peerManager);
         this.thread.start();
+        peer.addReconnectListener(connection -> thread.getActionHandler().resume(connection));
     }
 
     /**
@@ -66,9 +93,11 @@ public class ConnectivityResident {
      * @throws SocketException Standard socket exception.
      */
     public void setPort(int port) throws PortUnreachableException, SocketException {
-        Peer peer = new Peer(port);
-        PeerManager peerManager = new PeerManager(peer);
         ActionHandler actionHandler = thread.getActionHandler();
+        Peer oldPeer = thread.getPeerManager().getPeer();
+        Peer peer = new Peer(port, discoveryMode, oldPeer.getPeerId());
+        peer.addReconnectListener(connection -> thread.getActionHandler().resume(connection));
+        PeerManager peerManager = new PeerManager(peer);
         thread.interrupt();
 
         this.thread = new UpcomingFileThread(actionHandler, peerManager);
@@ -102,6 +131,22 @@ public class ConnectivityResident {
         );
     }
 
+    /**
+     * This method is used to send an action request to the device with the given ID.
+     * @param peerId The ID of the device, sent by it when the connection was made.
+     * @param action The type of action to be send.
+     * @param paths The path to specific files.
+     * @throws DeviceNotFound The device is not connected.
+     * @throws IOException
+     */
+    public void sendAction(String peerId, TreeActionsEnum action, Path... paths) throws DeviceNotFound, IOException {
+        Connection connection = thread.getPeerManager().getPeer().getConnection(peerId);
+        if (connection == null)
+            throw new DeviceNotFound();
+
+        thread.getActionHandler().sendAction(connection, action, paths);
+    }
+
    /**
      * This method is used to invoke the method that will send the
      * fetch action.
@@ -144,14 +189,45 @@ public class ConnectivityResident {
     }
 
     /**
-     * This method is used to obtain a list of recently connected devices.
+     * This method is used to fetch a single file from all the connected devices that
+     * have its newest version at once, each of them sending different chunks of it.
+     * @param path The path of the file.
+     * @return A future completed with the path of the file when it was received.
+     * @throws DeviceNotFound No device is connected.
+     */
+    public CompletableFuture<Path> swarmFetch(Path path) throws DeviceNotFound {
+        List<Connection> connections = thread.getPeerManager().getPeer().getConnectedDevices();
+        if (connections.isEmpty())
+            throw new DeviceNotFound();
+
+        return thread.getActionHandler().swarmFetch(connections, path);
+    }
+
+    /**
+     * This method is used to send a file or directory to all the connected devices through
+     * a chain, each device forwarding the files to the next one while it receives them.
+     * @param path The path of the file or directory.
+     * @return A future completed when the first device of the chain received the files.
+     * @throws DeviceNotFound No device is connected.
+     */
+    public CompletableFuture<Void> chainReplicate(Path path) throws DeviceNotFound {
+        List<Connection> connections = thread.getPeerManager().getPeer().getConnectedDevices();
+        if (connections.isEmpty())
+            throw new DeviceNotFound();
+
+        return thread.getActionHandler().chainReplicate(connections, path);
+    }
+
+    /**
+     * This method is used to obtain a list of recently connected devices. The names that
+     * are not resolved yet are replaced by the address of the device.
      * @return The list of connected devices.
      * @throws BroadcastFailedException Could not get information through the
      *                                  connection.
      */
     public List<Device> findNewDevices() throws BroadcastFailedException {
         return thread.getPeerManager().findDevices()
-                .stream().map(device -> new Device(device.getHostName(), device.getHostAddress()))
+                .stream().map(device -> new Device(HostNameCache.getInstance().getName(device), device.getHostAddress()))
                 .toList();
     }
 
@@ -165,6 +241,62 @@ public class ConnectivityResident {
                 .toList();
     }
 
+    /**
+     * This method is used to obtain the ID of the current device.
+     * @return The ID sent to the other devices when a connection is made.
+     */
+    public String getPeerId() {
+        return thread.getPeerManager().getPeer().getPeerId();
+    }
+
+    /**
+     * This method is used to obtain the reconnection history of the devices the user connected to.
+     * @return The number of reconnects and the downtime, by the ID of the device.
+     */
+    public Map<String, ReconnectStats> getReconnectStats() {
+        return thread.getPeerManager().getPeer().getReconnectStats();
+    }
+
+    /**
+     * This method is used to obtain the time the last sync sessions spent in every phase.
+     * @param count The number of sessions.
+     * @return The last sessions, the most recent first.
+     */
+    public List<SessionTrace> getSessionTraces(int count) {
+        return SessionTracer.getInstance().getRecent(count);
+    }
+
+    /**
+     * This method is used to limit the bandwidth used by all the devices together.
+     * @param upload The upload limit in bytes per second, 0 for no limit.
+     * @param download The download limit in bytes per second, 0 for no limit.
+     */
+    public void setBandwidthLimits(long upload, long download) {
+        BandwidthLimits.getInstance().setGlobal(upload, download);
+    }
+
+    /**
+     * This method is used to limit the bandwidth used by a single device. The limits
+     * are kept by the ID of the device, so they still apply after a reconnection.
+     * @param index The position where the desired device is found
+     *              in the list of last searched connected devices.
+     * @param upload The upload limit in bytes per second, 0 for no limit.
+     * @param download The download limit in bytes per second, 0 for no limit.
+     * @throws DeviceNotFound The device at the given index was not found.
+     */
+    public void setBandwidthLimits(int index, long upload, long download) throws DeviceNotFound {
+        String peerId = thread.getPeerManager().getConnectedDevice(index).getPeerId();
+        BandwidthLimits.getInstance().setPeer(peerId, upload, download);
+    }
+
+    /**
+     * This method is used to obtain the bandwidth limits of all the devices and of every device.
+     * @return The limits, in bytes per second.
+     */
+    public BandwidthLimits getBandwidthLimits() {
+        return BandwidthLimits.getInstance();
+    }
+
     /**
      * The method used when user wants to establish a connection between
      * the current device and another connected device.
@@ -181,4 +313,14 @@ public class ConnectivityResident {
 
         peerManager.getPeer().connectDevice(address);
     }
+
+    /**
+     * The method used when user wants to establish a connection with a device
+     * listening on a known address and port, without searching for it first.
+     * @param address The address and the port of the device.
+     * @throws IOException The device couldn't be reached.
+     */
+    public void connectTo(InetSocketAddress address) throws IOException {
+        thread.getPeerManager().getPeer().connectDevice(address);
+    }
 }
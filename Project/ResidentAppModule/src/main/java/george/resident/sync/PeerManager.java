@@ -34,11 +34,17 @@ public class PeerManager implements Closeable {
         return lastSearch;
     }
 
+    /**
+     * Returns the current connection to a device of the last list of connected devices. If the device was
+     * reconnected since the list was made, the new connection is returned.
+     */
     public Connection getConnectedDevice(int index) throws DeviceNotFound {
         if(index < 0 || index >= lastConnectedDevices.size())
             throw new DeviceNotFound();
 
-        return lastConnectedDevices.get(index);
+        Connection connection = lastConnectedDevices.get(index);
+        Connection current = peer.getConnection(connection.getPeerId());
+        return current != null ? current : connection;
     }
 
     public InetAddress getFoundDevice(int index) throws DeviceNotFound {
@@ -0,0 +1,533 @@
+package george.resident.sync;
+
+import connectivity.connection.Connection;
+import connectivity.metrics.Counter;
+import connectivity.metrics.Histogram;
+import connectivity.metrics.Metrics;
+import george.resident.swarm.Manifest;
+import george.resident.tree.FileSystemTree;
+import george.resident.tree.TreeDirectory;
+import george.resident.tree.actions.ChunkDeal;
+import george.resident.tree.actions.TreeActionsEnum;
+import george.resident.versions.VersionIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * SwarmFetch class fetches a single file from all the devices that have the same content at once. Every device is
+ * first asked for the manifest of the file, the devices with the newest content are grouped by its hash, and every
+ * one of them is asked for a few chunks at a time:
+ * a device that sends its chunks faster is asked for more, so the file comes from every device at the speed of its
+ * uplink;
+ * the chunks of a device that sends nothing for much longer than it usually takes are asked from the other devices,
+ * and the device is not asked for more until it sends something, unless every device stalled, in which case the
+ * devices are asked again after a delay that doubles every time they stall;
+ * when no chunk is left to ask for, the chunks that are still on their way are asked from the idle devices too, and
+ * the first copy that arrives is kept;
+ * every chunk is checked against its hash when it arrives, a device that sends {@link #MAX_STRIKES} bad chunks is
+ * dropped.
+ * The fetch fails when no chunk arrived for {@link #PROGRESS_TIMEOUT} milliseconds.
+ * The file is written in a partial file and moved in place after all its chunks arrived. The counters
+ * "swarm.chunks.received", "swarm.chunks.duplicate", "swarm.chunks.corrupt" and "swarm.chunks.reassigned" show how
+ * the chunks were spread.
+ */
+/*default*/ class SwarmFetch {
+    /**
+     * The largest number of chunks a device may have on their way at once
+     */
+    private static final int PIPELINE = 6;
+    /**
+     * The time in milliseconds the chunks a device has on their way should take to arrive, which sets how many of them
+     * a device is asked for
+     */
+    private static final long QUEUE_MILLIS = 2_000;
+    private static final int MAX_STRIKES = 3;
+    private static final long MANIFEST_TIMEOUT = 10_000;
+    /**
+     * The shortest time in milliseconds without a chunk from a device after which its chunks are asked from the others
+     */
+    private static final long MIN_STALL = 3_000;
+    /**
+     * The largest number of times the delay before asking a stalled device again is doubled
+     */
+    private static final int MAX_BACKOFF = 3;
+    /**
+     * The time in milliseconds without a new chunk after which the fetch fails
+     */
+    private static final long PROGRESS_TIMEOUT = 60_000;
+    private static final long TICK = 500;
+
+    private static final Counter received = Metrics.getInstance().counter("swarm.chunks.received");
+    private static final Counter duplicates = Metrics.getInstance().counter("swarm.chunks.duplicate");
+    private static final Counter corrupt = Metrics.getInstance().counter("swarm.chunks.corrupt");
+    private static final Counter reassigned = Metrics.getInstance().counter("swarm.chunks.reassigned");
+    private static final Histogram duration = Metrics.getInstance().histogram("swarm.duration");
+    private static final Histogram sourceCount = Metrics.getInstance().histogram("swarm.sources");
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "swarm");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A device the chunks are fetched from
+     */
+    private static class Source {
+        private final Connection connection;
+        /**
+         * The chunks asked from the device and not received yet, with the time in milliseconds they were asked at
+         */
+        private final Map<Integer, Long> asked = new LinkedHashMap<>();
+        /**
+         * The average time in milliseconds the device takes to send a chunk, measured between the chunks it sends
+         */
+        private double chunkTime;
+        /**
+         * The time in milliseconds the last chunk of the device arrived at
+         */
+        private long lastArrival;
+        private int strikes;
+        private boolean stalled;
+        /**
+         * The time in milliseconds the device last stalled at, and the number of times it stalled since it last sent
+         * a chunk
+         */
+        private long stalledAt;
+        private int stalls;
+
+        private Source(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * @return The number of chunks the device sends in about {@link #QUEUE_MILLIS}, at least one and at most
+         * {@link #PIPELINE}, or two before its speed is known
+         */
+        private int depth() {
+            if (chunkTime == 0)
+                return 2;
+            return (int) Math.max(1, Math.min(PIPELINE, 1 + QUEUE_MILLIS / chunkTime));
+        }
+    }
+
+    private final ActionHandler actionHandler;
+    private final String sessionId;
+    private final Path path;
+    private final Path root;
+    private final List<Connection> connections;
+    private final Map<String, Manifest> manifests = new HashMap<>();
+    private final Map<String, Source> sources = new LinkedHashMap<>();
+    private final CompletableFuture<Path> result = new CompletableFuture<>();
+    private final long start = System.nanoTime();
+
+    private Manifest manifest;
+    private BitSet done;
+    /**
+     * The chunks that are not asked from any device
+     */
+    private final Deque<Integer> pending = new ArrayDeque<>();
+    private Path partial;
+    private FileChannel output;
+    private ScheduledFuture<?> ticks;
+    /**
+     * The time in milliseconds the last new chunk arrived at, or the transfer started at
+     */
+    private long lastProgress;
+
+    /**
+     * @param actionHandler The handler through which the actions are sent
+     * @param sessionId The session of the fetch, which names its chunks
+     * @param path The path of the file, relative to the synchronized directory
+     * @param connections The devices that may have the file
+     */
+    /*default*/ SwarmFetch(ActionHandler actionHandler, String sessionId, Path path, List<Connection> connections) {
+        this.actionHandler = actionHandler;
+        this.sessionId = sessionId;
+        this.path = path;
+        this.root = actionHandler.getSynchronizedDirectory().getPath();
+        this.connections = connections;
+    }
+
+    /**
+     * @return A future completed with the path of the file when it was fetched, or with the exception that stopped it
+     */
+    /*default*/ CompletableFuture<Path> getResult() {
+        return result;
+    }
+
+    /**
+     * The method asks every device for the manifest of the file
+     */
+    /*default*/ synchronized void start() {
+        for (Connection connection : connections) {
+            FileSystemTree request = new FileSystemTree(new TreeDirectory(), TreeActionsEnum.Manifest);
+            request.setPath(path);
+            request.setSessionId(sessionId);
+            try {
+                actionHandler.sendFileSystemTree(connection, request);
+            } catch (IOException e) {
+                manifests.put(connection.getPeerId(), null);
+            }
+        }
+        timer.schedule(this::decide, MANIFEST_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (manifests.size() == connections.size())
+            decide();
+    }
+
+    /**
+     * The method keeps the manifest a device sent and starts the transfer when every device answered
+     * @param connection The device
+     * @param manifest Its manifest, or null if it doesn't have the file
+     */
+    /*default*/ synchronized void manifest(Connection connection, Manifest manifest) {
+        if (this.manifest != null || result.isDone())
+            return;
+        manifests.put(connection.getPeerId(), manifest);
+        if (manifests.size() == connections.size())
+            decide();
+    }
+
+    /**
+     * The method chooses the devices to fetch from: the ones with the newest content, grouped by its hash
+     */
+    private synchronized void decide() {
+        if (manifest != null || result.isDone())
+            return;
+
+        Map<String, List<String>> holders = new HashMap<>();
+        Map<String, Manifest> contents = new HashMap<>();
+        manifests.forEach((peerId, candidate) -> {
+            if (candidate == null || candidate.getChunkSize() != Manifest.CHUNK_SIZE)
+                return;
+            holders.computeIfAbsent(candidate.getContentHash(), hash -> new ArrayList<>()).add(peerId);
+            contents.merge(candidate.getContentHash(), candidate,
+                    (kept, other) -> other.getModified() > kept.getModified() ? other : kept);
+        });
+        Manifest newest = contents.values().stream()
+                .max(Comparator.comparingLong(Manifest::getModified)
+                        .thenComparingInt(candidate -> holders.get(candidate.getContentHash()).size()))
+                .orElse(null);
+        if (newest == null) {
+            fail(new IOException("No device has " + path));
+            return;
+        }
+
+        manifest = newest;
+        done = new BitSet(manifest.getChunkCount());
+        for (int chunk = 0; chunk < manifest.getChunkCount(); chunk++)
+            pending.add(chunk);
+        for (Connection connection : connections)
+            if (holders.get(manifest.getContentHash()).contains(connection.getPeerId()))
+                sources.put(connection.getPeerId(), new Source(connection));
+
+        try {
+            Path partialDirectory = root.resolve(".peer").resolve("partial");
+            Files.createDirectories(partialDirectory);
+            partial = Files.createTempFile(partialDirectory, "swarm", ".part");
+            output = FileChannel.open(partial, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+
+        sourceCount.record(sources.size());
+        if (manifest.getChunkCount() == 0) {
+            finish();
+            return;
+        }
+        lastProgress = System.currentTimeMillis();
+        ticks = timer.scheduleAtFixedRate(this::tick, TICK, TICK, TimeUnit.MILLISECONDS);
+        for (Source source : List.copyOf(sources.values()))
+            ask(source);
+    }
+
+    /**
+     * The method asks a device for more chunks, until it has as many on their way as it sends in about
+     * {@link #QUEUE_MILLIS}. When no chunk is left, it asks for the chunks that have been on their way for the longest
+     * time from other devices. The device is asked only after half of its chunks arrived, so a request asks for a few
+     * chunks at once.
+     * @param source The device
+     */
+    private void ask(Source source) {
+        int depth = source.depth();
+        if (source.stalled || result.isDone() || source.asked.size() > depth / 2)
+            return;
+
+        List<Integer> chunks = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        while (source.asked.size() + chunks.size() < depth) {
+            Integer chunk = pending.poll();
+            if (chunk == null)
+                chunk = oldestElsewhere(source, chunks);
+            if (chunk == null)
+                break;
+            if (done.get(chunk))
+                continue;
+            chunks.add(chunk);
+        }
+        if (chunks.isEmpty())
+            return;
+
+        chunks.forEach(chunk -> source.asked.put(chunk, now));
+        FileSystemTree request = new FileSystemTree(new TreeDirectory(), TreeActionsEnum.Chunks);
+        request.setPath(path);
+        request.setSessionId(sessionId);
+        request.setChunks(chunks);
+        try {
+            actionHandler.sendFileSystemTree(source.connection, request);
+        } catch (IOException e) {
+            drop(source);
+        }
+    }
+
+    /**
+     * @return The chunk asked the longest time ago from another device and not from this one, or null
+     */
+    private Integer oldestElsewhere(Source source, List<Integer> chosen) {
+        Integer oldest = null;
+        long oldestTime = Long.MAX_VALUE;
+        for (Source other : sources.values()) {
+            if (other == source)
+                continue;
+            for (var entry : other.asked.entrySet()) {
+                int chunk = entry.getKey();
+                if (entry.getValue() < oldestTime && !done.get(chunk) && !source.asked.containsKey(chunk)
+                        && !chosen.contains(chunk)) {
+                    oldest = chunk;
+                    oldestTime = entry.getValue();
+                }
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * The method checks a chunk that arrived and writes it at its place
+     * @param connection The device that sent it
+     * @param chunk The index of the chunk
+     * @param file The file in which the chunk was received
+     */
+    /*default*/ synchronized void chunk(Connection connection, int chunk, Path file) {
+        try {
+            Source source = sources.get(connection.getPeerId());
+            if (manifest == null || result.isDone() || chunk < 0 || chunk >= manifest.getChunkCount())
+                return;
+
+            Long askedAt = source != null ? source.asked.remove(chunk) : null;
+            if (source != null) {
+                source.stalled = false;
+                source.stalls = 0;
+                if (askedAt != null) {
+                    // The chunks of a device arrive one after the other, so a chunk is sent since the previous one arrived
+                    long now = System.currentTimeMillis();
+                    long time = now - Math.max(askedAt, source.lastArrival);
+                    source.chunkTime = source.chunkTime == 0 ? time : 0.8 * source.chunkTime + 0.2 * time;
+                    source.lastArrival = now;
+                }
+            }
+
+            if (done.get(chunk)) {
+                duplicates.increment();
+            } else if (!matches(chunk, file)) {
+                corrupt.increment();
+                System.err.println("Chunk " + chunk + " of " + path + " from " + connection.getName() + " is corrupt");
+                if (!isAsked(chunk))
+                    pending.addFirst(chunk);
+                if (source != null && ++source.strikes >= MAX_STRIKES) {
+                    drop(source);
+                    return;
+                }
+            } else {
+                received.increment();
+                done.set(chunk);
+                lastProgress = System.currentTimeMillis();
+                if (done.cardinality() == manifest.getChunkCount()) {
+                    finish();
+                    return;
+                }
+            }
+
+            if (source != null)
+                ask(source);
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            // Deleting a file may take a while, the receiver doesn't wait for it
+            timer.execute(() -> {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                }
+            });
+        }
+    }
+
+    /**
+     * The method writes a chunk at its place if it matches its hash
+     * @return Whether the chunk was written, false if it doesn't match its hash
+     * @throws IOException The chunk can't be read or written
+     */
+    private boolean matches(int chunk, Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        if (bytes.length != manifest.getLength(chunk)
+                || !Manifest.hash(ByteBuffer.wrap(bytes)).equals(manifest.getHash(chunk)))
+            return false;
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long position = manifest.getOffset(chunk);
+        while (buffer.hasRemaining())
+            position += output.write(buffer, position);
+        return true;
+    }
+
+    private boolean isAsked(int chunk) {
+        return sources.values().stream().anyMatch(source -> source.asked.containsKey(chunk));
+    }
+
+    /**
+     * The method describes what the timer does: the chunks of a device that sent nothing for much longer than it takes
+     * to send a chunk are asked from the others, and the devices that were lost are dropped. When every device
+     * stalled, the ones whose delay passed are asked again, and the fetch fails if nothing arrived for too long.
+     */
+    private synchronized void tick() {
+        if (result.isDone())
+            return;
+
+        long now = System.currentTimeMillis();
+        if (now - lastProgress > PROGRESS_TIMEOUT) {
+            fail(new IOException("No chunk of " + path + " arrived for " + PROGRESS_TIMEOUT / 1000 + " s"));
+            return;
+        }
+        for (Source source : List.copyOf(sources.values())) {
+            if (source.connection.isClosed()) {
+                drop(source);
+                continue;
+            }
+            if (source.asked.isEmpty())
+                continue;
+            long since = Math.max(source.asked.values().iterator().next(), source.lastArrival);
+            if (now - since < Math.max(MIN_STALL, (long) (4 * source.chunkTime)))
+                continue;
+
+            List<Integer> chunks = new ArrayList<>(source.asked.keySet());
+            source.asked.clear();
+            source.stalled = true;
+            source.stalledAt = now;
+            source.stalls++;
+            for (int chunk : chunks) {
+                reassigned.increment();
+                if (!done.get(chunk) && !isAsked(chunk))
+                    pending.addFirst(chunk);
+            }
+        }
+        if (result.isDone())
+            return;
+        // Nobody else would ask for the chunks, the stalled devices are given another chance
+        if (sources.values().stream().allMatch(source -> source.stalled))
+            for (Source source : sources.values())
+                if (now - source.stalledAt >= MIN_STALL << Math.min(source.stalls - 1, MAX_BACKOFF))
+                    source.stalled = false;
+        for (Source source : List.copyOf(sources.values()))
+            ask(source);
+    }
+
+    /**
+     * The method stops fetching from a device and gives its chunks to the others
+     */
+    private void drop(Source source) {
+        sources.remove(source.connection.getPeerId());
+        source.asked.keySet().forEach(chunk -> {
+            if (!done.get(chunk) && !isAsked(chunk))
+                pending.addFirst(chunk);
+        });
+        source.asked.clear();
+
+        if (sources.isEmpty()) {
+            fail(new IOException("No device is left to fetch " + path + " from"));
+            return;
+        }
+        for (Source other : List.copyOf(sources.values()))
+            ask(other);
+    }
+
+    private void finish() {
+        try {
+            output.close();
+            Files.setLastModifiedTime(partial, FileTime.fromMillis(manifest.getModified()));
+            Path target = root.resolve(path);
+            Files.createDirectories(target.getParent());
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+
+            VersionIndex index = actionHandler.getSynchronizedDirectory().getVersionIndex();
+            index.received(path);
+            if (manifest.getVersion() != null)
+                index.merge(path, manifest.getVersion());
+            index.save();
+            duration.recordMicrosSince(start);
+            complete(target, null);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(Exception e) {
+        System.err.println("Swarm fetch of " + path + " failed: " + e.getMessage());
+        try {
+            if (output != null)
+                output.close();
+            if (partial != null)
+                Files.deleteIfExists(partial);
+        } catch (IOException ignored) {
+        }
+        complete(null, e);
+    }
+
+    private void complete(Path target, Exception e) {
+        if (ticks != null)
+            ticks.cancel(false);
+        actionHandler.swarmFinished(sessionId);
+        timer.execute(() -> {
+            Path directory = root.resolve(ChunkDeal.SWARM_DIRECTORY.resolve(sessionId));
+            try (var chunks = Files.list(directory)) {
+                for (Path chunk : chunks.toList())
+                    Files.deleteIfExists(chunk);
+                Files.deleteIfExists(directory);
+            } catch (IOException ignored) {
+            }
+        });
+        if (e == null)
+            result.complete(target);
+        else
+            result.completeExceptionally(e);
+    }
+
+    /**
+     * @param chunkPath The path of a received chunk, relative to the synchronized directory
+     * @return The index of the chunk, or -1 if the path is not the path of a chunk
+     */
+    /*default*/ static int chunkIndex(Path chunkPath) {
+        try {
+            return Integer.parseInt(chunkPath.getFileName().toString());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param chunkPath The path of a received chunk, relative to the synchronized directory
+     * @return The session of the chunk
+     */
+    /*default*/ static String chunkSession(Path chunkPath) {
+        Path session = ChunkDeal.SWARM_DIRECTORY.relativize(chunkPath).getName(0);
+        return session.toString();
+    }
+}
@@ -0,0 +1,217 @@
+package george.resident.sync;
+
+import connectivity.metrics.Counter;
+import connectivity.metrics.Metrics;
+import george.resident.tree.FileSystemTree;
+import george.resident.tree.TreeDelta;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * TreeCache class keeps the trees of the whole synchronized directory exchanged with every peer, so a "Sync" or a
+ * "Fetch" sends only the changes since the previous tree instead of all the files. Every tree is known by the session
+ * of the action that sent it.
+ * The receiver keeps the last tree it received from every peer in .peer/trees/received/peerId/sessionId.json, and
+ * names its session in the "Ack" of the action. The sender keeps every tree it sends until its action is acknowledged,
+ * and then keeps only the tree the receiver kept, in .peer/trees/sent/peerId.json. The next trees are sent as
+ * {@link TreeDelta}s of that tree. A receiver that doesn't have the base of a delta anymore answers with a "FullTree"
+ * action, and the sender forgets its tree and sends the action again with the whole tree.
+ * The trees are kept only with the "p2p.tree.delta" property, and only the receivers that kept a tree are sent
+ * deltas, so the devices without the property still receive whole trees.
+ * The peer and session IDs come from the peers and name the files, so only IDs made of letters, digits, '.', '_' and
+ * '-' that don't start with '.' are accepted.
+ */
+/*default*/ class TreeCache {
+    /**
+     * Whether the trees of the peers are kept, and the trees sent to them are deltas
+     */
+    /*default*/ static final boolean enabled = Boolean.getBoolean("p2p.tree.delta");
+
+    private static final Counter deltas = Metrics.getInstance().counter("tree.deltas");
+    private static final Counter wholeTrees = Metrics.getInstance().counter("tree.whole");
+    private static final Counter missedBases = Metrics.getInstance().counter("tree.delta.missed");
+    private static final Pattern ID = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]*");
+
+    private final Path sent;
+    private final Path received;
+
+    /**
+     * @param peerDirectory The .peer folder of the synchronized directory
+     */
+    /*default*/ TreeCache(Path peerDirectory) {
+        this.sent = peerDirectory.resolve("trees").resolve("sent");
+        this.received = peerDirectory.resolve("trees").resolve("received");
+    }
+
+    /**
+     * The method keeps a tree that is about to be sent and makes it a delta of the last tree the peer kept
+     * @param peerId The ID of the peer
+     * @param tree The whole tree of the action
+     * @return The tree to send, a delta if the peer kept a previous tree
+     * @throws IOException The trees can't be written or read, or an ID is not valid
+     */
+    /*default*/ FileSystemTree encode(String peerId, FileSystemTree tree) throws IOException {
+        write(tree, sent.resolve(checked(peerId)).resolve(checked(tree.getSessionId()) + ".json"));
+
+        Path acknowledged = sent.resolve(peerId + ".json");
+        if (!Files.exists(acknowledged)) {
+            wholeTrees.increment();
+            return tree;
+        }
+
+        FileSystemTree base = read(acknowledged);
+        TreeDelta delta = TreeDelta.between(base.getRoot(), tree.getRoot());
+        FileSystemTree encoded = new FileSystemTree(delta.changed(), tree.getAction());
+        encoded.setPath(tree.getPath());
+        encoded.setSessionId(tree.getSessionId());
+        encoded.setBase(base.getSessionId());
+        encoded.setRemoved(delta.removed());
+        deltas.increment();
+        return encoded;
+    }
+
+    /**
+     * The method keeps, after a peer acknowledged an action, the tree the peer kept as the base of the next deltas,
+     * and forgets the other trees sent to it
+     * @param peerId The ID of the peer
+     * @param kept The session whose tree the peer kept, or null if it didn't keep any
+     */
+    /*default*/ void acknowledged(String peerId, String kept) {
+        if (!isValid(peerId))
+            return;
+        Path pending = sent.resolve(peerId);
+        try {
+            if (isValid(kept) && Files.exists(pending.resolve(kept + ".json")))
+                Files.move(pending.resolve(kept + ".json"), sent.resolve(peerId + ".json"),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            deleteAll(pending);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * The method forgets the trees sent to a peer, so the next tree sent to it is whole
+     * @param peerId The ID of the peer
+     */
+    /*default*/ void forget(String peerId) {
+        if (!isValid(peerId))
+            return;
+        try {
+            Files.deleteIfExists(sent.resolve(peerId + ".json"));
+            deleteAll(sent.resolve(peerId));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * The method makes the whole tree of a received action, and keeps it if the trees are kept. The tree of a delta
+     * is made out of its base, and the trees the peer sent before the base are forgotten.
+     * @param peerId The ID of the peer that sent the action
+     * @param tree The received tree
+     * @return The whole tree, or null if the tree is a delta and its base is not kept anymore
+     * @throws IOException The trees can't be written or read, or an ID is not valid
+     */
+    /*default*/ FileSystemTree decode(String peerId, FileSystemTree tree) throws IOException {
+        FileSystemTree whole = tree;
+
+        if (tree.getBase() != null) {
+            Path base = received.resolve(checked(peerId)).resolve(checked(tree.getBase()) + ".json");
+            if (!Files.exists(base)) {
+                missedBases.increment();
+                return null;
+            }
+            TreeDelta delta = new TreeDelta(tree.getRoot(),
+                    tree.getRemoved() != null ? tree.getRemoved() : List.of());
+            whole = new FileSystemTree(delta.applyTo(read(base).getRoot()), tree.getAction());
+            whole.setPath(tree.getPath());
+            whole.setSessionId(tree.getSessionId());
+        }
+
+        if (!enabled || tree.getSessionId() == null)
+            return whole;
+
+        Path directory = received.resolve(checked(peerId));
+        Path file = directory.resolve(checked(tree.getSessionId()) + ".json");
+        if (tree.getSource() != null) {
+            // The root of a streamed tree is still in its action file, which the deal deletes
+            Files.createDirectories(directory);
+            Files.copy(tree.getSource(), file, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            write(whole, file);
+        }
+
+        // The sender bases its next deltas on this tree or, until it gets the "Ack", on the base of this one
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path other : files.toList()) {
+                String name = other.getFileName().toString();
+                if (!name.equals(file.getFileName().toString()) && !name.equals(tree.getBase() + ".json"))
+                    Files.deleteIfExists(other);
+            }
+        }
+        return whole;
+    }
+
+    /**
+     * @param peerId The ID of the peer that sent an action
+     * @param sessionId The session of the action
+     * @return Whether the tree of the action was kept
+     */
+    /*default*/ boolean kept(String peerId, String sessionId) {
+        return enabled && isValid(peerId) && isValid(sessionId)
+                && Files.exists(received.resolve(peerId).resolve(sessionId + ".json"));
+    }
+
+    /**
+     * @return Whether an ID can name a file of the cache without leaving its directory
+     */
+    private static boolean isValid(String id) {
+        return id != null && ID.matcher(id).matches();
+    }
+
+    private static String checked(String id) throws IOException {
+        if (!isValid(id))
+            throw new IOException("Bad ID " + id);
+        return id;
+    }
+
+    private static FileSystemTree read(Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file)) {
+            return FileSystemTree.fromJSON(reader);
+        }
+    }
+
+    /**
+     * The method writes a tree in a temporary file first, so a kept tree is always whole
+     */
+    private static void write(FileSystemTree tree, Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), "tree", ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp)) {
+                tree.toJSON(writer);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void deleteAll(Path directory) throws IOException {
+        if (!Files.isDirectory(directory))
+            return;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList())
+                Files.deleteIfExists(file);
+        }
+    }
+}
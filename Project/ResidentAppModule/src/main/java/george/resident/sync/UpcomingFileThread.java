@@ -1,11 +1,13 @@
 package george.resident.sync;
 
-import com.google.gson.Gson;
 import connectivity.connection.Connection;
+import connectivity.tracing.Phase;
+import connectivity.tracing.SessionTracer;
+import connectivity.tracing.Span;
 import george.resident.tree.FileSystemTree;
+import george.resident.tree.actions.ChunkDeal;
 
-import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
@@ -17,6 +19,7 @@ public class UpcomingFileThread extends Thread{
     public UpcomingFileThread(ActionHandler actionHandler, PeerManager peerManager) {
         this.actionHandler = actionHandler;
         this.peerManager = peerManager;
+        actionHandler.setPeers(peerId -> peerManager.getPeer().getConnection(peerId));
     }
 
     public ActionHandler getActionHandler() {
@@ -32,11 +35,17 @@ public class UpcomingFileThread extends Thread{
         while (isAlive()) {
             var entry = peerManager.getPeer()
                     .incomingFile(actionHandler.getSynchronizedDirectory().getPath());
+            if (entry == null)
+                return;
             Connection connection = entry.getKey();
             Path relativePath = entry.getValue();
 
             if (relativePath == null) {
-                this.peerManager.getPeer().disconnectDevice(connection);
+                this.peerManager.getPeer().connectionLost(connection);
+                continue;
+            }
+            if (relativePath.startsWith(ChunkDeal.SWARM_DIRECTORY)) {
+                actionHandler.incomingChunk(connection, relativePath);
                 continue;
             }
             Path path = actionHandler.getSynchronizedDirectory().getPath().resolve(relativePath);
@@ -47,20 +56,29 @@ public class UpcomingFileThread extends Thread{
                             && fileName.startsWith("action")
                             && fileName.endsWith(".json")
             ){
-                try(InputStream inputStream = new FileInputStream(path.toFile())) {
-                    Gson gson = new Gson();
-                    Reader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-
-                    FileSystemTree fileSystemTree = gson.fromJson(reader, FileSystemTree.class);
+                FileSystemTree fileSystemTree = null;
+                try (Span span = SessionTracer.getInstance().start(Phase.DECODE, null, relativePath.toString())) {
+                    fileSystemTree = FileSystemTree.fromJSON(path);
+                    span.setSessionId(fileSystemTree.getSessionId());
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Bad action " + relativePath + ": " + e.getMessage());
+                }
+                if (fileSystemTree != null) {
+                    SessionTracer.getInstance().claimWait(fileSystemTree.getSessionId());
                     actionHandler.incomingAction(connection, fileSystemTree);
-                } catch (IOException ignored) {
-
                 }
-                try {
-                    Files.delete(path);
-                } catch (IOException ignored) {
+                // The deal of a streamed tree deletes the action file once it read it
+                if (fileSystemTree == null || fileSystemTree.getSource() == null) {
+                    try {
+                        Files.delete(path);
+                    } catch (IOException ignored) {
 
+                    }
                 }
+            } else {
+                actionHandler.getSynchronizedDirectory().getVersionIndex().received(relativePath);
+                SessionTracer tracer = SessionTracer.getInstance();
+                tracer.claimWait(tracer.expected(connection.getPeerId()));
             }
         }
     }
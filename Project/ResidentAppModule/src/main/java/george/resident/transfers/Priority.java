@@ -0,0 +1,13 @@
+package george.resident.transfers;
+
+/**
+ * Enum with the priority classes of the transfers, the most urgent first:
+ * The files a user is waiting for, asked with a fetch.
+ * The files sent by a sync.
+ * The large files, whatever asked for them, sent when no other file is waiting.
+ */
+public enum Priority {
+    INTERACTIVE,
+    SYNC,
+    BULK
+}
@@ -0,0 +1,11 @@
+package george.resident.transfers;
+
+/**
+ * Enum with the orders in which the transfers of the same priority class are started:
+ * The smallest files first, so the most files arrive in the least time.
+ * The most recently modified files first, which are the most likely to be needed soon.
+ */
+public enum TransferOrder {
+    SMALLEST_FIRST,
+    RECENT_FIRST
+}
@@ -0,0 +1,444 @@
+package george.resident.transfers;
+
+import connectivity.connection.Connection;
+import connectivity.connection.FanOut;
+import connectivity.metrics.Counter;
+import connectivity.metrics.Histogram;
+import connectivity.metrics.Metrics;
+import connectivity.tracing.Phase;
+import connectivity.tracing.SessionTracer;
+import connectivity.tracing.Span;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TransferScheduler class decides which file is sent next, when the deals of several actions, to one or several
+ * peers, have files waiting. A file is started only while fewer than the global limit of files are being sent, and
+ * fewer than the limit of its peer are being sent to that peer. A connection sends a single file at a time, so a
+ * peer limit above 1 only makes the files wait on the connection instead of here.
+ * The next file is the one of the most urgent {@link Priority} class, and in the same class the first one in the
+ * {@link TransferOrder} of the scheduler. A file larger than {@link #BULK_SIZE} is always in the bulk class, so a
+ * large image doesn't delay the small documents behind it. A file that waits moves up one class every
+ * {@link #AGING_MILLIS}, so the bulk files are still sent while other files keep coming. A file that is being sent
+ * is never interrupted.
+ * When the same file waits for several peers, because they all need the last version of a file, it is sent to all
+ * of them at once by a {@link FanOut}, which reads it from the disk only once. The fan-out takes a single slot of the
+ * global limit, which bounds the reads of the disk, and a slot of every one of its peers.
+ * The files of every peer wait in a queue per class, so choosing the next file only looks at the first file of every
+ * class of the peers that have a free slot. A class that moved up sends its files in the order they were queued in,
+ * so none of them waits forever.
+ * Every {@link george.resident.sync.ActionHandler} has its own scheduler, so the devices running in the same process
+ * don't share their limits. The time the files waited is kept in the "transfer.<class>.wait" histograms, the number
+ * of files started ahead of their class in the "transfer.aged" counter and the number of waiting files in the
+ * "transfer.<name>.queued" gauge.
+ */
+public class TransferScheduler {
+    /**
+     * The size in bytes from which a file is in the bulk class
+     */
+    public static final long BULK_SIZE = 64L * 1024 * 1024;
+    /**
+     * The time in milliseconds after which a waiting file moves up one class
+     */
+    public static final long AGING_MILLIS = 10_000;
+    private static final int DEFAULT_GLOBAL_LIMIT = 4;
+    private static final int DEFAULT_PEER_LIMIT = 1;
+
+    /**
+     * The version of a file, which the transfers of a fan-out share
+     */
+    private record FileKey(Path root, Path path, long size, FileTime modified) {
+    }
+
+    /**
+     * A file waiting to be sent
+     */
+    private static class Transfer {
+        private final Connection connection;
+        private final Path root;
+        private final Path path;
+        private final BasicFileAttributes attributes;
+        private final Priority priority;
+        private final String sessionId;
+        private final long sequence;
+        private final long queuedAt = System.nanoTime();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final FileKey file;
+        /**
+         * Whether the transfer left the queues, because it was started or cancelled
+         */
+        private boolean taken;
+
+        private Transfer(Connection connection, Path root, Path path, BasicFileAttributes attributes,
+                         Priority priority, String sessionId, long sequence) {
+            this.connection = connection;
+            this.root = root;
+            this.path = path;
+            this.attributes = attributes;
+            this.priority = priority;
+            this.sessionId = sessionId;
+            this.sequence = sequence;
+            this.file = new FileKey(root, path, attributes.size(), attributes.lastModifiedTime());
+        }
+
+        /**
+         * @param now The current time in nanoseconds
+         * @return The class of the transfer after the classes it moved up while waiting, 0 being the most urgent
+         */
+        private int effectiveClass(long now) {
+            long aged = TimeUnit.NANOSECONDS.toMillis(now - queuedAt) / AGING_MILLIS;
+            return (int) Math.max(0, priority.ordinal() - aged);
+        }
+    }
+
+    /**
+     * The files waiting for every peer, in the order of the scheduler and in the order they were queued in
+     */
+    private class PeerQueue {
+        private final Map<Priority, PriorityQueue<Transfer>> ordered = new EnumMap<>(Priority.class);
+        private final Map<Priority, Deque<Transfer>> arrived = new EnumMap<>(Priority.class);
+
+        private PeerQueue() {
+            for (Priority priority : Priority.values()) {
+                ordered.put(priority, new PriorityQueue<>(TransferScheduler.this::compareOrder));
+                arrived.put(priority, new ArrayDeque<>());
+            }
+        }
+
+        private void add(Transfer transfer) {
+            ordered.get(transfer.priority).add(transfer);
+            arrived.get(transfer.priority).add(transfer);
+        }
+
+        /**
+         * @param now The current time in nanoseconds
+         * @return The file of the peer to send next, or null if no file is waiting for the peer
+         */
+        private Transfer next(long now) {
+            Transfer next = null;
+            for (Priority priority : Priority.values()) {
+                Deque<Transfer> queue = arrived.get(priority);
+                PriorityQueue<Transfer> sorted = ordered.get(priority);
+                while (!queue.isEmpty() && !isWaiting(queue.peek()))
+                    queue.poll();
+                while (!sorted.isEmpty() && !isWaiting(sorted.peek()))
+                    sorted.poll();
+                if (queue.isEmpty())
+                    continue;
+
+                Transfer oldest = queue.peek();
+                Transfer candidate = oldest.effectiveClass(now) < priority.ordinal() ? oldest : sorted.peek();
+                if (next == null || compare(candidate, next, now) < 0)
+                    next = candidate;
+            }
+            return next;
+        }
+
+        /**
+         * The method sorts the waiting files again, after the order of the scheduler changed
+         */
+        private void reorder() {
+            ordered.replaceAll((priority, sorted) -> {
+                PriorityQueue<Transfer> reordered = new PriorityQueue<>(TransferScheduler.this::compareOrder);
+                sorted.stream().filter(transfer -> !transfer.taken).forEach(reordered::add);
+                return reordered;
+            });
+        }
+    }
+
+    /**
+     * The files waiting to be sent, by the ID of their peer
+     */
+    private final Map<String, PeerQueue> waiting = new HashMap<>();
+    /**
+     * The files waiting to be sent, by their version, to find the peers of a fan-out
+     */
+    private final Map<FileKey, List<Transfer>> sameFiles = new HashMap<>();
+    private int queued;
+    /**
+     * The number of files being sent, by the ID of the peer
+     */
+    private final Map<String, Integer> running = new HashMap<>();
+    private int runningTotal;
+    private int globalLimit;
+    private int peerLimit;
+    private TransferOrder order = TransferOrder.SMALLEST_FIRST;
+    private long sequence;
+
+    private final Map<Priority, Histogram> waits = new EnumMap<>(Priority.class);
+    private final Counter aged = Metrics.getInstance().counter("transfer.aged");
+    private final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param name The name of the scheduler in its gauge, like the ID of the device
+     */
+    public TransferScheduler(String name) {
+        this(name, DEFAULT_GLOBAL_LIMIT, DEFAULT_PEER_LIMIT);
+    }
+
+    /**
+     * @param name The name of the scheduler in its gauge, like the ID of the device
+     * @param globalLimit The maximum number of files sent at the same time
+     * @param peerLimit The maximum number of files sent at the same time to the same peer
+     */
+    public TransferScheduler(String name, int globalLimit, int peerLimit) {
+        setLimits(globalLimit, peerLimit);
+        for (Priority priority : Priority.values())
+            waits.put(priority, Metrics.getInstance().histogram("transfer." + priority.name().toLowerCase() + ".wait"));
+        Metrics.getInstance().gauge("transfer." + name + ".queued", this::getQueued);
+    }
+
+    /**
+     * The method queues a file to be sent and starts it if a slot is free
+     * @param connection The connection through which the file is sent
+     * @param root The synchronized directory
+     * @param path The path of the file, relative to the synchronized directory
+     * @param attributes The attributes of the file, used to order it
+     * @param priority The class of the action that sends the file
+     * @param sessionId The session of the action, or null if it isn't known
+     * @return A future completed when the file was sent, or with the exception that stopped it. Cancelling it
+     * removes the file from the queue, if it was not started yet.
+     */
+    public CompletableFuture<Void> submit(Connection connection, Path root, Path path, BasicFileAttributes attributes,
+                                          Priority priority, String sessionId) {
+        if (attributes.size() >= BULK_SIZE)
+            priority = Priority.BULK;
+
+        Transfer transfer;
+        synchronized (this) {
+            transfer = new Transfer(connection, root, path, attributes, priority, sessionId, sequence++);
+            waiting.computeIfAbsent(connection.getPeerId(), peerId -> new PeerQueue()).add(transfer);
+            sameFiles.computeIfAbsent(transfer.file, file -> new ArrayList<>()).add(transfer);
+            queued++;
+            dispatch();
+        }
+        transfer.done.whenComplete((ignored, error) -> {
+            if (transfer.done.isCancelled())
+                discard(transfer);
+        });
+        return transfer.done;
+    }
+
+    /**
+     * The method starts the most urgent files while there are free slots. It is called every time a file is queued or
+     * finished, which are the only moments at which a slot can become usable.
+     */
+    private synchronized void dispatch() {
+        long now = System.nanoTime();
+
+        while (runningTotal < globalLimit) {
+            Transfer next = null;
+            for (Iterator<Map.Entry<String, PeerQueue>> peers = waiting.entrySet().iterator(); peers.hasNext(); ) {
+                Map.Entry<String, PeerQueue> peer = peers.next();
+                if (running.getOrDefault(peer.getKey(), 0) >= peerLimit)
+                    continue;
+                Transfer candidate = peer.getValue().next(now);
+                if (candidate == null)
+                    peers.remove();
+                else if (next == null || compare(candidate, next, now) < 0)
+                    next = candidate;
+            }
+            if (next == null)
+                return;
+            Transfer first = next;
+
+            List<Transfer> group = new ArrayList<>(List.of(first));
+            for (Transfer transfer : sameFiles.get(first.file))
+                if (transfer != first && isWaiting(transfer) && isFree(transfer, group))
+                    group.add(transfer);
+
+            group.forEach(this::take);
+            runningTotal++;
+            for (Transfer transfer : group) {
+                running.merge(transfer.connection.getPeerId(), 1, Integer::sum);
+                if (transfer.effectiveClass(now) < transfer.priority.ordinal())
+                    aged.increment();
+            }
+
+            workers.execute(group.size() == 1 ? () -> send(first) : () -> fanOut(group));
+        }
+    }
+
+    /**
+     * @return Whether a transfer can join a fan-out: its peer has a free slot and no other file of the fan-out goes
+     * to the same peer
+     */
+    private boolean isFree(Transfer transfer, List<Transfer> group) {
+        String peerId = transfer.connection.getPeerId();
+        return running.getOrDefault(peerId, 0) < peerLimit
+                && group.stream().noneMatch(other -> other.connection.getPeerId().equals(peerId));
+    }
+
+    /**
+     * @return Whether a transfer is still in the queues, a cancelled transfer being taken out of them
+     */
+    private boolean isWaiting(Transfer transfer) {
+        if (transfer.taken)
+            return false;
+        if (transfer.done.isDone()) {
+            take(transfer);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The method takes a transfer out of the queues. It stays in the queue of its peer until it comes first there.
+     */
+    private void take(Transfer transfer) {
+        transfer.taken = true;
+        queued--;
+        List<Transfer> copies = sameFiles.get(transfer.file);
+        if (copies != null) {
+            copies.remove(transfer);
+            if (copies.isEmpty())
+                sameFiles.remove(transfer.file);
+        }
+    }
+
+    private synchronized void discard(Transfer transfer) {
+        if (!transfer.taken)
+            take(transfer);
+    }
+
+    private int compare(Transfer first, Transfer second, long now) {
+        int result = Integer.compare(first.effectiveClass(now), second.effectiveClass(now));
+        return result != 0 ? result : compareOrder(first, second);
+    }
+
+    /**
+     * @return The order of two transfers of the same class
+     */
+    private int compareOrder(Transfer first, Transfer second) {
+        int result = switch (order) {
+            case SMALLEST_FIRST -> Long.compare(first.attributes.size(), second.attributes.size());
+            case RECENT_FIRST -> second.attributes.lastModifiedTime().compareTo(first.attributes.lastModifiedTime());
+        };
+        return result != 0 ? result : Long.compare(first.sequence, second.sequence);
+    }
+
+    /**
+     * The method describes what a worker does: it sends a single file and frees its slots
+     * @param transfer The file to send
+     */
+    @SuppressWarnings("try")
+    private void send(Transfer transfer) {
+        started(transfer);
+        Throwable error = null;
+        try (Span ignored = SessionTracer.getInstance().start(Phase.PUSH, transfer.sessionId, transfer.path.toString())) {
+            transfer.connection.sendFile(transfer.root, transfer.path);
+        } catch (Throwable e) {
+            error = e;
+        }
+        finished(transfer, error);
+        release();
+    }
+
+    /**
+     * The method sends the same file to several peers with a {@link FanOut}. The slot of every peer is freed as soon
+     * as its connection sent the file, the global slot when all of them did.
+     * @param group The transfers of the same file, to different peers
+     */
+    private void fanOut(List<Transfer> group) {
+        group.forEach(this::started);
+        Transfer first = group.get(0);
+        List<CompletableFuture<Void>> sent;
+        try {
+            sent = FanOut.send(first.root, first.path, group.stream().map(transfer -> transfer.connection).toList());
+        } catch (Throwable e) {
+            group.forEach(transfer -> finished(transfer, e));
+            release();
+            return;
+        }
+
+        for (int i = 0; i < group.size(); i++) {
+            Transfer transfer = group.get(i);
+            sent.get(i).whenComplete((ignored, error) -> finished(transfer,
+                    error instanceof CompletionException && error.getCause() != null ? error.getCause() : error));
+        }
+        CompletableFuture.allOf(sent.toArray(CompletableFuture[]::new)).whenComplete((ignored, error) -> release());
+    }
+
+    private void started(Transfer transfer) {
+        long wait = System.nanoTime() - transfer.queuedAt;
+        waits.get(transfer.priority).record(wait / 1000);
+        SessionTracer.getInstance().record(transfer.sessionId, Phase.QUEUE, wait, 0);
+    }
+
+    /**
+     * The method completes a transfer and frees the slot of its peer
+     * @param transfer The transfer
+     * @param error The exception that stopped it, or null if the file was sent
+     */
+    private void finished(Transfer transfer, Throwable error) {
+        synchronized (this) {
+            running.computeIfPresent(transfer.connection.getPeerId(), (peerId, count) -> count > 1 ? count - 1 : null);
+        }
+        if (error == null)
+            transfer.done.complete(null);
+        else
+            transfer.done.completeExceptionally(error);
+    }
+
+    /**
+     * The method frees a global slot and starts the next files
+     */
+    private synchronized void release() {
+        runningTotal--;
+        dispatch();
+    }
+
+    /**
+     * The method changes the limits, the files already being sent are not stopped
+     * @param globalLimit The maximum number of files sent at the same time
+     * @param peerLimit The maximum number of files sent at the same time to the same peer
+     */
+    public synchronized void setLimits(int globalLimit, int peerLimit) {
+        if (globalLimit <= 0 || peerLimit <= 0)
+            throw new IllegalArgumentException("Invalid transfer limits: " + globalLimit + ", " + peerLimit);
+        this.globalLimit = globalLimit;
+        this.peerLimit = peerLimit;
+        dispatch();
+    }
+
+    public synchronized void setOrder(TransferOrder order) {
+        this.order = order;
+        waiting.values().forEach(PeerQueue::reorder);
+    }
+
+    public synchronized TransferOrder getOrder() {
+        return order;
+    }
+
+    public synchronized int getGlobalLimit() {
+        return globalLimit;
+    }
+
+    public synchronized int getPeerLimit() {
+        return peerLimit;
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+}
@@ -0,0 +1,459 @@
+package george.resident.tree;
+
+import george.resident.versions.VersionVector;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * CompactTreeDirectory class keeps a whole tree in a few flat arrays instead of two maps in every directory. It is
+ * used for the trees received from other devices, which may hold millions of files and are only read. The files of a
+ * directory are stored next to each other, sorted by name, with their modification times in a long array, and are
+ * found by binary search. The subdirectories of a directory are stored the same way, and a name is shared by all the
+ * directories in which it appears. A file costs a name reference, a long and a version reference, instead of a map
+ * entry, a boxed Long and its own name.
+ * The directories are views of the arrays, created when they are asked for, and can't be changed.
+ */
+public class CompactTreeDirectory extends TreeDirectory {
+    /**
+     * The arrays of a tree, shared by the views of all its directories. The root is the directory 0, and the
+     * subdirectories of every directory have consecutive indices.
+     */
+    private static final class Layout {
+        private final String[] directoryNames;
+        private final int[] firstDirectory;
+        private final int[] directoryCount;
+        private final int[] firstFile;
+        private final int[] fileCount;
+        private final String[] fileNames;
+        private final long[] modified;
+        /**
+         * The versions of the files, or null if no file has a version
+         */
+        private final VersionVector[] versions;
+
+        private Layout(String[] directoryNames, int[] firstDirectory, int[] directoryCount, int[] firstFile,
+                       int[] fileCount, String[] fileNames, long[] modified, VersionVector[] versions) {
+            this.directoryNames = directoryNames;
+            this.firstDirectory = firstDirectory;
+            this.directoryCount = directoryCount;
+            this.firstFile = firstFile;
+            this.fileCount = fileCount;
+            this.fileNames = fileNames;
+            this.modified = modified;
+            this.versions = versions;
+        }
+    }
+
+    private final Layout layout;
+    private final int directory;
+
+    private CompactTreeDirectory(Layout layout, int directory) {
+        this.layout = layout;
+        this.directory = directory;
+    }
+
+    /**
+     * Method that builds the compact copy of a tree
+     * @param tree The tree
+     * @return The compact tree
+     */
+    public static CompactTreeDirectory copyOf(TreeDirectory tree) {
+        Builder builder = new Builder();
+        copy(tree, "", builder);
+        return builder.build();
+    }
+
+    private static void copy(TreeDirectory tree, String name, Builder builder) {
+        builder.startDirectory(name);
+        tree.getFiles().forEach((fileName, modified) -> {
+            builder.addFile(fileName, modified);
+            VersionVector version = tree.getVersion(fileName);
+            if (version != null)
+                builder.setVersion(fileName, version);
+        });
+        tree.getDirectories().forEach((directoryName, directory) -> copy(directory, directoryName, builder));
+        builder.endDirectory();
+    }
+
+    @Override
+    public void addDirectory(String name, TreeDirectory directory) {
+        throw new UnsupportedOperationException("A compact tree can't be changed");
+    }
+
+    @Override
+    public void addFile(String name, long modified) {
+        throw new UnsupportedOperationException("A compact tree can't be changed");
+    }
+
+    @Override
+    public void addFile(Path relativePath, long modified, VersionVector version) {
+        throw new UnsupportedOperationException("A compact tree can't be changed");
+    }
+
+    @Override
+    public void setVersion(String name, VersionVector version) {
+        throw new UnsupportedOperationException("A compact tree can't be changed");
+    }
+
+    @Override
+    public VersionVector getVersion(String name) {
+        if (layout.versions == null)
+            return null;
+        int file = findFile(name);
+        return file < 0 ? null : layout.versions[file];
+    }
+
+    @Override
+    /*default*/ Map<String, VersionVector> getVersions() {
+        if (layout.versions == null)
+            return null;
+        Map<String, VersionVector> versions = null;
+        int first = layout.firstFile[directory];
+        for (int file = first; file < first + layout.fileCount[directory]; file++) {
+            if (layout.versions[file] == null)
+                continue;
+            if (versions == null)
+                versions = new HashMap<>();
+            versions.put(layout.fileNames[file], layout.versions[file]);
+        }
+        return versions;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return layout.fileCount[directory] == 0 && layout.directoryCount[directory] == 0;
+    }
+
+    @Override
+    public Long getModified(String name) {
+        int file = findFile(name);
+        return file < 0 ? null : layout.modified[file];
+    }
+
+    @Override
+    public Map<String, TreeDirectory> getDirectories() {
+        return new DirectoryMap();
+    }
+
+    @Override
+    public Map<String, Long> getFiles() {
+        return new FileMap();
+    }
+
+    @Override
+    public boolean containsDirectory(String name) {
+        return findDirectory(name) >= 0;
+    }
+
+    @Override
+    public boolean containsFile(String name) {
+        return findFile(name) >= 0;
+    }
+
+    @Override
+    public TreeDirectory getSubDirectory(String name) {
+        int child = findDirectory(name);
+        return child < 0 ? null : new CompactTreeDirectory(layout, child);
+    }
+
+    private int findFile(String name) {
+        return find(layout.fileNames, layout.firstFile[directory], layout.fileCount[directory], name);
+    }
+
+    private int findDirectory(String name) {
+        return find(layout.directoryNames, layout.firstDirectory[directory], layout.directoryCount[directory], name);
+    }
+
+    private static int find(String[] names, int first, int count, Object name) {
+        if (!(name instanceof String key))
+            return -1;
+        int low = first;
+        int high = first + count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = names[middle].compareTo(key);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    /**
+     * The files of the directory, as a map that can't be changed
+     */
+    private class FileMap extends AbstractMap<String, Long> {
+        @Override
+        public int size() {
+            return layout.fileCount[directory];
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return find(layout.fileNames, layout.firstFile[directory], size(), key) >= 0;
+        }
+
+        @Override
+        public Long get(Object key) {
+            int file = find(layout.fileNames, layout.firstFile[directory], size(), key);
+            return file < 0 ? null : layout.modified[file];
+        }
+
+        @Override
+        public Set<Entry<String, Long>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public int size() {
+                    return FileMap.this.size();
+                }
+
+                @Override
+                public Iterator<Entry<String, Long>> iterator() {
+                    return new Iterator<>() {
+                        private int file = layout.firstFile[directory];
+                        private final int end = file + layout.fileCount[directory];
+
+                        @Override
+                        public boolean hasNext() {
+                            return file < end;
+                        }
+
+                        @Override
+                        public Entry<String, Long> next() {
+                            if (!hasNext())
+                                throw new NoSuchElementException();
+                            var entry = new SimpleImmutableEntry<>(layout.fileNames[file], layout.modified[file]);
+                            file++;
+                            return entry;
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * The subdirectories of the directory, as a map that can't be changed
+     */
+    private class DirectoryMap extends AbstractMap<String, TreeDirectory> {
+        @Override
+        public int size() {
+            return layout.directoryCount[directory];
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return find(layout.directoryNames, layout.firstDirectory[directory], size(), key) >= 0;
+        }
+
+        @Override
+        public TreeDirectory get(Object key) {
+            int child = find(layout.directoryNames, layout.firstDirectory[directory], size(), key);
+            return child < 0 ? null : new CompactTreeDirectory(layout, child);
+        }
+
+        @Override
+        public Set<Entry<String, TreeDirectory>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public int size() {
+                    return DirectoryMap.this.size();
+                }
+
+                @Override
+                public Iterator<Entry<String, TreeDirectory>> iterator() {
+                    return new Iterator<>() {
+                        private int child = layout.firstDirectory[directory];
+                        private final int end = child + layout.directoryCount[directory];
+
+                        @Override
+                        public boolean hasNext() {
+                            return child < end;
+                        }
+
+                        @Override
+                        public Entry<String, TreeDirectory> next() {
+                            if (!hasNext())
+                                throw new NoSuchElementException();
+                            var entry = new SimpleImmutableEntry<String, TreeDirectory>(
+                                    layout.directoryNames[child], new CompactTreeDirectory(layout, child));
+                            child++;
+                            return entry;
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * Builder class builds a compact tree while it is read, a directory at a time. The directories are given in
+     * depth-first order, every directory being ended after all its subdirectories, as they are written in JSON. Only
+     * the files of the directories that were started and not ended yet are kept in maps.
+     */
+    public static final class Builder {
+        /**
+         * A directory that was started and not ended yet
+         */
+        private static final class Open {
+            private final String name;
+            private final List<String> fileNames = new ArrayList<>();
+            private final List<Long> modified = new ArrayList<>();
+            private Map<String, VersionVector> versions;
+            private final List<Integer> children = new ArrayList<>();
+
+            private Open(String name) {
+                this.name = name;
+            }
+        }
+
+        private final Map<String, String> names = new HashMap<>();
+        private final Deque<Open> open = new ArrayDeque<>();
+
+        /*
+         * The ended directories in the order they were ended, with their subdirectories in the children array
+         */
+        private String[] directoryNames = new String[16];
+        private int[] firstChild = new int[16];
+        private int[] childCount = new int[16];
+        private int[] firstFile = new int[16];
+        private int[] fileCount = new int[16];
+        private int directories;
+        private int[] children = new int[16];
+        private int childrenSize;
+
+        private String[] fileNames = new String[16];
+        private long[] modified = new long[16];
+        private VersionVector[] versions;
+        private int files;
+
+        /**
+         * @param name The name of the directory, empty for the root
+         */
+        public void startDirectory(String name) {
+            open.push(new Open(share(name)));
+        }
+
+        public void addFile(String name, long modified) {
+            Open directory = current();
+            directory.fileNames.add(share(name));
+            directory.modified.add(modified);
+        }
+
+        public void setVersion(String name, VersionVector version) {
+            Open directory = current();
+            if (directory.versions == null)
+                directory.versions = new HashMap<>();
+            directory.versions.put(name, version);
+        }
+
+        public void endDirectory() {
+            Open directory = current();
+            open.pop();
+
+            Integer[] order = new Integer[directory.fileNames.size()];
+            for (int i = 0; i < order.length; i++)
+                order[i] = i;
+            Arrays.sort(order, Comparator.comparing(directory.fileNames::get));
+            int first = files;
+            for (int i : order) {
+                String name = directory.fileNames.get(i);
+                VersionVector version = directory.versions != null ? directory.versions.get(name) : null;
+                appendFile(name, directory.modified.get(i), version);
+            }
+
+            directory.children.sort(Comparator.comparing(child -> directoryNames[child]));
+            int index = appendDirectory(directory.name, first, files - first, directory.children);
+            if (!open.isEmpty())
+                open.peek().children.add(index);
+        }
+
+        /**
+         * @return The tree whose root is the last ended directory
+         * @throws IllegalStateException A directory was not ended, or no directory was given
+         */
+        public CompactTreeDirectory build() {
+            if (!open.isEmpty() || directories == 0)
+                throw new IllegalStateException("The tree is not complete");
+
+            // The directories are numbered again breadth-first, so the subdirectories of every directory are next
+            // to each other in the arrays of the layout
+            int[] order = new int[directories];
+            String[] layoutNames = new String[directories];
+            int[] layoutFirstDirectory = new int[directories];
+            int[] layoutDirectoryCount = new int[directories];
+            int[] layoutFirstFile = new int[directories];
+            int[] layoutFileCount = new int[directories];
+            order[0] = directories - 1;
+            int next = 1;
+            for (int i = 0; i < next; i++) {
+                int ended = order[i];
+                layoutNames[i] = directoryNames[ended];
+                layoutFirstFile[i] = firstFile[ended];
+                layoutFileCount[i] = fileCount[ended];
+                layoutFirstDirectory[i] = next;
+                layoutDirectoryCount[i] = childCount[ended];
+                for (int child = firstChild[ended]; child < firstChild[ended] + childCount[ended]; child++)
+                    order[next++] = children[child];
+            }
+
+            Layout layout = new Layout(layoutNames, layoutFirstDirectory, layoutDirectoryCount, layoutFirstFile,
+                    layoutFileCount, Arrays.copyOf(fileNames, files), Arrays.copyOf(modified, files),
+                    versions != null ? Arrays.copyOf(versions, files) : null);
+            return new CompactTreeDirectory(layout, 0);
+        }
+
+        private Open current() {
+            Open directory = open.peek();
+            if (directory == null)
+                throw new IllegalStateException("No directory was started");
+            return directory;
+        }
+
+        private String share(String name) {
+            String shared = names.putIfAbsent(name, name);
+            return shared != null ? shared : name;
+        }
+
+        private void appendFile(String name, long modifiedTime, VersionVector version) {
+            if (files == fileNames.length) {
+                fileNames = Arrays.copyOf(fileNames, files * 2);
+                modified = Arrays.copyOf(modified, files * 2);
+                if (versions != null)
+                    versions = Arrays.copyOf(versions, files * 2);
+            }
+            if (version != null && versions == null)
+                versions = new VersionVector[fileNames.length];
+            fileNames[files] = name;
+            modified[files] = modifiedTime;
+            if (versions != null)
+                versions[files] = version;
+            files++;
+        }
+
+        private int appendDirectory(String name, int first, int count, List<Integer> subdirectories) {
+            if (directories == directoryNames.length) {
+                directoryNames = Arrays.copyOf(directoryNames, directories * 2);
+                firstChild = Arrays.copyOf(firstChild, directories * 2);
+                childCount = Arrays.copyOf(childCount, directories * 2);
+                firstFile = Arrays.copyOf(firstFile, directories * 2);
+                fileCount = Arrays.copyOf(fileCount, directories * 2);
+            }
+            while (childrenSize + subdirectories.size() > children.length)
+                children = Arrays.copyOf(children, children.length * 2);
+
+            directoryNames[directories] = name;
+            firstFile[directories] = first;
+            fileCount[directories] = count;
+            firstChild[directories] = childrenSize;
+            childCount[directories] = subdirectories.size();
+            for (int child : subdirectories)
+                children[childrenSize++] = child;
+            return directories++;
+        }
+    }
+}
@@ -1,16 +1,69 @@
 package george.resident.tree;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import george.resident.swarm.Manifest;
 import george.resident.tree.actions.TreeActionsEnum;
 
-import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 
+/**
+ * The fields are written in the order they are declared, so the root, which may hold millions of files, is declared
+ * last and a reader knows the action before it reaches the root.
+ */
 public class FileSystemTree{
-    protected TreeDirectory root;
+    /**
+     * Gson builds its type adapters when it is created, so a single instance is shared by all the trees. The
+     * directories are read as a {@link CompactTreeDirectory}.
+     */
+    /*default*/ static final Gson gson = new GsonBuilder()
+            .registerTypeHierarchyAdapter(TreeDirectory.class, new TreeDirectoryAdapter())
+            .create();
+    private static final Type integers = new TypeToken<List<Integer>>() {}.getType();
+    private static final Type strings = new TypeToken<List<String>>() {}.getType();
+
     protected TreeActionsEnum action;
     protected String path;
+    protected String sessionId;
+    /**
+     * The manifest of the file at the path, sent in the answer to a "Manifest" action
+     */
+    protected Manifest manifest;
+    /**
+     * The indices of the chunks asked for by a "Chunks" action
+     */
+    protected List<Integer> chunks;
+    /**
+     * The IDs of the devices to which a "Chain" action is forwarded, in order
+     */
+    protected List<String> chain;
+    /**
+     * The session of the tree of which this tree is a {@link TreeDelta}, or null if the tree is whole. In an "Ack",
+     * the session whose tree the receiver kept, so the next trees sent to it can be deltas of that tree.
+     */
+    protected String base;
+    /**
+     * The paths removed since the base tree, see {@link TreeDelta#removed()}
+     */
+    protected List<String> removed;
+    protected TreeDirectory root;
+    /**
+     * The action file from which the root is read by {@link TreeStream}, or null if the root was read with the rest
+     * of the tree
+     */
+    private transient Path source;
 
     public FileSystemTree(TreeDirectory root, TreeActionsEnum action) {
         this.root = root;
@@ -26,16 +79,124 @@ public class FileSystemTree{
         this.path = path.toString();
     }
 
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public Manifest getManifest() {
+        return manifest;
+    }
+
+    public void setManifest(Manifest manifest) {
+        this.manifest = manifest;
+    }
+
+    public List<Integer> getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(List<Integer> chunks) {
+        this.chunks = chunks;
+    }
+
+    public List<String> getChain() {
+        return chain;
+    }
+
+    public void setChain(List<String> chain) {
+        this.chain = chain;
+    }
+
+    public String getBase() {
+        return base;
+    }
+
+    public void setBase(String base) {
+        this.base = base;
+    }
+
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(List<String> removed) {
+        this.removed = removed;
+    }
+
     public TreeActionsEnum getAction() {
         return action;
     }
 
+    /**
+     * @return The root of the tree, or null if it is streamed from the {@link #getSource() source}
+     */
     public TreeDirectory getRoot() {
         return root;
     }
 
-    public void toJSON(FileWriter writer){
-        Gson gson = new Gson();
+    public Path getSource() {
+        return source;
+    }
+
+    public void toJSON(Writer writer){
         gson.toJson(this, writer);
     }
+
+    /**
+     * Method that reads a tree written by {@link #toJSON(Writer)}
+     * @param reader The reader from which the JSON is read
+     * @return The tree
+     */
+    public static FileSystemTree fromJSON(Reader reader){
+        return gson.fromJson(reader, FileSystemTree.class);
+    }
+
+    /**
+     * Method that reads the tree of an action file. The root of a "Fetch" action is not read, unless it is a delta:
+     * its deal streams it from the file with a {@link TreeStream}, comparing every directory as soon as it is read, so
+     * the file is kept until the deal deletes it.
+     * @param file The action file
+     * @return The tree, with the action file as its source if its root was not read
+     * @throws IOException The file can't be read
+     */
+    public static FileSystemTree fromJSON(Path file) throws IOException {
+        // Gson buffers the characters itself, another buffer would only be copied
+        try (JsonReader reader = new JsonReader(
+                new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8))) {
+            FileSystemTree tree = new FileSystemTree(null, null);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "action" -> tree.action = gson.fromJson(reader, TreeActionsEnum.class);
+                    case "path" -> tree.path = reader.nextString();
+                    case "sessionId" -> tree.sessionId = reader.nextString();
+                    case "manifest" -> tree.manifest = gson.fromJson(reader, Manifest.class);
+                    case "chunks" -> tree.chunks = gson.fromJson(reader, integers);
+                    case "chain" -> tree.chain = gson.fromJson(reader, strings);
+                    case "base" -> tree.base = reader.nextString();
+                    case "removed" -> tree.removed = gson.fromJson(reader, strings);
+                    case "root" -> {
+                        // A delta is applied to the base tree, so it is read whole
+                        if (tree.action == TreeActionsEnum.Fetch && tree.base == null) {
+                            tree.source = file;
+                            return tree;
+                        }
+                        tree.root = gson.fromJson(reader, TreeDirectory.class);
+                    }
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return tree;
+        }
+    }
 }
\ No newline at end of file
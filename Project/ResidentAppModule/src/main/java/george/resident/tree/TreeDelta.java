@@ -0,0 +1,129 @@
+package george.resident.tree;
+
+import george.resident.versions.VersionVector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * TreeDelta class holds the differences between two trees of the same directory, so a device can send the changes
+ * of its tree to a peer that already has the previous one. The changed tree holds the files that were added or whose
+ * modification time or version changed, and the directories on their path. A new directory is there with all its
+ * files. The removed paths are relative to the root and use '/' between the names, the path of a removed directory
+ * ends with '/'.
+ *
+ * @param changed The added and changed files, with the directories on their path
+ * @param removed The paths of the removed files and directories
+ */
+public record TreeDelta(TreeDirectory changed, List<String> removed) {
+
+    /**
+     * The method finds the differences between two trees
+     * @param base The previous tree
+     * @param tree The current tree
+     * @return The differences that make the current tree out of the previous one
+     */
+    public static TreeDelta between(TreeDirectory base, TreeDirectory tree) {
+        TreeDelta delta = new TreeDelta(new TreeDirectory(), new ArrayList<>());
+        delta.compare(base, tree, "", delta.changed);
+        return delta;
+    }
+
+    private void compare(TreeDirectory base, TreeDirectory tree, String prefix, TreeDirectory changed) {
+        for (Map.Entry<String, Long> file : tree.getFiles().entrySet()) {
+            String name = file.getKey();
+            VersionVector version = tree.getVersion(name);
+            if (file.getValue().equals(base.getModified(name)) && Objects.equals(version, base.getVersion(name)))
+                continue;
+            changed.addFile(name, file.getValue());
+            if (version != null)
+                changed.setVersion(name, version);
+        }
+        for (String name : base.getFiles().keySet())
+            if (!tree.containsFile(name))
+                removed.add(prefix + name);
+
+        for (Map.Entry<String, TreeDirectory> directory : tree.getDirectories().entrySet()) {
+            String name = directory.getKey();
+            if (!base.containsDirectory(name)) {
+                changed.addDirectory(name, directory.getValue());
+                continue;
+            }
+            TreeDirectory changedDirectory = new TreeDirectory();
+            compare(base.getSubDirectory(name), directory.getValue(), prefix + name + '/', changedDirectory);
+            if (!changedDirectory.isEmpty())
+                changed.addDirectory(name, changedDirectory);
+        }
+        for (String name : base.getDirectories().keySet())
+            if (!tree.containsDirectory(name))
+                removed.add(prefix + name + '/');
+    }
+
+    /**
+     * The method makes the current tree out of the previous one. The previous tree is not changed.
+     * @param base The previous tree
+     * @return The current tree
+     */
+    public TreeDirectory applyTo(TreeDirectory base) {
+        TreeDirectory tree = copy(base);
+
+        for (String path : removed) {
+            boolean directory = path.endsWith("/");
+            String[] names = (directory ? path.substring(0, path.length() - 1) : path).split("/");
+            TreeDirectory parent = tree;
+            for (int i = 0; i < names.length - 1 && parent != null; i++)
+                parent = parent.getSubDirectory(names[i]);
+            if (parent == null)
+                continue;
+
+            String name = names[names.length - 1];
+            if (directory) {
+                parent.getDirectories().remove(name);
+            } else {
+                parent.getFiles().remove(name);
+                if (parent.getVersions() != null)
+                    parent.getVersions().remove(name);
+            }
+        }
+
+        merge(tree, changed);
+        return tree;
+    }
+
+    private static void merge(TreeDirectory tree, TreeDirectory changed) {
+        for (Map.Entry<String, Long> file : changed.getFiles().entrySet()) {
+            String name = file.getKey();
+            tree.addFile(name, file.getValue());
+            VersionVector version = changed.getVersion(name);
+            if (version != null)
+                tree.setVersion(name, version);
+            else if (tree.getVersions() != null)
+                tree.getVersions().remove(name);
+        }
+        for (Map.Entry<String, TreeDirectory> directory : changed.getDirectories().entrySet()) {
+            TreeDirectory subDirectory = tree.getSubDirectory(directory.getKey());
+            if (subDirectory == null) {
+                subDirectory = new TreeDirectory();
+                tree.addDirectory(directory.getKey(), subDirectory);
+            }
+            merge(subDirectory, directory.getValue());
+        }
+    }
+
+    /**
+     * @return A tree with the same files and versions that can be changed, the received trees being read-only
+     */
+    private static TreeDirectory copy(TreeDirectory directory) {
+        TreeDirectory copy = new TreeDirectory();
+        for (Map.Entry<String, Long> file : directory.getFiles().entrySet()) {
+            copy.addFile(file.getKey(), file.getValue());
+            VersionVector version = directory.getVersion(file.getKey());
+            if (version != null)
+                copy.setVersion(file.getKey(), version);
+        }
+        directory.getDirectories().forEach((name, subDirectory) -> copy.addDirectory(name, copy(subDirectory)));
+        return copy;
+    }
+}
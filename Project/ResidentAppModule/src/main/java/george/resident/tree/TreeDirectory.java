@@ -1,10 +1,18 @@
 package george.resident.tree;
 
+import george.resident.versions.VersionVector;
+
+import java.nio.file.Path;
 import java.util.*;
 
 public class TreeDirectory {
     private final Map<String, TreeDirectory> directories = new HashMap<>();
     private final Map<String, Long> files = new HashMap<>();
+    /**
+     * The versions of the files, created only when the first version is added, so the trees of devices that don't
+     * keep versions stay the same
+     */
+    private Map<String, VersionVector> versions;
 
     public void addDirectory(String name, TreeDirectory directory){
         directories.put(name, directory);
@@ -14,6 +22,51 @@ public class TreeDirectory {
         files.put(name, modified);
     }
 
+    /**
+     * Adds a file of a subdirectory, creating the directories on its path
+     * @param relativePath The path of the file, relative to this directory
+     * @param modified The modification time of the file
+     * @param version The version of the file, or null if it is not known
+     */
+    public void addFile(Path relativePath, long modified, VersionVector version){
+        TreeDirectory directory = this;
+        Path parent = relativePath.getParent();
+
+        if (parent != null)
+            for (Path name : parent)
+                directory = directory.directories.computeIfAbsent(name.toString(), key -> new TreeDirectory());
+
+        String fileName = relativePath.getFileName() == null ? "" : relativePath.getFileName().toString();
+        directory.addFile(fileName, modified);
+        if (version != null)
+            directory.setVersion(fileName, version);
+    }
+
+    public void setVersion(String name, VersionVector version){
+        if (versions == null)
+            versions = new HashMap<>();
+        versions.put(name, version);
+    }
+
+    /**
+     * @param name The name of a file
+     * @return The version of the file, or null if the device that built the tree doesn't keep versions
+     */
+    public VersionVector getVersion(String name){
+        return versions == null ? null : versions.get(name);
+    }
+
+    /**
+     * @return The versions of the files by their names, or null if no file has a version
+     */
+    /*default*/ Map<String, VersionVector> getVersions(){
+        return versions;
+    }
+
+    public boolean isEmpty(){
+        return files.isEmpty() && directories.isEmpty();
+    }
+
     public Long getModified(String name){
         return files.get(name);
     }
@@ -0,0 +1,99 @@
+package george.resident.tree;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import george.resident.versions.VersionVector;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * TreeDirectoryAdapter class writes the trees in the same JSON as the fields of {@link TreeDirectory} and reads them
+ * straight into a {@link CompactTreeDirectory}, so a received tree is never held as maps. The subdirectories of a
+ * directory are written before its files, which {@link TreeStream} relies on.
+ */
+/*default*/ class TreeDirectoryAdapter extends TypeAdapter<TreeDirectory> {
+    private static final TypeAdapter<VersionVector> versionAdapter = new Gson().getAdapter(VersionVector.class);
+
+    @Override
+    public void write(JsonWriter out, TreeDirectory tree) throws IOException {
+        if (tree == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+        out.name("directories").beginObject();
+        for (Map.Entry<String, TreeDirectory> directory : tree.getDirectories().entrySet()) {
+            out.name(directory.getKey());
+            write(out, directory.getValue());
+        }
+        out.endObject();
+
+        out.name("files").beginObject();
+        for (Map.Entry<String, Long> file : tree.getFiles().entrySet())
+            out.name(file.getKey()).value(file.getValue());
+        out.endObject();
+
+        Map<String, VersionVector> versions = tree.getVersions();
+        if (versions != null) {
+            out.name("versions").beginObject();
+            for (Map.Entry<String, VersionVector> version : versions.entrySet()) {
+                out.name(version.getKey());
+                versionAdapter.write(out, version.getValue());
+            }
+            out.endObject();
+        }
+        out.endObject();
+    }
+
+    @Override
+    public TreeDirectory read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        CompactTreeDirectory.Builder builder = new CompactTreeDirectory.Builder();
+        read(in, "", builder);
+        return builder.build();
+    }
+
+    private static void read(JsonReader in, String name, CompactTreeDirectory.Builder builder) throws IOException {
+        builder.startDirectory(name);
+        in.beginObject();
+        while (in.hasNext()) {
+            String field = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (field) {
+                case "directories" -> {
+                    in.beginObject();
+                    while (in.hasNext())
+                        read(in, in.nextName(), builder);
+                    in.endObject();
+                }
+                case "files" -> {
+                    in.beginObject();
+                    while (in.hasNext())
+                        builder.addFile(in.nextName(), in.nextLong());
+                    in.endObject();
+                }
+                case "versions" -> {
+                    in.beginObject();
+                    while (in.hasNext())
+                        builder.setVersion(in.nextName(), versionAdapter.read(in));
+                    in.endObject();
+                }
+                default -> in.skipValue();
+            }
+        }
+        in.endObject();
+        builder.endDirectory();
+    }
+}
@@ -0,0 +1,407 @@
+package george.resident.tree;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * TreeSnapshot class keeps the tree of a synchronized directory in a sorted file of the .peer folder. The file is
+ * mapped in memory and read where it is, so opening it takes the same time whatever the number of files, and it
+ * doesn't use the heap. Every entry holds the path of a file or a directory, relative to the synchronized directory,
+ * with its size, its modification time and the fingerprint of its version. The path of a directory ends with '/', so
+ * the entries are sorted in the order of a depth-first walk and all the entries under a directory follow it.
+ * An entry keeps only the bytes of its path that differ from the previous path, except every
+ * {@link #RESTART_INTERVAL}th entry, which keeps its whole path. An entry is found by a binary search of these whole
+ * paths and a short scan after the closest one.
+ * A snapshot is only as new as the scan that wrote it. A directory whose modification time didn't change since then
+ * still has the same entries, since adding, removing or renaming an entry changes it, but its files must be read again
+ * to know their attributes.
+ */
+public class TreeSnapshot {
+    /**
+     * The number of entries after which an entry keeps its whole path
+     */
+    public static final int RESTART_INTERVAL = 16;
+    private static final int MAGIC = 0x50325054;
+    private static final int FORMAT = 1;
+    /**
+     * The restart table offset, the number of restarts, the number of entries, the format and the magic number
+     */
+    private static final int FOOTER_SIZE = 5 * Integer.BYTES;
+    private static final int ATTRIBUTES_SIZE = 3 * Long.BYTES;
+    /**
+     * The time in milliseconds, the coarsest precision of the modification times of the file systems, before the
+     * snapshot was written in which a directory may have changed without changing its modification time
+     */
+    private static final long RACY_WINDOW = 2_000;
+
+    /**
+     * An entry of the snapshot
+     *
+     * @param name The name of the file or directory
+     * @param directory Whether the entry is a directory
+     * @param size The size of the file, 0 for a directory
+     * @param modified The modification time in milliseconds
+     * @param version The fingerprint of the version of the file, 0 for a directory or a file without a version
+     */
+    public record Entry(String name, boolean directory, long size, long modified, long version) {
+    }
+
+    private final MappedByteBuffer buffer;
+    private final int restartTable;
+    private final int restarts;
+    private final int entries;
+    /**
+     * The modification time of the snapshot file, in milliseconds
+     */
+    private final long written;
+
+    private TreeSnapshot(MappedByteBuffer buffer, int restartTable, int restarts, int entries, long written) {
+        this.buffer = buffer;
+        this.restartTable = restartTable;
+        this.restarts = restarts;
+        this.entries = entries;
+        this.written = written;
+    }
+
+    /**
+     * Method that maps a snapshot in memory. Only its footer is read.
+     * @param file The snapshot file
+     * @return The snapshot
+     * @throws IOException The file can't be read or is not a snapshot
+     */
+    public static TreeSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < FOOTER_SIZE || length > Integer.MAX_VALUE)
+                throw new IOException(file + " is not a tree snapshot");
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int footer = (int) length - FOOTER_SIZE;
+            int restartTable = buffer.getInt(footer);
+            int restarts = buffer.getInt(footer + 4);
+            int entries = buffer.getInt(footer + 8);
+            if (buffer.getInt(footer + 16) != MAGIC || buffer.getInt(footer + 12) != FORMAT
+                    || restartTable < 0 || restartTable + (long) restarts * Integer.BYTES != footer)
+                throw new IOException(file + " is not a tree snapshot");
+            return new TreeSnapshot(buffer, restartTable, restarts, entries,
+                    Files.getLastModifiedTime(file).toMillis());
+        }
+    }
+
+    /**
+     * @return The number of files and directories in the snapshot
+     */
+    public int size() {
+        return entries;
+    }
+
+    /**
+     * The method finds a file of the snapshot
+     * @param relativePath The path of the file, relative to the synchronized directory
+     * @return The file, or null if it is not in the snapshot
+     */
+    public Entry getFile(Path relativePath) {
+        return get(relativePath, false);
+    }
+
+    /**
+     * The method finds a directory of the snapshot
+     * @param relativePath The path of the directory, relative to the synchronized directory
+     * @return The directory, or null if it is not in the snapshot
+     */
+    public Entry getDirectory(Path relativePath) {
+        return get(relativePath, true);
+    }
+
+    private Entry get(Path relativePath, boolean directory) {
+        byte[] key = key(relativePath, directory);
+        Cursor cursor = seek(key);
+        if (cursor == null || cursor.compareTo(key) != 0)
+            return null;
+        return cursor.entry(relativePath.getFileName() != null ? relativePath.getFileName().toString() : "");
+    }
+
+    /**
+     * The method lists a directory of the snapshot, if the directory didn't change since the snapshot was written
+     * @param relativePath The path of the directory, relative to the synchronized directory
+     * @param modified The modification time of the directory on the disk, in milliseconds
+     * @return The files and directories in the directory, sorted by name, or null if the directory is not in the
+     * snapshot, was modified, or was modified too shortly before the snapshot was written to know if it changed again
+     */
+    public List<Entry> listIfUnchanged(Path relativePath, long modified) {
+        byte[] prefix = key(relativePath, true);
+        Cursor cursor = seek(prefix);
+        if (cursor == null || cursor.compareTo(prefix) != 0 || cursor.modified != modified
+                || modified >= written - RACY_WINDOW)
+            return null;
+
+        List<Entry> children = new ArrayList<>();
+        while (cursor.next() && cursor.startsWith(prefix)) {
+            int slash = cursor.indexOf('/', prefix.length);
+            String name = new String(cursor.key, prefix.length,
+                    (slash < 0 ? cursor.length : slash) - prefix.length, StandardCharsets.UTF_8);
+            children.add(cursor.entry(name));
+            if (slash < 0)
+                continue;
+
+            // The entries under the subdirectory are skipped, they come before the key following its path
+            byte[] after = Arrays.copyOf(cursor.key, slash + 1);
+            after[slash]++;
+            cursor = seek(after);
+            if (cursor == null || !cursor.startsWith(prefix))
+                break;
+            cursor.back();
+        }
+        return children;
+    }
+
+    /**
+     * The method finds the first entry whose path is not before a key
+     * @return A cursor on the entry, or null if all the entries are before the key
+     */
+    private Cursor seek(byte[] key) {
+        int low = 0;
+        int high = restarts - 1;
+        int found = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (new Cursor(middle).compareRestart(key) <= 0) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        Cursor cursor = new Cursor(found);
+        while (cursor.next())
+            if (cursor.compareTo(key) >= 0)
+                return cursor;
+        return null;
+    }
+
+    /**
+     * @return The path of an entry, with '/' between the names and after the path of a directory, as UTF-8
+     */
+    private static byte[] key(Path relativePath, boolean directory) {
+        String path = relativePath.toString().replace(File.separatorChar, '/');
+        if (directory && !path.isEmpty())
+            path += '/';
+        return path.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The method compares two entries of the same directory in the order of the snapshot. It is used to walk a
+     * directory in the order in which a {@link Writer} takes the entries.
+     */
+    public static int compare(String name, boolean directory, String otherName, boolean otherDirectory) {
+        byte[] key = (directory ? name + '/' : name).getBytes(StandardCharsets.UTF_8);
+        byte[] otherKey = (otherDirectory ? otherName + '/' : otherName).getBytes(StandardCharsets.UTF_8);
+        return Arrays.compareUnsigned(key, otherKey);
+    }
+
+    /**
+     * A position in the entries, holding the entry read last
+     */
+    private final class Cursor {
+        private int position;
+        private byte[] key = new byte[64];
+        private int length;
+        private long size;
+        private long modified;
+        private long version;
+        /**
+         * The position of the entry read last, so it can be read again
+         */
+        private int previous = -1;
+
+        private Cursor(int restart) {
+            this.position = restarts == 0 ? restartTable : buffer.getInt(restartTable + restart * Integer.BYTES);
+        }
+
+        /**
+         * @return Whether an entry was read, false at the end of the entries
+         */
+        private boolean next() {
+            if (position >= restartTable)
+                return false;
+            previous = position;
+            int shared = readVarint();
+            int unshared = readVarint();
+            if (shared + unshared > key.length)
+                key = Arrays.copyOf(key, Math.max(key.length * 2, shared + unshared));
+            buffer.get(position, key, shared, unshared);
+            position += unshared;
+            length = shared + unshared;
+            size = buffer.getLong(position);
+            modified = buffer.getLong(position + 8);
+            version = buffer.getLong(position + 16);
+            position += ATTRIBUTES_SIZE;
+            return true;
+        }
+
+        /**
+         * The method makes the entry read last the next one again. The entry keeps its whole path in the key, so
+         * reading it again only overwrites the bytes it doesn't share.
+         */
+        private void back() {
+            position = previous;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get(position++);
+                value |= (b & 0x7f) << shift;
+                if (b >= 0)
+                    return value;
+            }
+        }
+
+        /**
+         * The method compares the whole path kept by the first entry of the restart with a key
+         */
+        private int compareRestart(byte[] other) {
+            readVarint();
+            int unshared = readVarint();
+            for (int i = 0; i < Math.min(unshared, other.length); i++) {
+                int comparison = Byte.compareUnsigned(buffer.get(position + i), other[i]);
+                if (comparison != 0)
+                    return comparison;
+            }
+            return Integer.compare(unshared, other.length);
+        }
+
+        private int compareTo(byte[] other) {
+            return Arrays.compareUnsigned(key, 0, length, other, 0, other.length);
+        }
+
+        private boolean startsWith(byte[] prefix) {
+            return length >= prefix.length && Arrays.equals(key, 0, prefix.length, prefix, 0, prefix.length);
+        }
+
+        private int indexOf(char character, int from) {
+            for (int i = from; i < length; i++)
+                if (key[i] == character)
+                    return i;
+            return -1;
+        }
+
+        private Entry entry(String name) {
+            boolean directory = length == 0 || key[length - 1] == '/';
+            return new Entry(name, directory, size, modified, version);
+        }
+    }
+
+    /**
+     * Writer class writes a snapshot in a temporary file, which replaces the snapshot only when it is complete. The
+     * entries must be given in the order of the snapshot: a directory before its entries, and the entries of a
+     * directory in the order of {@link #compare(String, boolean, String, boolean)}. The root directory is the
+     * first entry, with an empty path.
+     */
+    public static final class Writer implements Closeable {
+        private final Path file;
+        private final Path temp;
+        private final DataOutputStream out;
+        private int offset;
+        private int count;
+        private byte[] previous;
+        private int[] restartOffsets = new int[1024];
+        private int restartCount;
+        private boolean committed;
+
+        /**
+         * @param file The snapshot file to replace
+         * @throws IOException The temporary file can't be created
+         */
+        public Writer(Path file) throws IOException {
+            this.file = file;
+            this.temp = Files.createTempFile(file.getParent(), "snapshot", ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+        }
+
+        /**
+         * @param relativePath The path of the file or directory, relative to the synchronized directory
+         * @param directory Whether the entry is a directory
+         * @param size The size of the file
+         * @param modified The modification time in milliseconds
+         * @param version The fingerprint of the version of the file, or 0
+         * @throws IOException The entry can't be written
+         * @throws IllegalArgumentException The entry is not after the previous one
+         */
+        public void add(Path relativePath, boolean directory, long size, long modified, long version)
+                throws IOException {
+            byte[] key = key(relativePath, directory);
+            if (previous != null && Arrays.compareUnsigned(previous, key) >= 0)
+                throw new IllegalArgumentException(relativePath + " is not in the order of the snapshot");
+
+            int shared = 0;
+            if (count % RESTART_INTERVAL == 0) {
+                if (restartCount == restartOffsets.length)
+                    restartOffsets = Arrays.copyOf(restartOffsets, restartCount * 2);
+                restartOffsets[restartCount++] = offset;
+            } else {
+                int mismatch = Arrays.mismatch(previous, key);
+                shared = mismatch < 0 ? key.length : mismatch;
+            }
+
+            writeVarint(shared);
+            writeVarint(key.length - shared);
+            out.write(key, shared, key.length - shared);
+            out.writeLong(directory ? 0 : size);
+            out.writeLong(modified);
+            out.writeLong(directory ? 0 : version);
+            offset += key.length - shared + ATTRIBUTES_SIZE;
+            previous = key;
+            count++;
+        }
+
+        private void writeVarint(int value) throws IOException {
+            while ((value & ~0x7f) != 0) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+                offset++;
+            }
+            out.write(value);
+            offset++;
+        }
+
+        /**
+         * The method writes the end of the snapshot and replaces the previous snapshot with it
+         * @throws IOException The snapshot can't be written
+         */
+        public void commit() throws IOException {
+            int restartTable = offset;
+            for (int i = 0; i < restartCount; i++)
+                out.writeInt(restartOffsets[i]);
+            out.writeInt(restartTable);
+            out.writeInt(restartCount);
+            out.writeInt(count);
+            out.writeInt(FORMAT);
+            out.writeInt(MAGIC);
+            out.close();
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        /**
+         * The method deletes the temporary file of a snapshot that was not committed
+         */
+        @Override
+        public void close() throws IOException {
+            if (committed)
+                return;
+            out.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package george.resident.tree;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import george.resident.versions.VersionVector;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * TreeStream class reads the root of a tree from its action file token by token, without building the tree. Every
+ * directory is given to a {@link Visitor} as soon as it was read, with its files but without its subdirectories, so
+ * only the directories on the path of the current one are in memory and a tree of millions of files is compared while
+ * it is read. The subdirectories are written before the files of their directory, so a directory is visited after
+ * all its subdirectories.
+ */
+public final class TreeStream {
+    /**
+     * The comparison of the directories of a streamed tree
+     */
+    public interface Visitor {
+        /**
+         * @param relativePath The path of the directory, relative to the root of the tree
+         * @param files The files of the directory, with their versions
+         * @param directories The names of the subdirectories of the directory, which were already visited
+         */
+        void visit(Path relativePath, TreeDirectory files, Set<String> directories)
+                throws IOException, InterruptedException;
+    }
+
+    private TreeStream() {
+    }
+
+    /**
+     * The method reads the root of a tree written by {@link FileSystemTree#toJSON(java.io.Writer)} and visits all
+     * its directories
+     * @param file The action file
+     * @param visitor The visitor of the directories
+     * @throws IOException The file can't be read
+     * @throws InterruptedException The visitor was interrupted
+     */
+    public static void walk(Path file, Visitor visitor) throws IOException, InterruptedException {
+        try (JsonReader reader = new JsonReader(
+                new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("root") && reader.peek() != JsonToken.NULL) {
+                    readDirectory(reader, Paths.get(""), visitor);
+                    return;
+                }
+                reader.skipValue();
+            }
+        }
+    }
+
+    private static void readDirectory(JsonReader reader, Path relativePath, Visitor visitor)
+            throws IOException, InterruptedException {
+        TreeDirectory files = new TreeDirectory();
+        Set<String> directories = new HashSet<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "directories" -> {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String directory = reader.nextName();
+                        directories.add(directory);
+                        readDirectory(reader, relativePath.resolve(directory), visitor);
+                    }
+                    reader.endObject();
+                }
+                case "files" -> {
+                    reader.beginObject();
+                    while (reader.hasNext())
+                        files.addFile(reader.nextName(), reader.nextLong());
+                    reader.endObject();
+                }
+                case "versions" -> {
+                    reader.beginObject();
+                    while (reader.hasNext())
+                        files.setVersion(reader.nextName(),
+                                FileSystemTree.gson.fromJson(reader, VersionVector.class));
+                    reader.endObject();
+                }
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        visitor.visit(relativePath, files, directories);
+    }
+}
@@ -0,0 +1,79 @@
+package george.resident.tree.actions;
+
+import connectivity.connection.Connection;
+import connectivity.tracing.Phase;
+import connectivity.tracing.SessionTracer;
+import connectivity.tracing.Span;
+import george.resident.swarm.Manifest;
+import george.resident.tree.FileSystemTree;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * ChunkDeal class sends the chunks of a file that a device asked for during a swarm fetch. Every chunk is sent as a
+ * file of its own in the {@link #SWARM_DIRECTORY}, named after the session and the index of the chunk, so the device
+ * can check its hash and write it at its place.
+ */
+public class ChunkDeal implements TreeDeal {
+    /**
+     * The directory, relative to the synchronized directory, in which the chunks of a swarm fetch are received
+     */
+    public static final Path SWARM_DIRECTORY = Paths.get(".peer", "swarm");
+
+    private final Connection connection;
+    private final FileSystemTree request;
+    private final Path root;
+
+    /**
+     * @param connection The connection to the device fetching the file
+     * @param request The "Chunks" action, with the path of the file and the indices of the chunks
+     * @param root The synchronized directory
+     */
+    public ChunkDeal(Connection connection, FileSystemTree request, Path root) {
+        this.connection = connection;
+        this.request = request;
+        this.root = root;
+    }
+
+    /**
+     * @param sessionId The session of the swarm fetch
+     * @param chunk The index of the chunk
+     * @return The path of the chunk, relative to the synchronized directory
+     */
+    public static Path chunkPath(String sessionId, int chunk) {
+        return SWARM_DIRECTORY.resolve(sessionId).resolve(Integer.toString(chunk));
+    }
+
+    @SuppressWarnings("try")
+    @Override
+    public void deal() throws IOException {
+        Path file = root.resolve(request.getPath());
+
+        String detail = "chunks " + request.getPath();
+        try (Span ignored = SessionTracer.getInstance().start(Phase.PUSH, request.getSessionId(), detail);
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long modified = Files.getLastModifiedTime(file).toMillis();
+
+            for (int chunk : request.getChunks()) {
+                long offset = (long) chunk * Manifest.CHUNK_SIZE;
+                if (chunk < 0 || offset >= size)
+                    continue;
+
+                channel.position(offset);
+                connection.sendFile(
+                        chunkPath(request.getSessionId(), chunk).toString(),
+                        modified,
+                        Math.min(Manifest.CHUNK_SIZE, size - offset),
+                        Channels.newInputStream(channel)
+                );
+            }
+        }
+    }
+}
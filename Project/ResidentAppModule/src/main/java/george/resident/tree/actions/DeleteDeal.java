@@ -1,6 +1,9 @@
 package george.resident.tree.actions;
 
 import connectivity.connection.Connection;
+import connectivity.tracing.Phase;
+import connectivity.tracing.SessionTracer;
+import connectivity.tracing.Span;
 import george.resident.tree.TreeDirectory;
 import org.apache.commons.io.FileUtils;
 
@@ -22,9 +25,10 @@ public class DeleteDeal implements TreeDeal {
     private void deal(Path path, TreeDirectory theirTree) {
         var theirFiles = theirTree.getFiles();
         var theirDirectories = theirTree.getDirectories();
-        theirDirectories.remove(".peer");
+        // The received trees can't be changed, so ".peer" is skipped instead of removed
+        boolean peerDirectory = theirDirectories.containsKey(".peer");
 
-        if(theirFiles.size() == 0 && theirDirectories.size() == 0){
+        if(theirFiles.size() == 0 && theirDirectories.size() == (peerDirectory ? 1 : 0)){
             try {
                 FileUtils.deleteDirectory(path.toFile());
             } catch (Exception ignored){
@@ -44,14 +48,19 @@ public class DeleteDeal implements TreeDeal {
 
         for (Map.Entry<String, TreeDirectory> pair : theirDirectories.entrySet()){
             String nameNextDirectory = pair.getKey();
+            if (nameNextDirectory.equals(".peer"))
+                continue;
             Path newPath = path.resolve(nameNextDirectory);
             if(Files.exists(newPath))
                 deal(newPath, pair.getValue());
         }
     }
 
+    @SuppressWarnings("try")
     @Override
     public void deal() throws IOException {
-        deal(root, theirTree);
+        try (Span ignored = SessionTracer.getInstance().start(Phase.DELETE, root.toString())) {
+            deal(root, theirTree);
+        }
     }
 }
@@ -0,0 +1,71 @@
+package george.resident.tree.actions;
+
+import connectivity.metrics.Counter;
+import connectivity.metrics.Metrics;
+import george.resident.tree.TreeDirectory;
+import george.resident.versions.VersionIndex;
+import george.resident.versions.VersionVector;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * FileComparison class decides which of the two copies of a file has to be sent. The versions of the files are
+ * compared when both devices keep them, the modification times otherwise. Copies with the same modification time are
+ * the same file, so only their versions are merged. Copies changed on both devices are a conflict, which is counted
+ * in the "sync.conflicts" counter and left for the user to solve.
+ */
+final class FileComparison {
+    enum Decision {
+        SEND,
+        RECEIVE,
+        SKIP,
+        CONFLICT
+    }
+
+    private static final Counter conflicts = Metrics.getInstance().counter("sync.conflicts");
+
+    private FileComparison() {
+    }
+
+    /**
+     * @param index The index of our versions, or null if the versions are not kept
+     * @param path The path of our file, relative to the synchronized directory
+     * @param attributes The attributes of our file
+     * @param theirTree The directory of their tree in which their file is
+     * @param name The name of their file in the directory
+     * @return What to do with the file
+     */
+    static Decision compare(VersionIndex index, Path path, BasicFileAttributes attributes,
+                            TreeDirectory theirTree, String name) {
+        if (!theirTree.containsFile(name))
+            return Decision.SEND;
+
+        long ourModified = attributes.lastModifiedTime().toMillis();
+        long theirModified = theirTree.getModified(name);
+        VersionVector ours = index != null ? index.update(path, attributes) : null;
+        VersionVector theirs = theirTree.getVersion(name);
+
+        if (ours == null || theirs == null) {
+            if (ourModified > theirModified)
+                return Decision.SEND;
+            return ourModified < theirModified ? Decision.RECEIVE : Decision.SKIP;
+        }
+
+        if (ourModified == theirModified) {
+            index.merge(path, theirs);
+            return Decision.SKIP;
+        }
+
+        return switch (ours.compare(theirs)) {
+            case AFTER -> Decision.SEND;
+            case BEFORE -> Decision.RECEIVE;
+            case EQUAL -> Decision.SKIP;
+            case CONCURRENT -> {
+                conflicts.increment();
+                System.err.println("Conflict: " + path + " was changed on both devices " + ours + " " + theirs);
+                yield Decision.CONFLICT;
+            }
+        };
+    }
+}
@@ -0,0 +1,81 @@
+package george.resident.tree.actions;
+
+import connectivity.connection.Connection;
+import connectivity.tracing.Phase;
+import connectivity.tracing.SessionTracer;
+import connectivity.tracing.Span;
+import george.resident.transfers.Priority;
+import george.resident.transfers.TransferScheduler;
+import george.resident.tree.FileSystemTree;
+import george.resident.tree.TreeDirectory;
+import george.resident.versions.VersionIndex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+
+/**
+ * PullDeal class sends the files a device asked for after it compared our tree with its files. The files are not
+ * compared again, only the ones that don't exist anymore are skipped. The names come from the other device, so the
+ * paths that lead outside the synchronized directory or into the .peer directory are skipped too.
+ */
+public class PullDeal implements TreeDeal {
+    private final Connection connection;
+    private final TransferScheduler scheduler;
+    private final FileSystemTree wantedSystemTree;
+    private final Path root;
+    private final VersionIndex index;
+    private final TreeDirectory sent = new TreeDirectory();
+
+    /**
+     * @param connection The connection to the device that asked for the files
+     * @param scheduler The scheduler that sends the files
+     * @param wantedSystemTree The tree of the files the device asked for
+     * @param root The synchronized directory
+     * @param index The index of our versions, or null if the versions are not kept
+     */
+    public PullDeal(Connection connection, TransferScheduler scheduler, FileSystemTree wantedSystemTree, Path root,
+                    VersionIndex index) {
+        this.connection = connection;
+        this.scheduler = scheduler;
+        this.wantedSystemTree = wantedSystemTree;
+        this.root = root;
+        this.index = index;
+    }
+
+    private void deal(Path path, TreeDirectory wantedTree, PushPipeline pipeline) throws IOException, InterruptedException {
+        if (path.startsWith(".peer"))
+            return;
+
+        for (String fileName : wantedTree.getFiles().keySet())
+            offer(fileName.isEmpty() ? path : path.resolve(fileName), pipeline);
+
+        for (Map.Entry<String, TreeDirectory> directory : wantedTree.getDirectories().entrySet())
+            deal(path.resolve(directory.getKey()), directory.getValue(), pipeline);
+    }
+
+    private void offer(Path path, PushPipeline pipeline) throws IOException, InterruptedException {
+        Path normalizedRoot = root.toAbsolutePath().normalize();
+        Path resolved = normalizedRoot.resolve(path).normalize();
+        if (!resolved.startsWith(normalizedRoot) || normalizedRoot.relativize(resolved).startsWith(".peer")
+                || !Files.isRegularFile(resolved))
+            return;
+        pipeline.offer(normalizedRoot.relativize(resolved), Files.readAttributes(resolved, BasicFileAttributes.class));
+    }
+
+    @SuppressWarnings("try")
+    @Override
+    public void deal() throws IOException {
+        try (Span ignored = SessionTracer.getInstance().start(Phase.PUSH, wantedSystemTree.getPath().toString())) {
+            new PushPipeline(connection, scheduler, root, index, sent, wantedSystemTree.getSessionId(), Priority.SYNC)
+                    .run(pipeline -> deal(wantedSystemTree.getPath(), wantedSystemTree.getRoot(), pipeline));
+        }
+    }
+
+    @Override
+    public TreeDirectory getSentVersions() {
+        return sent;
+    }
+}
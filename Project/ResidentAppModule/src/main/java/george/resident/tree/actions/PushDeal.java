@@ -1,28 +1,80 @@
 package george.resident.tree.actions;
 
 import connectivity.connection.Connection;
+import connectivity.metrics.Counter;
+import connectivity.metrics.Metrics;
+import connectivity.tracing.Phase;
+import connectivity.tracing.SessionTracer;
+import connectivity.tracing.Span;
+import george.resident.transfers.Priority;
+import george.resident.transfers.TransferScheduler;
 import george.resident.tree.FileSystemTree;
 import george.resident.tree.TreeDirectory;
+import george.resident.tree.TreeSnapshot;
+import george.resident.tree.TreeStream;
 import george.resident.tree.WildcardTreeDirectory;
+import george.resident.versions.VersionIndex;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Set;
 
 /**
- *  PushDeal class helps to transfer data between two devices
+ *  PushDeal class helps to transfer data between two devices. The files are found and sent by a {@link PushPipeline},
+ *  so the directory is walked while the previous files are sent. A push answers a fetch, which a user is waiting
+ *  for, so its files are interactive transfers.
+ *  When the tree of the other device was not read, it is streamed from its action file: every directory of it is
+ *  compared as soon as it is read and its files are sent at once, and the action file is deleted at the end.
+ *  With a {@link TreeSnapshot} of our tree, a directory that didn't change since the last scan is not listed again:
+ *  its entries are taken from the snapshot and only its files are read from the disk.
  */
 public class PushDeal implements TreeDeal {
+    private static final Counter skippedFiles = Metrics.getInstance().counter("push.files.skipped");
+    private static final Counter snapshotListings = Metrics.getInstance().counter("push.snapshot.listings");
+
     private final Connection connection;
+    private final TransferScheduler scheduler;
     private final FileSystemTree theirSystemTree;
     private final Path root;
+    private final VersionIndex index;
+    private final TreeSnapshot snapshot;
+    private final TreeDirectory sent = new TreeDirectory();
 
     public PushDeal(Connection connection, FileSystemTree theirSystemTree, Path root) {
+        this(connection, theirSystemTree, root, null);
+    }
+
+    /**
+     * The files are sent by a scheduler of the deal, with the default limits
+     * @param connection The connection to the device that sent its tree
+     * @param theirSystemTree The tree of the device
+     * @param root The synchronized directory
+     * @param index The index of our versions, or null to compare only the modification times
+     */
+    public PushDeal(Connection connection, FileSystemTree theirSystemTree, Path root, VersionIndex index) {
+        this(connection, new TransferScheduler("push"), theirSystemTree, root, index, null);
+    }
+
+    /**
+     * @param connection The connection to the device that sent its tree
+     * @param scheduler The scheduler that sends the files
+     * @param theirSystemTree The tree of the device
+     * @param root The synchronized directory
+     * @param index The index of our versions, or null to compare only the modification times
+     * @param snapshot The snapshot of our tree, or null to list every directory
+     */
+    public PushDeal(Connection connection, TransferScheduler scheduler, FileSystemTree theirSystemTree, Path root,
+                    VersionIndex index, TreeSnapshot snapshot) {
         this.connection = connection;
+        this.scheduler = scheduler;
         this.theirSystemTree = theirSystemTree;
         this.root = root;
+        this.index = index;
+        this.snapshot = snapshot;
     }
 
       /**
@@ -32,15 +84,35 @@ public class PushDeal implements TreeDeal {
      * @param path From where the method start.
      * @param theirTree The tree that needs to be synchronized.
      * @param ourTree The tree from where the synchronization is done.
-     * @throws IOException This exception is thrown when the connection between the two devices does not work.
+     * @param streamed The subdirectories of theirTree that are compared by themselves, because their tree is streamed.
+     * @param pipeline The pipeline to which the files that have to be sent are given.
+     * @throws IOException This exception is thrown when the files can not be read.
+     * @throws InterruptedException This exception is thrown when the pipeline was stopped.
      */
-    private void deal(Path path, TreeDirectory theirTree) throws IOException {
+    private void deal(Path path, TreeDirectory theirTree, Set<String> streamed, PushPipeline pipeline)
+            throws IOException, InterruptedException {
         if(path.startsWith(".peer"))
             return;
         Path absolutePath = root.resolve(path);
 
         File absoluteFile= absolutePath.toFile();
 
+        List<TreeSnapshot.Entry> listed = snapshot != null
+                ? snapshot.listIfUnchanged(path, absoluteFile.lastModified())
+                : null;
+        if (listed != null) {
+            snapshotListings.increment();
+            for (TreeSnapshot.Entry entry : listed) {
+                Path newPath = path.resolve(entry.name());
+                if (entry.directory())
+                    dealDirectory(newPath, entry.name(), theirTree, streamed, pipeline);
+                else
+                    dealFile(newPath, entry.name(),
+                            Files.readAttributes(root.resolve(newPath), BasicFileAttributes.class), theirTree, pipeline);
+            }
+            return;
+        }
+
         File[] children = absoluteFile.listFiles();
 
         if (children == null)
@@ -51,40 +123,90 @@ public class PushDeal implements TreeDeal {
             Path newPath = path.resolve(fileName);
             BasicFileAttributes basicFileAttributes = Files.readAttributes(root.resolve(newPath), BasicFileAttributes.class);
 
-            if (basicFileAttributes.isDirectory()) {
-                TreeDirectory theirNextTree = theirTree.containsDirectory(fileName)
-                        ? theirTree.getSubDirectory(fileName)
-                        : new WildcardTreeDirectory();
-
-                deal(newPath, theirNextTree);
-            } else {
-                if (theirTree.containsFile(fileName)
-                        && basicFileAttributes.lastModifiedTime().toMillis() <= theirTree.getModified(fileName))
-                    continue;
-                connection.sendFile(root, newPath);
-            }
+            if (basicFileAttributes.isDirectory())
+                dealDirectory(newPath, fileName, theirTree, streamed, pipeline);
+            else
+                dealFile(newPath, fileName, basicFileAttributes, theirTree, pipeline);
+        }
+    }
+
+    private void dealDirectory(Path newPath, String fileName, TreeDirectory theirTree, Set<String> streamed,
+                               PushPipeline pipeline) throws IOException, InterruptedException {
+        if (streamed.contains(fileName))
+            return;
+        TreeDirectory theirNextTree = theirTree.containsDirectory(fileName)
+                ? theirTree.getSubDirectory(fileName)
+                : new WildcardTreeDirectory();
+
+        deal(newPath, theirNextTree, Set.of(), pipeline);
+    }
+
+    private void dealFile(Path newPath, String fileName, BasicFileAttributes basicFileAttributes,
+                          TreeDirectory theirTree, PushPipeline pipeline) throws InterruptedException {
+        if (FileComparison.compare(index, newPath, basicFileAttributes, theirTree, fileName)
+                != FileComparison.Decision.SEND) {
+            skippedFiles.increment();
+            return;
         }
+        pipeline.offer(newPath, basicFileAttributes);
     }
 
+    @SuppressWarnings("try")
     @Override
     public void deal() throws IOException {
-        var theirTree = theirSystemTree.getRoot();
+        try (Span ignored = SessionTracer.getInstance().start(Phase.PUSH, theirSystemTree.getPath().toString())) {
+            new PushPipeline(connection, scheduler, root, index, sent, theirSystemTree.getSessionId(), Priority.INTERACTIVE)
+                    .run(theirSystemTree.getSource() != null ? this::streamTree : this::dealTree);
+        } finally {
+            if (theirSystemTree.getSource() != null)
+                Files.deleteIfExists(theirSystemTree.getSource());
+        }
+    }
 
+    private void dealTree(PushPipeline pipeline) throws IOException, InterruptedException {
+        dealRoot(theirSystemTree.getRoot(), Set.of(), pipeline);
+    }
+
+    /**
+     * The method compares every directory of their tree as soon as it is read from the action file. Their
+     * subdirectories were already compared, so only our files and our directories they don't have are left.
+     * @param pipeline The pipeline to which the files that have to be sent are given.
+     */
+    private void streamTree(PushPipeline pipeline) throws IOException, InterruptedException {
+        TreeStream.walk(theirSystemTree.getSource(), (relativePath, theirTree, directories) -> {
+            if (relativePath.toString().isEmpty())
+                dealRoot(theirTree, directories, pipeline);
+            else
+                deal(theirSystemTree.getPath().resolve(relativePath), theirTree, directories, pipeline);
+        });
+    }
+
+    private void dealRoot(TreeDirectory theirTree, Set<String> streamed, PushPipeline pipeline)
+            throws IOException, InterruptedException {
         if(theirTree.containsFile(""))
         {
             var absolutePath = root.resolve(theirSystemTree.getPath());
             try {
                 if(Files.isDirectory(absolutePath)){
                     theirTree = new WildcardTreeDirectory();
+                    streamed = Set.of();
                 }
-                else if (Files.getLastModifiedTime(absolutePath).toMillis() > theirTree.getModified("")){
-                    connection.sendFile(root, theirSystemTree.getPath());
+                else {
+                    var basicFileAttributes = Files.readAttributes(absolutePath, BasicFileAttributes.class);
+                    if (FileComparison.compare(index, theirSystemTree.getPath(), basicFileAttributes, theirTree, "")
+                            == FileComparison.Decision.SEND)
+                        pipeline.offer(theirSystemTree.getPath(), basicFileAttributes);
                     return;
                 }
-            } catch (Exception ignored) {
+            } catch (IOException ignored) {
                 return;
             }
         }
-        deal(theirSystemTree.getPath(), theirTree);
+        deal(theirSystemTree.getPath(), theirTree, streamed, pipeline);
+    }
+
+    @Override
+    public TreeDirectory getSentVersions() {
+        return sent;
     }
 }
\ No newline at end of file
@@ -0,0 +1,264 @@
+package george.resident.tree.actions;
+
+import connectivity.connection.Connection;
+import connectivity.metrics.Counter;
+import connectivity.metrics.Metrics;
+import connectivity.tracing.Phase;
+import connectivity.tracing.SessionTracer;
+import connectivity.tracing.Span;
+import george.resident.transfers.Priority;
+import george.resident.transfers.TransferScheduler;
+import george.resident.tree.TreeDirectory;
+import george.resident.versions.VersionIndex;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * PushPipeline class sends the files found by a deal in three stages, so the disk and the network are used at the
+ * same time:
+ * the producer walks the directory and decides which files have to be sent, on a thread of its own;
+ * the read-ahead reads the beginning of the next files, so they are in the page cache when they are sent;
+ * the sender, on the thread of the deal, gives the files to the {@link TransferScheduler}, which sends them through
+ * the connection in the order of their priority, and waits until they were all sent.
+ * The stages are connected by bounded queues, and the read-ahead keeps at most {@link #READ_AHEAD_BYTES} read and
+ * not sent yet, so a slow connection doesn't fill the memory. A file takes at most {@link #FILE_READ_AHEAD_BYTES} of
+ * it, so the scheduler always has several files of the deal to choose from, and every file, even an empty or a bulk
+ * one that is not read ahead, takes at least a page, which bounds the files given to the scheduler.
+ */
+class PushPipeline {
+    /**
+     * The stage that finds the files to send
+     */
+    interface Producer {
+        void produce(PushPipeline pipeline) throws IOException, InterruptedException;
+    }
+
+    private record Item(Path path, BasicFileAttributes attributes, int pages) {
+    }
+
+    private static final Item END = new Item(null, null, 0);
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int PAGE_SIZE = 4096;
+    static final int READ_AHEAD_BYTES = 8 * 1024 * 1024;
+    static final int FILE_READ_AHEAD_BYTES = READ_AHEAD_BYTES / 16;
+
+    private static final Counter pushedFiles = Metrics.getInstance().counter("push.files.sent");
+    private static final Counter readAheadBytes = Metrics.getInstance().counter("push.readahead.bytes");
+    private static final ExecutorService stages = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "push-pipeline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Connection connection;
+    private final TransferScheduler scheduler;
+    private final Path root;
+    private final VersionIndex index;
+    private final TreeDirectory sent;
+    private final String sessionId;
+    private final Priority priority;
+
+    private final BlockingQueue<Item> found = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<Item> ready = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Semaphore readAhead = new Semaphore(READ_AHEAD_BYTES / PAGE_SIZE);
+    /**
+     * Whether the sender stopped, so the other stages don't wait for room in the queues anymore
+     */
+    private volatile boolean stopped;
+    /**
+     * The exception that stopped the first file that couldn't be sent
+     */
+    private volatile Throwable failure;
+
+    /**
+     * @param connection The connection through which the files are sent
+     * @param scheduler The scheduler that sends the files
+     * @param root The synchronized directory
+     * @param index The index of our versions, or null if the versions are not kept
+     * @param sent The tree in which the versions of the sent files are added
+     * @param sessionId The session of the deal, used to trace the producer
+     * @param priority The priority class of the files of the deal
+     */
+    PushPipeline(Connection connection, TransferScheduler scheduler, Path root, VersionIndex index, TreeDirectory sent,
+                 String sessionId, Priority priority) {
+        this.connection = connection;
+        this.scheduler = scheduler;
+        this.root = root;
+        this.index = index;
+        this.sent = sent;
+        this.sessionId = sessionId;
+        this.priority = priority;
+    }
+
+    /**
+     * The method is called by the producer for every file that has to be sent. It blocks while the queue is full.
+     * @param path The path of the file, relative to the synchronized directory
+     * @param attributes The attributes of the file
+     * @throws InterruptedException This exception is thrown when the pipeline was stopped.
+     */
+    void offer(Path path, BasicFileAttributes attributes) throws InterruptedException {
+        found.put(new Item(path, attributes, 0));
+    }
+
+    /**
+     * The method runs the pipeline and returns when all the files were sent, or when one of the stages failed
+     * @param producer The stage that finds the files to send
+     * @throws IOException This exception is thrown when the files can not be read or the connection does not work.
+     */
+    @SuppressWarnings("try")
+    void run(Producer producer) throws IOException {
+        Future<?> producing = stages.submit(() -> {
+            try (Span ignored = SessionTracer.getInstance().start(Phase.SCAN, sessionId, "push")) {
+                producer.produce(this);
+                return null;
+            } finally {
+                if (!stopped)
+                    found.put(END);
+            }
+        });
+        Future<?> reading = stages.submit(() -> {
+            try {
+                readAhead();
+                return null;
+            } finally {
+                if (!stopped)
+                    ready.put(END);
+            }
+        });
+
+        try {
+            send();
+            producing.get();
+            reading.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Push interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException)
+                throw ioException;
+            throw new IOException(e.getCause());
+        } finally {
+            stopped = true;
+            producing.cancel(true);
+            reading.cancel(true);
+        }
+    }
+
+    /**
+     * The method describes what the read-ahead stage does: the beginning of every file found by the producer is read
+     * into a buffer that is thrown away, so the sender finds it in the page cache
+     */
+    private void readAhead() throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        int budget = READ_AHEAD_BYTES / PAGE_SIZE;
+
+        while (true) {
+            Item item = found.take();
+            if (item == END)
+                return;
+
+            long size = item.attributes().size() >= TransferScheduler.BULK_SIZE
+                    ? 0
+                    : Math.min(item.attributes().size(), FILE_READ_AHEAD_BYTES);
+            int pages = (int) Math.max(1, Math.min(budget, (size + PAGE_SIZE - 1) / PAGE_SIZE));
+            readAhead.acquire(pages);
+
+            try (FileChannel channel = FileChannel.open(root.resolve(item.path()), StandardOpenOption.READ)) {
+                long read = 0;
+                while (read < size) {
+                    buffer.clear();
+                    int count = channel.read(buffer);
+                    if (count < 0)
+                        break;
+                    read += count;
+                }
+                readAheadBytes.add(read);
+            } catch (IOException ignored) {
+                // The sender reports the file if it still can't be read
+            }
+
+            ready.put(new Item(item.path(), item.attributes(), pages));
+        }
+    }
+
+    /**
+     * The method describes what the sender stage does: every file is given to the scheduler as soon as it was read
+     * ahead, and the stage returns after all of them were sent. The first file that fails stops the stage.
+     */
+    private void send() throws IOException, InterruptedException {
+        List<CompletableFuture<Void>> transfers = new ArrayList<>();
+        // Completed after the callback of their transfer ran, so the sent versions are all kept when they are done
+        List<CompletableFuture<Void>> callbacks = new ArrayList<>();
+
+        try {
+            while (failure == null) {
+                Item item = ready.take();
+                if (item == END)
+                    break;
+
+                CompletableFuture<Void> transfer = scheduler.submit(
+                        connection, root, item.path(), item.attributes(), priority, sessionId);
+                CompletableFuture<Void> callback = transfer.whenComplete((ignored, error) -> {
+                    readAhead.release(item.pages());
+                    if (error == null)
+                        sent(item);
+                    else if (failure == null)
+                        failure = error;
+                });
+
+                if (transfers.size() >= QUEUE_CAPACITY) {
+                    transfers.removeIf(CompletableFuture::isDone);
+                    callbacks.removeIf(CompletableFuture::isDone);
+                }
+                transfers.add(transfer);
+                callbacks.add(callback);
+            }
+
+            for (CompletableFuture<Void> callback : callbacks) {
+                try {
+                    callback.get();
+                } catch (ExecutionException ignored) {
+                    // Kept in failure
+                }
+            }
+        } finally {
+            transfers.forEach(transfer -> transfer.cancel(false));
+        }
+
+        if (failure instanceof IOException ioException)
+            throw ioException;
+        if (failure != null)
+            throw new IOException(failure);
+    }
+
+    /**
+     * The method is called on the thread of the scheduler that sent a file
+     * @param item The sent file
+     */
+    private void sent(Item item) {
+        pushedFiles.increment();
+        if (index == null)
+            return;
+
+        var version = index.update(item.path(), item.attributes());
+        synchronized (sent) {
+            sent.addFile(item.path(), item.attributes().lastModifiedTime().toMillis(), version);
+        }
+    }
+}
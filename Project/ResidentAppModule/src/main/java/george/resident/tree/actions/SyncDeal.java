@@ -0,0 +1,180 @@
+package george.resident.tree.actions;
+
+import connectivity.connection.Connection;
+import connectivity.metrics.Counter;
+import connectivity.metrics.Metrics;
+import connectivity.tracing.Phase;
+import connectivity.tracing.SessionTracer;
+import connectivity.tracing.Span;
+import george.resident.transfers.Priority;
+import george.resident.transfers.TransferScheduler;
+import george.resident.tree.FileSystemTree;
+import george.resident.tree.TreeDirectory;
+import george.resident.tree.WildcardTreeDirectory;
+import george.resident.versions.VersionIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SyncDeal class compares the tree of a device that asked for a sync with our files in a single pass, finding both
+ * the files we have to send and the files we have to receive. The files we have to receive are sent back as the tree
+ * of a {@link TreeActionsEnum#Pull} action, so the other device doesn't have to build and send its tree again.
+ */
+public class SyncDeal implements TreeDeal {
+    private static final Counter skippedFiles = Metrics.getInstance().counter("push.files.skipped");
+
+    private final Connection connection;
+    private final TransferScheduler scheduler;
+    private final FileSystemTree theirSystemTree;
+    private final Path root;
+    private final VersionIndex index;
+    private final TreeDirectory sent = new TreeDirectory();
+    /**
+     * The files newer or missing on the other device, relative to the synchronized directory
+     */
+    private final List<Path> pushed = new ArrayList<>();
+    /**
+     * The files newer or missing on our device, with the modification time of our copy, or 0 if there is none
+     */
+    private final TreeDirectory wanted = new TreeDirectory();
+    private boolean compared;
+
+    /**
+     * @param connection The connection to the device that asked for the sync
+     * @param scheduler The scheduler that sends the files
+     * @param theirSystemTree The tree of the device
+     * @param root The synchronized directory
+     * @param index The index of our versions, or null to compare only the modification times
+     */
+    public SyncDeal(Connection connection, TransferScheduler scheduler, FileSystemTree theirSystemTree, Path root,
+                    VersionIndex index) {
+        this.connection = connection;
+        this.scheduler = scheduler;
+        this.theirSystemTree = theirSystemTree;
+        this.root = root;
+        this.index = index;
+    }
+
+    /**
+     * The method compares their tree with our files, once, and returns the files we have to receive
+     * @return The tree of the files newer or missing on our device
+     * @throws IOException This exception is thrown when our files can not be read.
+     */
+    @SuppressWarnings("try")
+    public TreeDirectory compare() throws IOException {
+        if (compared)
+            return wanted;
+        compared = true;
+
+        try (Span ignored = SessionTracer.getInstance().start(Phase.PUSH, theirSystemTree.getPath().toString())) {
+            var theirTree = theirSystemTree.getRoot();
+            Path path = theirSystemTree.getPath();
+
+            if (theirTree.containsFile("")) {
+                Path absolutePath = root.resolve(path);
+
+                if (Files.isDirectory(absolutePath)) {
+                    compare(path, new WildcardTreeDirectory(), new TreeDirectory());
+                    return wanted;
+                }
+
+                if (!Files.exists(absolutePath)) {
+                    if (theirTree.getModified("") > 0)
+                        wanted.addFile("", 0);
+                    return wanted;
+                }
+
+                compareFile(path, Files.readAttributes(absolutePath, BasicFileAttributes.class), theirTree, "", wanted);
+                return wanted;
+            }
+
+            compare(path, theirTree, wanted);
+            return wanted;
+        }
+    }
+
+    /**
+     * The method compares a directory of their tree with our directory at the same path
+     * @param path The path of the directory, relative to the synchronized directory
+     * @param theirTree Their directory
+     * @param wanted The directory in which the files we have to receive are added
+     * @throws IOException This exception is thrown when our files can not be read.
+     */
+    private void compare(Path path, TreeDirectory theirTree, TreeDirectory wanted) throws IOException {
+        if (path.startsWith(".peer"))
+            return;
+
+        File[] children = root.resolve(path).toFile().listFiles();
+        Set<String> ours = new HashSet<>();
+
+        if (children != null) {
+            for (File file : children) {
+                String fileName = file.getName();
+                Path newPath = path.resolve(fileName);
+                BasicFileAttributes basicFileAttributes = Files.readAttributes(root.resolve(newPath), BasicFileAttributes.class);
+                ours.add(fileName);
+
+                if (basicFileAttributes.isDirectory()) {
+                    if (!theirTree.containsDirectory(fileName)) {
+                        compare(newPath, new WildcardTreeDirectory(), new TreeDirectory());
+                        continue;
+                    }
+
+                    TreeDirectory wantedChild = new TreeDirectory();
+                    compare(newPath, theirTree.getSubDirectory(fileName), wantedChild);
+                    if (!wantedChild.isEmpty())
+                        wanted.addDirectory(fileName, wantedChild);
+                    continue;
+                }
+
+                compareFile(newPath, basicFileAttributes, theirTree, fileName, wanted);
+            }
+        }
+
+        for (Map.Entry<String, Long> file : theirTree.getFiles().entrySet())
+            if (!file.getKey().isEmpty() && !ours.contains(file.getKey()))
+                wanted.addFile(file.getKey(), 0);
+
+        for (Map.Entry<String, TreeDirectory> directory : theirTree.getDirectories().entrySet())
+            if (!ours.contains(directory.getKey()) && !path.resolve(directory.getKey()).startsWith(".peer"))
+                wanted.addDirectory(directory.getKey(), directory.getValue());
+    }
+
+    private void compareFile(Path path, BasicFileAttributes basicFileAttributes, TreeDirectory theirTree, String name,
+                             TreeDirectory wanted) {
+        switch (FileComparison.compare(index, path, basicFileAttributes, theirTree, name)) {
+            case SEND -> pushed.add(path);
+            case RECEIVE -> wanted.addFile(name, basicFileAttributes.lastModifiedTime().toMillis());
+            default -> skippedFiles.increment();
+        }
+    }
+
+    /**
+     * The method sends the files that are newer or missing on the other device through a {@link PushPipeline},
+     * comparing the trees first if they weren't compared yet
+     * @throws IOException This exception is thrown when the connection between the two devices does not work.
+     */
+    @Override
+    public void deal() throws IOException {
+        compare();
+
+        new PushPipeline(connection, scheduler, root, index, sent, theirSystemTree.getSessionId(), Priority.SYNC).run(pipeline -> {
+            for (Path path : pushed)
+                pipeline.offer(path, Files.readAttributes(root.resolve(path), BasicFileAttributes.class));
+        });
+    }
+
+    @Override
+    public TreeDirectory getSentVersions() {
+        return sent;
+    }
+}
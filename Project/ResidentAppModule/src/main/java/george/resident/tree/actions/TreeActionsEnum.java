@@ -2,11 +2,27 @@ package george.resident.tree.actions;
 
 /** Enum with possible types of actions:
  * The receiving device will compare it's own files to the ones of the sender, and then it will send all new(er) files from the specified location back to the device that sent the request.
- * The receiving device will initially treat this request as a "Fetch" request. After that, it will then send a similar "Fetch" request back to the initial sender.
+ * The receiving device will compare the files of both devices in a single pass, send back a "Pull" request with the files it needs, and send all new(er) files to the sender at the same time.
  * The receiving device will delete all files from a specified location.
+ * The receiving device will forget the action with the same session ID, which was completely handled by the sender.
+ * The receiving device will send the files listed in the request, which the sender found newer on the receiving device during a "Sync".
+ * The receiving device will keep the versions of the files it just received from the sender.
+ * The receiving device will send back the manifest of a file, or will keep it if the action is the answer.
+ * The receiving device will send the listed chunks of a file, during a swarm fetch of the sender.
+ * The receiving device will forward the files that the sender is about to send to the next device of the chain while it receives them, and answer once the chain is ready, or will start sending if the action is the answer.
+ * The receiving device will keep the versions of the files of a chain replication and tell the next device of the chain that all of them were sent.
+ * The receiving device will forget the tree it last sent to the sender and send its action again with the whole tree, because the sender doesn't have the tree the delta was based on.
  */
 public enum TreeActionsEnum {
     Sync,
     Fetch,
-    Delete
+    Delete,
+    Ack,
+    Pull,
+    Versions,
+    Manifest,
+    Chunks,
+    Chain,
+    ChainEnd,
+    FullTree
 }
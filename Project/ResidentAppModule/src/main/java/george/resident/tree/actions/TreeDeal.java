@@ -1,9 +1,18 @@
 package george.resident.tree.actions;
 
+import george.resident.tree.TreeDirectory;
+
 import java.io.IOException;
 
 public interface TreeDeal {
 
     //TODO: better exception
     void deal() throws IOException;
+
+    /**
+     * @return The versions of the files sent by the deal, by their path relative to the synchronized directory
+     */
+    default TreeDirectory getSentVersions() {
+        return new TreeDirectory();
+    }
 }
@@ -0,0 +1,214 @@
+package george.resident.versions;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * VersionIndex class keeps the version vector of every file of a synchronized directory in the .peer/index.json file.
+ * Next to the vector, the index keeps the modification time and the size of the file when its version was last
+ * known, so a local change is found by comparing them with the file on the disk. A file changed locally gets the
+ * counter of the current device incremented, a file received from a peer gets the vector of the peer.
+ * The entries of the files that a scan of the whole directory didn't see are dropped at the end of the scan, see
+ * {@link #beginScan()}, so the index doesn't keep the files that were deleted or moved.
+ */
+public class VersionIndex {
+    /**
+     * The version of a file
+     */
+    private static class Entry {
+        private VersionVector version;
+        private long modified;
+        private long size;
+
+        private Entry(VersionVector version, long modified, long size) {
+            this.version = version;
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+
+    private static final Gson gson = new Gson();
+
+    private final Path root;
+    private final Path indexPath;
+    private final String deviceId;
+    private final Map<String, Entry> entries;
+    private boolean changed;
+    /**
+     * The files seen since the first of the running scans of the whole directory began, null if none is running
+     */
+    private Set<String> seen;
+    private int scans;
+
+    /**
+     * The constructor reads the index of a synchronized directory, or starts an empty one if there is none
+     * @param root The synchronized directory
+     * @param deviceId The ID of the current device, the peer ID
+     * @throws IOException This exception is thrown when the index exists but can not be read.
+     */
+    public VersionIndex(Path root, String deviceId) throws IOException {
+        this.root = root;
+        this.indexPath = root.resolve(".peer").resolve("index.json");
+        this.deviceId = deviceId;
+
+        Map<String, Entry> saved = null;
+        try (Reader reader = Files.newBufferedReader(indexPath)) {
+            saved = gson.fromJson(reader, new TypeToken<Map<String, Entry>>() {}.getType());
+        } catch (NoSuchFileException ignored) {
+        }
+        this.entries = saved != null ? saved : new HashMap<>();
+    }
+
+    private static String key(Path relativePath) {
+        return relativePath.toString().replace(File.separatorChar, '/');
+    }
+
+    private void see(String key) {
+        if (seen != null)
+            seen.add(key);
+    }
+
+    /**
+     * The method tells the index that a scan of the whole directory begins. Every file whose version is asked, or
+     * that is received or merged, until the end of the scan is seen.
+     */
+    public synchronized void beginScan() {
+        if (scans++ == 0)
+            seen = new HashSet<>();
+    }
+
+    /**
+     * The method tells the index that a scan of the whole directory ended. When the last running scan ends and every
+     * scan was complete, the entries of the files that were not seen are dropped.
+     * @param complete Whether the scan listed the whole directory, false if it stopped because of an error
+     */
+    public synchronized void endScan(boolean complete) {
+        if (!complete)
+            seen = null;
+        if (--scans > 0)
+            return;
+
+        if (seen != null && entries.keySet().retainAll(seen))
+            changed = true;
+        seen = null;
+    }
+
+    /**
+     * The method returns the version of a file, incrementing the counter of the current device first if the file
+     * changed since its version was last known
+     * @param relativePath The path of the file, relative to the synchronized directory
+     * @param attributes The attributes of the file
+     * @return The version of the file
+     */
+    public synchronized VersionVector update(Path relativePath, BasicFileAttributes attributes) {
+        long modified = attributes.lastModifiedTime().toMillis();
+        Entry entry = entries.get(key(relativePath));
+        see(key(relativePath));
+
+        if (entry == null) {
+            entry = new Entry(new VersionVector().increment(deviceId), modified, attributes.size());
+            entries.put(key(relativePath), entry);
+            changed = true;
+        } else if (entry.modified != modified || entry.size != attributes.size()) {
+            entry.version = entry.version.increment(deviceId);
+            entry.modified = modified;
+            entry.size = attributes.size();
+            changed = true;
+        }
+
+        return entry.version;
+    }
+
+    /**
+     * The method returns the version of a file, see {@link #update(Path, BasicFileAttributes)}
+     * @param relativePath The path of the file, relative to the synchronized directory
+     * @return The version of the file, or null if the file doesn't exist
+     */
+    public VersionVector update(Path relativePath) {
+        try {
+            return update(relativePath, Files.readAttributes(root.resolve(relativePath), BasicFileAttributes.class));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The method remembers that a file was received from a peer, so the received file is not seen as a local change.
+     * The version of the file stays the same until the peer sends it. A new file gets an empty version, which comes
+     * before any version of the peer.
+     * @param relativePath The path of the file, relative to the synchronized directory
+     */
+    public synchronized void received(Path relativePath) {
+        try {
+            var attributes = Files.readAttributes(root.resolve(relativePath), BasicFileAttributes.class);
+            Entry entry = entries.computeIfAbsent(key(relativePath), key -> new Entry(new VersionVector(), 0, 0));
+            see(key(relativePath));
+            entry.modified = attributes.lastModifiedTime().toMillis();
+            entry.size = attributes.size();
+            changed = true;
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * The method adds the version of a peer to the version of a file, after the file was received from the peer or
+     * was found to be the same as the file of the peer
+     * @param relativePath The path of the file, relative to the synchronized directory
+     * @param version The version of the peer
+     */
+    public synchronized void merge(Path relativePath, VersionVector version) {
+        Entry entry = entries.get(key(relativePath));
+
+        if (entry == null) {
+            try {
+                var attributes = Files.readAttributes(root.resolve(relativePath), BasicFileAttributes.class);
+                entry = new Entry(new VersionVector(), attributes.lastModifiedTime().toMillis(), attributes.size());
+                entries.put(key(relativePath), entry);
+            } catch (IOException e) {
+                return;
+            }
+        }
+
+        see(key(relativePath));
+        VersionVector merged = entry.version.merge(version);
+        if (!merged.equals(entry.version)) {
+            entry.version = merged;
+            changed = true;
+        }
+    }
+
+    /**
+     * The method writes the index in the .peer folder, if it changed since it was last written. The index is written
+     * in a temporary file first, so a crash never leaves half of it.
+     * @throws IOException This exception is thrown when the index can not be written.
+     */
+    public synchronized void save() throws IOException {
+        if (!changed)
+            return;
+
+        Path temp = Files.createTempFile(indexPath.getParent(), "index", ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp)) {
+            gson.toJson(entries, writer);
+        }
+        Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        changed = false;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+}
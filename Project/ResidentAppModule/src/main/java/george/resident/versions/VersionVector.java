@@ -0,0 +1,127 @@
+package george.resident.versions;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * VersionVector class keeps, for every device that changed a file, how many times it changed it. Two vectors of the
+ * same file tell whether one of the versions was derived from the other, or whether the file was changed on both
+ * devices without one of them seeing the other's change, which is a conflict. The vectors are never modified, every
+ * change returns a new vector.
+ */
+public class VersionVector {
+    /**
+     * The result of comparing two vectors
+     */
+    public enum Ordering {
+        EQUAL,
+        BEFORE,
+        AFTER,
+        CONCURRENT
+    }
+
+    private final Map<String, Long> counters;
+
+    public VersionVector() {
+        this.counters = new HashMap<>();
+    }
+
+    private VersionVector(Map<String, Long> counters) {
+        this.counters = counters;
+    }
+
+    /**
+     * @param deviceId The ID of a device
+     * @return How many times the device changed the file
+     */
+    public long get(String deviceId) {
+        return counters.getOrDefault(deviceId, 0L);
+    }
+
+    public boolean isEmpty() {
+        return counters.isEmpty();
+    }
+
+    /**
+     * The method returns the vector of a file changed by a device
+     * @param deviceId The ID of the device that changed the file
+     * @return A new vector, whose counter of the device is one larger
+     */
+    public VersionVector increment(String deviceId) {
+        Map<String, Long> incremented = new HashMap<>(counters);
+        incremented.merge(deviceId, 1L, Long::sum);
+        return new VersionVector(incremented);
+    }
+
+    /**
+     * The method returns the vector of a version that includes both versions
+     * @param other The other vector
+     * @return A new vector, with the largest counter of every device
+     */
+    public VersionVector merge(VersionVector other) {
+        Map<String, Long> merged = new HashMap<>(counters);
+        other.counters.forEach((deviceId, counter) -> merged.merge(deviceId, counter, Math::max));
+        return new VersionVector(merged);
+    }
+
+    /**
+     * The method compares this vector with the vector of another version of the same file
+     * @param other The other vector
+     * @return BEFORE if the other version was derived from this one, AFTER if this version was derived from the other
+     * one, EQUAL if they are the same version and CONCURRENT if the file was changed on both sides
+     */
+    public Ordering compare(VersionVector other) {
+        boolean before = false;
+        boolean after = false;
+        Set<String> devices = new HashSet<>(counters.keySet());
+        devices.addAll(other.counters.keySet());
+
+        for (String deviceId : devices) {
+            long ours = get(deviceId);
+            long theirs = other.get(deviceId);
+            if (ours < theirs)
+                before = true;
+            else if (ours > theirs)
+                after = true;
+        }
+
+        if (before && after)
+            return Ordering.CONCURRENT;
+        if (before)
+            return Ordering.BEFORE;
+        return after ? Ordering.AFTER : Ordering.EQUAL;
+    }
+
+    /**
+     * The method returns a 64-bit hash of the vector, which is the same on every device and in every run, unlike
+     * {@link #hashCode()} which may change with the implementation of the map
+     * @return The FNV-1a hash of the counters, sorted by device ID
+     */
+    public long fingerprint() {
+        long hash = 0xcbf29ce484222325L;
+        for (String deviceId : new TreeMap<>(counters).keySet()) {
+            for (int i = 0; i < deviceId.length(); i++)
+                hash = (hash ^ deviceId.charAt(i)) * 0x100000001b3L;
+            hash = (hash ^ counters.get(deviceId)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof VersionVector other && counters.equals(other.counters);
+    }
+
+    @Override
+    public int hashCode() {
+        return counters.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return counters.toString();
+    }
+}
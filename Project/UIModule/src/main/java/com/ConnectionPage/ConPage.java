@@ -61,6 +61,20 @@ public class ConPage extends JPanel implements ActionListener {
         return table;
     }
 
+    /**
+     * Replaces the name shown for a device once it is resolved, the tables show the IP until then.
+     */
+    private void nameResolvedHandler(String[] device) {
+        SwingUtilities.invokeLater(() -> {
+            for (JTable table : new JTable[]{connectedDevicesTable, foundConnectionsTable}) {
+                DefaultTableModel model = (DefaultTableModel) table.getModel();
+                for (int row = 0; row < model.getRowCount(); row++)
+                    if (device[1].equals(model.getValueAt(row, 1)))
+                        model.setValueAt(device[0], row, 0);
+            }
+        });
+    }
+
     public void syncButtonHandler() {
         int index = foundConnectionsTable.getSelectedRow();
         if(index == -1)
@@ -150,6 +164,7 @@ public class ConPage extends JPanel implements ActionListener {
         syncPanel.add( new DrawRoundRectangle(radius)).setBounds(0,0,(int) (container1Width-container1Width/2.5),container1Height-39);
 
         scanButton.addActionListener(event -> scanButtonHandler());
+        DataController.setNameListener(this::nameResolvedHandler);
 
         // Container for Time and Path Panels
         JPanel container2 = new JPanel(new BorderLayout());
@@ -185,6 +185,43 @@ public class SettingsPage extends JPanel implements ActionListener {
         sizeFont.setAutoResizeMode(JTable.AUTO_RESIZE_LAST_COLUMN);
         syncPanel.add(sizeFont);
 
+        JLabel bandwidth = new JLabel();
+        bandwidth.setText("Bandwidth (KB/s): ");
+        bandwidth.setFont(new Font( "Comic sans",Font.PLAIN,26 ));
+        bandwidth.setBounds(50,445,(int) (container1Width-container1Width/2),50);
+        syncPanel.add(bandwidth);
+
+        long[] limits = DataController.getBandwidthLimits();
+        JTextField upload = new JTextField(String.valueOf(limits[0]),8);
+        upload.setToolTipText("Upload limit, 0 for no limit");
+        upload.setFont(new Font( "Comic sans",Font.PLAIN,18 ));
+        upload.setForeground(buttonPressedcolor);
+        upload.setBounds(300,455,95,30);
+        upload.setBackground(textFieldColor);
+        syncPanel.add(upload);
+
+        JTextField download = new JTextField(String.valueOf(limits[1]),8);
+        download.setToolTipText("Download limit, 0 for no limit");
+        download.setFont(new Font( "Comic sans",Font.PLAIN,18 ));
+        download.setForeground(buttonPressedcolor);
+        download.setBounds(405,455,95,30);
+        download.setBackground(textFieldColor);
+        syncPanel.add(download);
+
+        ActionListener applyLimits = event -> {
+            try {
+                long uploadKb = Long.parseLong(upload.getText().trim());
+                long downloadKb = Long.parseLong(download.getText().trim());
+                if (uploadKb < 0 || downloadKb < 0)
+                    throw new NumberFormatException();
+                DataController.setBandwidthLimits(uploadKb, downloadKb);
+            } catch (NumberFormatException e) {
+                JOptionPane.showMessageDialog(syncPanel.getComponent(0), "Set the limits in KB/s, 0 for no limit");
+            }
+        };
+        upload.addActionListener(applyLimits);
+        download.addActionListener(applyLimits);
+
         sizeFont.addMouseListener(new MouseAdapter() {
             public void mouseClicked(MouseEvent e) {
                 if (e.getClickCount() < 2) {
@@ -201,6 +238,7 @@ public class SettingsPage extends JPanel implements ActionListener {
                     design.setFont(new Font( "Comic sans",Font.PLAIN,dimension+ 20 ));
                     theme.setFont(new Font( "Comic sans",Font.PLAIN,dimension + 26 ));
                     size.setFont(new Font( "Comic sans",Font.PLAIN,dimension + 23 ));
+                    bandwidth.setFont(new Font( "Comic sans",Font.PLAIN,dimension + 23 ));
                 }
             }
         });
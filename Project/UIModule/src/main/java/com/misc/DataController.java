@@ -1,18 +1,22 @@
 package com.misc;
 
 import connectivity.Peer;
+import connectivity.bandwidth.BandwidthLimits;
 import connectivity.connection.Connection;
+import connectivity.naming.HostNameCache;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 //TODO: (George: There is nothing to do, i know its bad)
 public class DataController {
     private static Peer peer;
     private static List<InetAddress> addresses = new ArrayList<>();
     private static List<Connection> connections = new ArrayList<>();
+    private static Consumer<InetAddress> nameListener;
     //TODO add Resident functionality
 
     public static void findDevices(){
@@ -26,10 +30,23 @@ public class DataController {
 
     public static List<String[]> getLastFoundDevices() {
         return addresses.stream().
-                map(address -> new String[]{address.getHostName(), address.getHostAddress()})
+                map(address -> new String[]{HostNameCache.getInstance().getName(address), address.getHostAddress()})
                 .toList();
     }
 
+    /**
+     * Sets the listener called with {device name, IP} every time the name of a device is resolved.
+     * Only the listener of the page that is shown is kept.
+     */
+    public static void setNameListener(Consumer<String[]> listener) {
+        HostNameCache cache = HostNameCache.getInstance();
+        if(nameListener != null)
+            cache.removeListener(nameListener);
+
+        nameListener = address -> listener.accept(new String[]{cache.getName(address), address.getHostAddress()});
+        cache.addListener(nameListener);
+    }
+
     public static List<String[]> getConnectedDevices() {
         if(peer == null)
             return new ArrayList<>();
@@ -61,6 +78,18 @@ public class DataController {
         }
     }
 
+    /**
+     * Sets the upload and download limits shared by all the devices, in KB/s, 0 meaning no limit.
+     */
+    public static void setBandwidthLimits(long uploadKb, long downloadKb) {
+        BandwidthLimits.getInstance().setGlobal(uploadKb * 1024, downloadKb * 1024);
+    }
+
+    public static long[] getBandwidthLimits() {
+        BandwidthLimits limits = BandwidthLimits.getInstance();
+        return new long[]{limits.getGlobalUpload() / 1024, limits.getGlobalDownload() / 1024};
+    }
+
     public static void setPeer(Peer peer) {
         DataController.peer = peer;
     }